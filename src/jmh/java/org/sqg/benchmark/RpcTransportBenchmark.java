@@ -0,0 +1,107 @@
+package org.sqg.benchmark;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sqg.netty.RpcClient;
+import org.sqg.netty.RpcService;
+import org.sqg.netty.Transport;
+
+/**
+ * Calls over the loopback interface with every {@link Transport}, the same
+ * one on both sides: the latency of one caller at a time, and the throughput
+ * of several sharing the channel.
+ * <p>
+ * Run through the {@code jmh} profile like {@link SerializerBenchmark},
+ * {@code -prof gc} gives the garbage per call. Only the
+ * {@link #availableTransports() available transports} are run, unless
+ * {@code -p transport=...} asks for others, which then fail their setup.
+ * Epoll needs Linux and, with Netty 4.0, a JDK older than 14.
+ * </p>
+ */
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RpcTransportBenchmark {
+
+    public interface Echo {
+
+        int echo(int value);
+    }
+
+    @Param({ "NIO", "EPOLL" })
+    public Transport transport;
+
+    private RpcService service;
+    private RpcClient client;
+    private Echo echo;
+
+    @Setup
+    public void setUp() throws IOException {
+        if (!transport.isAvailable())
+            throw new IllegalStateException(transport + " is not available");
+        service = new RpcService(0).setTransport(transport).register(
+                Echo.class, new Echo() {
+                    @Override
+                    public int echo(final int value) {
+                        return value;
+                    }
+                });
+        service.start();
+        int port = ((InetSocketAddress) service.getLocalAddress()).getPort();
+        client = new RpcClient(new InetSocketAddress("127.0.0.1", port),
+                transport);
+        echo = client.proxy(Echo.class);
+    }
+
+    /**
+     * @return names of the transports available on this platform.
+     */
+    public static String[] availableTransports() {
+        List<String> names = new ArrayList<>();
+        for (Transport t : Transport.values())
+            if (t.isAvailable())
+                names.add(t.name());
+        return names.toArray(new String[names.size()]);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (client != null)
+            client.close();
+        if (service != null)
+            service.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int latency() {
+        return echo.echo(1);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Threads(8)
+    public int throughput() {
+        return echo.echo(1);
+    }
+}
@@ -0,0 +1,230 @@
+package org.sqg.benchmark;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.sqg.thrift.generated.Student;
+import org.sqg.util.CompactSerializer;
+import org.sqg.util.JdkSerializer;
+import org.sqg.util.KryoManualSerializer;
+import org.sqg.util.KryoRegistry;
+import org.sqg.util.KryoSerializer;
+import org.sqg.util.MethodHandleSerializer;
+import org.sqg.util.Serializer;
+import org.sqg.util.ThriftSerializer;
+
+/**
+ * Throughput of every {@link Serializer} on a few kinds of payload, written
+ * into and read back from a reused buffer.
+ * <p>
+ * Run through the {@code jmh} profile, which adds {@code -prof gc} for the
+ * allocation rate and writes the results as JSON. The size of every payload
+ * with every serializer is written as JSON to the file named by the
+ * {@code sizes.file} system property.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializerBenchmark {
+
+    public static class Bean implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private String name;
+        private int age;
+        private long id;
+        private double score;
+        private boolean active;
+
+        public Bean() {
+        }
+
+        Bean(final int i) {
+            name = "bean-" + i;
+            age = i % 100;
+            id = 1L << 40 | i;
+            score = i * 1.5;
+            active = i % 2 == 0;
+        }
+    }
+
+    public static class Node implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private int value;
+        private Node next;
+
+        public Node() {
+        }
+
+        Node(final int value, final Node next) {
+            this.value = value;
+            this.next = next;
+        }
+    }
+
+    @Param({ "jdk", "kryo", "kryo-registered", "kryo-manual", "method-handle",
+            "compact", "thrift" })
+    public String serializer;
+
+    /**
+     * A bean, a list of 1000 beans, a chain of 100 nodes, a 1 KiB string, a
+     * Thrift struct.
+     */
+    @Param({ "bean", "collection", "deep", "string", "struct" })
+    public String payload;
+
+    private Serializer instance;
+    private Object message;
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setUp() throws IOException {
+        instance = newSerializer(serializer);
+        message = newPayload(payload);
+        buffer = ByteBuffer.allocate(64 * 1024);
+        // Stateful serializers send schemas once, measure what follows.
+        buffer = instance.serialize(message, buffer);
+        buffer.flip();
+        instance.deserialize(buffer, message.getClass());
+    }
+
+    @Benchmark
+    public ByteBuffer serialize() throws IOException {
+        buffer.clear();
+        buffer = instance.serialize(message, buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public Object roundTrip() throws IOException {
+        buffer.clear();
+        buffer = instance.serialize(message, buffer);
+        buffer.flip();
+        return instance.deserialize(buffer, message.getClass());
+    }
+
+    static Serializer newSerializer(final String name) {
+        KryoRegistry registry = KryoRegistry.DEFAULT.with(Bean.class,
+                Node.class, Student.class);
+        switch (name) {
+        case "jdk":
+            return new JdkSerializer();
+        case "kryo":
+            return new KryoSerializer();
+        case "kryo-registered":
+            return registry.getSerializer();
+        case "kryo-manual":
+            return new KryoManualSerializer();
+        case "method-handle":
+            return new MethodHandleSerializer(registry);
+        case "compact":
+            return new CompactSerializer();
+        case "thrift":
+            return new ThriftSerializer();
+        default:
+            throw new IllegalArgumentException("unknown serializer " + name);
+        }
+    }
+
+    static Object newPayload(final String name) {
+        switch (name) {
+        case "bean":
+            return new Bean(1);
+        case "collection": {
+            List<Bean> beans = new ArrayList<>();
+            for (int i = 0; i < 1000; ++i)
+                beans.add(new Bean(i));
+            return beans;
+        }
+        case "deep": {
+            Node node = null;
+            for (int i = 0; i < 100; ++i)
+                node = new Node(i, node);
+            return node;
+        }
+        case "string": {
+            StringBuilder sb = new StringBuilder();
+            while (sb.length() < 1024)
+                sb.append("serializer benchmark \u00e9\u00e8 ");
+            return sb.toString();
+        }
+        case "struct":
+            return new Student("sqg", 18);
+        default:
+            throw new IllegalArgumentException("unknown payload " + name);
+        }
+    }
+
+    /**
+     * Run the benchmarks, then write the bytes per message.
+     *
+     * @param args
+     *            JMH command line.
+     * @throws Exception
+     */
+    public static void main(final String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .parent(commandLine);
+        // Transports that are not available would only fail, unless asked.
+        if (!commandLine.getParameter("transport").hasValue())
+            options.param("transport",
+                    RpcTransportBenchmark.availableTransports());
+        new Runner(options.build()).run();
+        String sizesFile = System.getProperty("sizes.file");
+        if (sizesFile == null)
+            return;
+        String[] serializers = SerializerBenchmark.class
+                .getField("serializer").getAnnotation(Param.class).value();
+        String[] payloads = SerializerBenchmark.class.getField("payload")
+                .getAnnotation(Param.class).value();
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(sizesFile), StandardCharsets.UTF_8))) {
+            out.println("[");
+            for (int i = 0; i < serializers.length; ++i) {
+                for (int j = 0; j < payloads.length; ++j) {
+                    Serializer s = newSerializer(serializers[i]);
+                    Object message = newPayload(payloads[j]);
+                    // The second message of a stateful serializer is smaller.
+                    s.serialize(message);
+                    out.printf("    {\"serializer\" : \"%s\", \"payload\" :"
+                            + " \"%s\", \"bytes\" : %d}%s%n", serializers[i],
+                            payloads[j], s.serialize(message).length,
+                            i == serializers.length - 1
+                                    && j == payloads.length - 1 ? "" : ",");
+                }
+            }
+            out.println("]");
+        }
+    }
+}
@@ -1,25 +1,58 @@
 package org.sqg.mina;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
+import org.sqg.util.ByteBufferInputStream;
+import org.sqg.util.ByteBufferOutputStream;
 import org.sqg.util.Serializer;
+import org.sqg.util.SizePredictor;
 
+/**
+ * Base of serializers working on streams. The {@link ByteBuffer} methods adapt
+ * the buffer to a stream, serializers with a native way override them, which
+ * the {@code byte[]} deserialization then goes through as well.
+ */
 public abstract class AbstractSerializer implements Serializer {
 
+    private final SizePredictor sizes = new SizePredictor();
+
+    /**
+     * Serialize into a stream allocated with the size predicted for the class
+     * of {@code objectGraph}, which is then seldom grown.
+     */
     public final <T> byte[] serialize(final T objectGraph) {
-        try (ByteArrayOutputStream os = new ByteArrayOutputStream()) {
+        Class<?> type = objectGraph == null ? Void.class : objectGraph
+                .getClass();
+        int predicted = sizes.predict(type);
+        try (ByteArrayOutputStream os = new ByteArrayOutputStream(predicted)) {
             serialize(objectGraph, os);
+            sizes.record(type, predicted, os.size());
             return os.toByteArray();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * @return sizes predicted by {@link #serialize(Object)}, with their hit
+     *         rate.
+     */
+    public SizePredictor getSizePredictor() {
+        return sizes;
+    }
+
+    public <T> ByteBuffer serialize(final T objectGraph,
+            final ByteBuffer buffer) throws IOException {
+        ByteBufferOutputStream os = new ByteBufferOutputStream(buffer);
+        serialize(objectGraph, os);
+        return os.getBuffer();
+    }
+
     public final <T> T deserialize(final byte[] bytes, final Class<T> type) {
-        try (ByteArrayInputStream is = new ByteArrayInputStream(bytes)) {
-            return deserialize(is, type);
+        try {
+            return deserialize(ByteBuffer.wrap(bytes), type);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -27,10 +60,20 @@ public abstract class AbstractSerializer implements Serializer {
 
     public final Object deserialize(final byte[] bytes)
             throws ClassNotFoundException {
-        try (ByteArrayInputStream is = new ByteArrayInputStream(bytes)) {
-            return deserialize(is);
+        try {
+            return deserialize(ByteBuffer.wrap(bytes));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
+
+    public <T> T deserialize(final ByteBuffer buffer, final Class<T> type)
+            throws IOException {
+        return deserialize(new ByteBufferInputStream(buffer), type);
+    }
+
+    public Object deserialize(final ByteBuffer buffer) throws IOException,
+            ClassNotFoundException {
+        return deserialize(new ByteBufferInputStream(buffer));
+    }
 }
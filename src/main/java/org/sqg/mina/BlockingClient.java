@@ -1,37 +1,49 @@
 package org.sqg.mina;
 
 import java.net.SocketAddress;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Client whose {@link #request} can be called from many threads at the same
+ * time. Every request is tagged with a correlation id, so any number of them
+ * can be outstanding on the single session and responses are matched back by
+ * id in whatever order they arrive.
+ */
 public class BlockingClient extends Client {
 
-    private Semaphore resultWaiter;
-    private Object response;
-
     public BlockingClient(SocketAddress remoteServerAddress) {
         super(remoteServerAddress);
-        resultWaiter = new Semaphore(1);
+    }
+
+    public BlockingClient(SocketAddress remoteServerAddress,
+            MultipartIoServiceConfig config) {
+        super(remoteServerAddress, config);
     }
 
     @Override
     protected Object handleMessage(Object messageObj) {
-        response = messageObj;
-        resultWaiter.release();
+        // Uncorrelated message pushed by the server, nobody is waiting for it.
         return null;
     }
 
-    @SuppressWarnings("unchecked")
     public <U, V> V request(final U u) {
         try {
-            resultWaiter.acquire();
-            send(u);
-            resultWaiter.acquire();
+            return this.<U, V> requestAsync(u).get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    public <U, V> V request(final U u, final long timeout, final TimeUnit unit) {
+        try {
+            return this.<U, V> requestAsync(u, timeout, unit).get();
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
         }
-        V v = (V) response;
-        response = null;
-        resultWaiter.release();
-        return v;
     }
 }
@@ -0,0 +1,157 @@
+package org.sqg.mina;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.buffer.IoBufferWrapper;
+
+/**
+ * Pool of {@link ByteBuffer}s shared by all threads.
+ * <p>
+ * Buffers are acquired by whatever thread encodes a frame and released by the
+ * I/O processor once the frame is written, so a per-thread cache such as
+ * {@link org.apache.mina.core.buffer.CachedBufferAllocator} would never see
+ * them again. Capacities are rounded up to powers of two; buffers larger than
+ * {@code maxPooledCapacity} are left to the GC.
+ * </p>
+ * <p>
+ * This is deliberately not an {@code IoBufferAllocator}: in MINA 2.0.x every
+ * {@code AbstractIoBuffer} constructor replaces (and disposes) the JVM-wide
+ * allocator. {@link #allocate} hands out wrappers instead, whose
+ * {@link IoBuffer#free()} gives the buffer back. The I/O processor calls it
+ * once a buffer is completely written and no longer touched.
+ * </p>
+ */
+final class BufferPool {
+
+    private static final int MIN_POOLED_SHIFT = 6;
+
+    private final int maxPooledCapacity;
+    private final int maxPoolSize;
+    private final Pool[] heapPools;
+    private final Pool[] directPools;
+
+    private static final class Pool {
+
+        private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+    }
+
+    /**
+     * @param maxPooledCapacity
+     *            buffers with a larger capacity are left to the GC.
+     * @param maxPoolSize
+     *            maximum number of idle buffers kept per capacity.
+     */
+    BufferPool(final int maxPooledCapacity, final int maxPoolSize) {
+        this.maxPooledCapacity = normalizeCapacity(maxPooledCapacity);
+        this.maxPoolSize = maxPoolSize;
+        int n = Integer.numberOfTrailingZeros(this.maxPooledCapacity) + 1;
+        heapPools = new Pool[n];
+        directPools = new Pool[n];
+        for (int i = MIN_POOLED_SHIFT; i < n; ++i) {
+            heapPools[i] = new Pool();
+            directPools[i] = new Pool();
+        }
+    }
+
+    /**
+     * @param capacity
+     * @param direct
+     * @return an empty buffer with at least {@code capacity} bytes, which
+     *         returns to this pool when freed.
+     */
+    IoBuffer allocate(final int capacity, final boolean direct) {
+        return new PooledBuffer(IoBuffer.wrap(acquire(capacity, direct)));
+    }
+
+    /**
+     * @param buf
+     *            allocated elsewhere, such as a copy a full buffer grew into.
+     * @return a wrapper over {@code buf}, which joins this pool when freed.
+     */
+    IoBuffer wrap(final ByteBuffer buf) {
+        return new PooledBuffer(IoBuffer.wrap(buf));
+    }
+
+    /**
+     * @param capacity
+     * @param direct
+     * @return a cleared buffer with at least {@code capacity} bytes.
+     */
+    ByteBuffer acquire(final int capacity, final boolean direct) {
+        int actualCapacity = normalizeCapacity(capacity);
+        Pool pool = pool(actualCapacity, direct);
+        if (pool != null) {
+            ByteBuffer buf = pool.buffers.poll();
+            if (buf != null) {
+                pool.size.decrementAndGet();
+                buf.clear();
+                return buf;
+            }
+        }
+        return direct ? ByteBuffer.allocateDirect(actualCapacity)
+                : ByteBuffer.allocate(actualCapacity);
+    }
+
+    /**
+     * Give a buffer back, the caller must not touch it afterwards.
+     *
+     * @param buf
+     */
+    void release(final ByteBuffer buf) {
+        if (buf == null || buf.isReadOnly()
+                || Integer.bitCount(buf.capacity()) != 1)
+            return;
+        Pool pool = pool(buf.capacity(), buf.isDirect());
+        if (pool == null)
+            return;
+        if (pool.size.incrementAndGet() > maxPoolSize) {
+            pool.size.decrementAndGet();
+            return;
+        }
+        pool.buffers.offer(buf);
+    }
+
+    void clear() {
+        for (int i = MIN_POOLED_SHIFT; i < heapPools.length; ++i) {
+            heapPools[i].buffers.clear();
+            heapPools[i].size.set(0);
+            directPools[i].buffers.clear();
+            directPools[i].size.set(0);
+        }
+    }
+
+    private Pool pool(final int capacity, final boolean direct) {
+        if (capacity > maxPooledCapacity)
+            return null;
+        int index = Integer.numberOfTrailingZeros(capacity);
+        return direct ? directPools[index] : heapPools[index];
+    }
+
+    private static int normalizeCapacity(final int capacity) {
+        int normalized = Integer.highestOneBit(Math.max(capacity,
+                1 << MIN_POOLED_SHIFT));
+        return normalized < capacity ? normalized << 1 : normalized;
+    }
+
+    private final class PooledBuffer extends IoBufferWrapper {
+
+        private boolean freed;
+
+        PooledBuffer(final IoBuffer buf) {
+            super(buf);
+        }
+
+        @Override
+        public void free() {
+            if (freed)
+                return;
+            freed = true;
+            release(buf());
+        }
+    }
+}
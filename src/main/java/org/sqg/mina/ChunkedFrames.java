@@ -0,0 +1,586 @@
+package org.sqg.mina;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.future.DefaultWriteFuture;
+import org.apache.mina.core.future.IoFutureListener;
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.core.session.AttributeKey;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.RecoverableProtocolDecoderException;
+import org.sqg.mina.MultipartIoService.Frame;
+import org.sqg.util.Compression;
+import org.sqg.util.Serializer;
+
+/**
+ * Messages sent and received as a series of chunk frames, see
+ * {@link MultipartIoServiceConfig#setChunkSize}.
+ * <p>
+ * A chunk is a frame whose serializer id has {@link #CHUNK} set, the last one
+ * of a message has {@link #LAST} as well. A message is serialized into chunk
+ * sized buffers, each written as soon as it is full, and only once the first
+ * one is full is it known to take more than one frame; smaller messages go as
+ * one plain frame. The chunks of a message are written back to back under a
+ * lock of the session, so a session carries at most one chunked message each
+ * way at a time, other frames may come between its chunks. With
+ * {@link MultipartIoServiceConfig#setWriteBatchBytes write batching}, a
+ * message that fits one chunk goes into the batch of the session, which is
+ * written before the first chunk of a larger one.
+ * </p>
+ * <p>
+ * The sender keeps at most {@link #MAX_IN_FLIGHT} chunks queued for the
+ * socket and waits for the oldest to be written before it queues another.
+ * An I/O processor thread must not wait for its own writes: a message it
+ * sends that turns out to take more than one chunk is serialized again from
+ * the start by a {@link MultipartIoServiceConfig#setChunkWriterThreads
+ * writer thread}, so only its first chunk is serialized twice, and messages
+ * sent after it may overtake it. The receiver hands the chunks to a thread deserializing from them as they
+ * come, through a queue of as many chunks, and suspends reading from the
+ * session while the queue is full. The I/O processor never waits: the
+ * message is handed on from the reader thread once deserialized, and frames
+ * received after its last chunk may overtake it. At most
+ * {@link MultipartIoServiceConfig#setMaxInboundChunkedMessages so many}
+ * messages are received at once by a service, the chunks of any more are
+ * dropped.
+ * </p>
+ */
+final class ChunkedFrames {
+
+    static final byte CHUNK = (byte) 0x80;
+    static final byte LAST = 0x40;
+    /**
+     * The sender gave up on the message, the chunk is empty.
+     */
+    static final byte ABORT = 0x20;
+    static final byte FLAGS = CHUNK | LAST | ABORT;
+
+    private static final int MAX_IN_FLIGHT = 4;
+
+    /**
+     * Length prefix and frame header.
+     */
+    private static final int HEADER = 4 + MultipartIoService.HEADER_SIZE;
+
+    private static final AttributeKey WRITE_LOCK = new AttributeKey(
+            ChunkedFrames.class, "writeLock");
+    private static final AttributeKey INBOUND = new AttributeKey(
+            ChunkedFrames.class, "inbound");
+
+    /**
+     * In place of the message being received, whose chunks are dropped.
+     */
+    private static final Object DROPPED = new Object();
+
+    /**
+     * Thrown through the serializer at the first chunk on an I/O processor
+     * thread, to hand the message to a writer thread.
+     */
+    private static final class HandOff extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        HandOff() {
+            super("chunked message handed to a writer thread", null, false,
+                    false);
+        }
+    }
+
+    private static final HandOff HAND_OFF = new HandOff();
+
+    private final BufferPool pool;
+    private final MultipartIoServiceConfig config;
+    private final Compression compression;
+    private final WriteBatcher batcher;
+    private final ExecutorService readers;
+    private final ExecutorService writers;
+
+    /**
+     * @param pool
+     * @param config
+     * @param compression
+     * @param batcher
+     *            of the service, null without write batching.
+     */
+    ChunkedFrames(final BufferPool pool, final MultipartIoServiceConfig config,
+            final Compression compression, final WriteBatcher batcher) {
+        this.pool = pool;
+        this.config = config;
+        this.compression = compression;
+        this.batcher = batcher;
+        // No queue, a message without a reader is dropped.
+        readers = new ThreadPoolExecutor(0,
+                config.getMaxInboundChunkedMessages(), 60L,
+                TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                daemons("mina-chunk-reader"));
+        ThreadPoolExecutor w = new ThreadPoolExecutor(
+                config.getChunkWriterThreads(),
+                config.getChunkWriterThreads(), 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                daemons("mina-chunk-writer"));
+        w.allowCoreThreadTimeOut(true);
+        writers = w;
+    }
+
+    private static ThreadFactory daemons(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Serialize and write a frame, in chunks if it takes more than one. On
+     * return its {@link Frame#getEncodedSize() size} is set unless
+     * serializing failed, or the frame was handed to a writer thread.
+     *
+     * @param session
+     * @param frame
+     * @param serializer
+     *            of the frame's serializer type for the session.
+     * @return future of the write of the last chunk.
+     * @throws IOException
+     */
+    WriteFuture write(final IoSession session, final Frame frame,
+            final Serializer serializer) throws IOException {
+        ChunkOutputStream os = new ChunkOutputStream(session, frame);
+        try {
+            serializer.serialize(frame.getPayload(), os);
+            return os.finish();
+        } catch (IOException | RuntimeException e) {
+            // Possibly wrapped by the serializer.
+            if (os.handedOff) {
+                os.discard();
+                return writeLater(session, frame, serializer);
+            }
+            os.abort();
+            throw e;
+        }
+    }
+
+    private WriteFuture writeLater(final IoSession session, final Frame frame,
+            final Serializer serializer) {
+        final DefaultWriteFuture later = new DefaultWriteFuture(session);
+        writers.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(session, frame, serializer).addListener(
+                            new IoFutureListener<WriteFuture>() {
+                                @Override
+                                public void operationComplete(WriteFuture f) {
+                                    if (f.isWritten())
+                                        later.setWritten();
+                                    else
+                                        later.setException(f.getException());
+                                }
+                            });
+                } catch (IOException | RuntimeException e) {
+                    later.setException(e);
+                }
+            }
+        });
+        return later;
+    }
+
+    /**
+     * Take in a received chunk without waiting. The message is handed on
+     * from the thread deserializing it, as a {@link Frame} received by the
+     * session, or as a {@link RecoverableProtocolDecoderException} caught if
+     * deserializing fails.
+     *
+     * @param session
+     * @param serializerId
+     *            as received, with the flags.
+     * @param type
+     * @param serializer
+     *            of {@code type} for the session.
+     * @param correlationId
+     * @param in
+     *            the payload of the chunk, from its position to its limit,
+     *            decompressed.
+     * @throws IOException
+     *             if the peer aborted the message, or the message is dropped
+     *             as one too many.
+     */
+    void received(final IoSession session, final byte serializerId,
+            final SerializerType type, final Serializer serializer,
+            final int correlationId, final ByteBuffer in) throws IOException {
+        boolean last = (serializerId & LAST) != 0;
+        Object state = session.getAttribute(INBOUND);
+        if (state == DROPPED) {
+            if (last)
+                session.removeAttribute(INBOUND);
+            return;
+        }
+        Inbound inbound = (Inbound) state;
+        if (inbound == null) {
+            if ((serializerId & ABORT) != 0)
+                throw new IOException("chunked message aborted by the peer");
+            inbound = new Inbound(session);
+            try {
+                readers.execute(new Reader(inbound, type, serializer,
+                        correlationId));
+            } catch (RejectedExecutionException e) {
+                if (!last)
+                    session.setAttribute(INBOUND, DROPPED);
+                throw new IOException("dropping chunked message, "
+                        + config.getMaxInboundChunkedMessages()
+                        + " are being received already", e);
+            }
+            session.setAttribute(INBOUND, inbound);
+        }
+        if ((serializerId & ABORT) != 0) {
+            session.removeAttribute(INBOUND);
+            inbound.abort();
+            throw new IOException("chunked message aborted by the peer");
+        }
+        byte[] chunk = new byte[in.remaining()];
+        in.get(chunk);
+        inbound.put(chunk, last);
+        if (last)
+            session.removeAttribute(INBOUND);
+    }
+
+    /**
+     * Fail the message the session was receiving, if any.
+     *
+     * @param session
+     */
+    void sessionClosed(final IoSession session) {
+        Object state = session.removeAttribute(INBOUND);
+        if (state instanceof Inbound)
+            ((Inbound) state).abort();
+    }
+
+    void close() {
+        readers.shutdownNow();
+        writers.shutdownNow();
+    }
+
+    private static ReentrantLock writeLock(final IoSession session) {
+        ReentrantLock lock = (ReentrantLock) session.getAttribute(WRITE_LOCK);
+        if (lock == null) {
+            lock = new ReentrantLock();
+            ReentrantLock old = (ReentrantLock) session.setAttributeIfAbsent(
+                    WRITE_LOCK, lock);
+            if (old != null)
+                lock = old;
+        }
+        return lock;
+    }
+
+    /**
+     * Serializes into chunk buffers, writing each one full.
+     */
+    private final class ChunkOutputStream extends OutputStream {
+
+        private final IoSession session;
+        private final Frame frame;
+        private final int chunkSize;
+        private final Deque<WriteFuture> inFlight = new ArrayDeque<>();
+        private IoBuffer buf;
+        /**
+         * Held from the first chunk on.
+         */
+        private ReentrantLock lock;
+        /**
+         * Left to a writer thread, nothing is written.
+         */
+        private boolean handedOff;
+        private long size;
+
+        ChunkOutputStream(final IoSession session, final Frame frame) {
+            this.session = session;
+            this.frame = frame;
+            chunkSize = config.getChunkSize();
+            buf = newChunk();
+        }
+
+        @Override
+        public void write(final int b) {
+            if (!buf.hasRemaining())
+                writeChunk();
+            buf.put((byte) b);
+        }
+
+        @Override
+        public void write(final byte[] b, int off, int len) {
+            while (len > 0) {
+                if (!buf.hasRemaining())
+                    writeChunk();
+                int n = Math.min(buf.remaining(), len);
+                buf.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * Write what is left, as the last chunk or as the whole message.
+         */
+        WriteFuture finish() {
+            if (handedOff)
+                throw HAND_OFF;
+            try {
+                WriteFuture written = emit(lock == null ? 0 : CHUNK | LAST);
+                frame.setEncodedSize((int) Math.min(size, Integer.MAX_VALUE));
+                return written;
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Drop what is not written, and tell the peer if chunks are.
+         */
+        void abort() {
+            if (buf != null) {
+                buf.free();
+                buf = null;
+            }
+            if (lock == null)
+                return;
+            try {
+                buf = newChunk();
+                emit(CHUNK | LAST | ABORT);
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Drop the buffer of a message handed off.
+         */
+        void discard() {
+            if (buf != null) {
+                buf.free();
+                buf = null;
+            }
+        }
+
+        /**
+         * Write the full buffer as a chunk and go on in a new one.
+         */
+        private void writeChunk() {
+            if (lock == null) {
+                if (handedOff || MultipartIoService.isIoProcessorThread()) {
+                    handedOff = true;
+                    throw HAND_OFF;
+                }
+                lock = writeLock(session);
+                lock.lock();
+                // Messages batched before this one go first.
+                if (batcher != null)
+                    batcher.flush(session);
+            }
+            inFlight.add(emit(CHUNK));
+            if (inFlight.size() > MAX_IN_FLIGHT)
+                inFlight.poll().awaitUninterruptibly();
+            buf = newChunk();
+        }
+
+        private IoBuffer newChunk() {
+            IoBuffer chunk = pool.allocate(HEADER + chunkSize,
+                    config.isDirectBuffers());
+            chunk.limit(HEADER + chunkSize);
+            chunk.position(HEADER);
+            return chunk;
+        }
+
+        private WriteFuture emit(int flags) {
+            IoBuffer out = buf;
+            buf = null;
+            if (compression.compress(out.buf(), HEADER))
+                flags |= MultipartIoService.COMPRESSED;
+            out.putInt(0, out.position() - 4);
+            out.put(4, (byte) (frame.getSerializer().getId() | flags));
+            out.putInt(5, frame.getCorrelationId());
+            out.flip();
+            size += out.remaining();
+            if (batcher != null && (flags & CHUNK) == 0)
+                return batcher.write(session, out);
+            return session.write(out);
+        }
+
+        private void unlock() {
+            if (lock != null) {
+                lock.unlock();
+                lock = null;
+            }
+        }
+    }
+
+    /**
+     * Chunks of the message being received, read by its deserializer.
+     */
+    private static final class Inbound extends InputStream {
+
+        private final IoSession session;
+        private final Deque<byte[]> chunks = new ArrayDeque<>();
+        private byte[] current = new byte[0];
+        private int position;
+        private boolean last;
+        private boolean aborted;
+        private boolean closed;
+        /**
+         * Reading from the session is suspended until the queue has room.
+         */
+        private boolean suspended;
+
+        Inbound(final IoSession session) {
+            this.session = session;
+        }
+
+        /**
+         * Queue a chunk, and suspend reading from the session once the queue
+         * is full. Chunks already read are still queued, reading resumes
+         * when the deserializer has taken enough. Dropped once the
+         * deserializer is done.
+         */
+        synchronized void put(final byte[] chunk, final boolean isLast) {
+            if (!closed)
+                chunks.add(chunk);
+            last |= isLast;
+            if (chunks.size() >= MAX_IN_FLIGHT && !suspended && !last) {
+                suspended = true;
+                ReadSuspension.suspend(session);
+            }
+            notifyAll();
+        }
+
+        synchronized void abort() {
+            aborted = true;
+            notifyAll();
+        }
+
+        synchronized boolean isAborted() {
+            return aborted;
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            if (!fill())
+                return -1;
+            return current[position++] & 0xff;
+        }
+
+        @Override
+        public synchronized int read(final byte[] b, final int off,
+                final int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!fill())
+                return -1;
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public synchronized int available() {
+            return current.length - position;
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            chunks.clear();
+            resume();
+            notifyAll();
+        }
+
+        /**
+         * @return false at the end of the message.
+         */
+        private boolean fill() throws IOException {
+            while (position == current.length) {
+                if (aborted)
+                    throw new IOException("chunked message aborted");
+                byte[] next = chunks.poll();
+                if (next != null) {
+                    current = next;
+                    position = 0;
+                    // Not at the first slot free, each resume wakes the
+                    // processor up.
+                    if (chunks.size() <= MAX_IN_FLIGHT / 2)
+                        resume();
+                } else if (last) {
+                    return false;
+                } else {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("interrupted", e);
+                    }
+                }
+            }
+            return true;
+        }
+
+        private void resume() {
+            if (suspended) {
+                suspended = false;
+                ReadSuspension.resume(session);
+            }
+        }
+    }
+
+    /**
+     * Deserializes a message from its chunks and hands it on.
+     */
+    private static final class Reader implements Runnable {
+
+        private final Inbound inbound;
+        private final SerializerType type;
+        private final Serializer serializer;
+        private final int correlationId;
+
+        Reader(final Inbound inbound, final SerializerType type,
+                final Serializer serializer, final int correlationId) {
+            this.inbound = inbound;
+            this.type = type;
+            this.serializer = serializer;
+            this.correlationId = correlationId;
+        }
+
+        @Override
+        public void run() {
+            IoSession session = inbound.session;
+            Object message;
+            try {
+                message = serializer.deserialize(inbound);
+            } catch (ClassNotFoundException | IOException | RuntimeException e) {
+                // Aborted messages are reported as their abort arrives.
+                if (!inbound.isAborted())
+                    session.getFilterChain().fireExceptionCaught(
+                            new RecoverableProtocolDecoderException(e));
+                return;
+            } finally {
+                inbound.close();
+            }
+            // From the head of the chain, the codec lets it pass.
+            session.getFilterChain().fireMessageReceived(
+                    new Frame(type, correlationId, message));
+        }
+    }
+}
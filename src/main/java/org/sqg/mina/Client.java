@@ -1,43 +1,335 @@
 package org.sqg.mina;
 
+import java.io.IOException;
 import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.mina.core.future.ConnectFuture;
+import org.apache.mina.core.future.IoFutureListener;
+import org.apache.mina.core.future.WriteFuture;
 import org.apache.mina.core.service.IoConnector;
 import org.apache.mina.core.service.IoService;
+import org.apache.mina.core.session.AttributeKey;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.transport.socket.nio.NioSocketConnector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * Client of a {@link Server} over one or more sessions.
+ * <p>
+ * With {@link MultipartIoServiceConfig#setMaxConnections more than one
+ * connection} allowed, every message goes to the session with the least load,
+ * which is its requests awaiting a response plus its frames not written yet.
+ * The pool grows by one session when even the least loaded one has
+ * {@link MultipartIoServiceConfig#setConnectionGrowThreshold a queue}, and
+ * shrinks by one after a {@link MultipartIoServiceConfig#setPoolResizeInterval
+ * resize interval} in which an idle session was always at hand. Sessions lost
+ * below the {@link MultipartIoServiceConfig#setMinConnections minimum} are
+ * reconnected at the same interval.
+ * </p>
+ */
 public abstract class Client extends MultipartIoService {
 
-    private IoSession session;
+    private static final Logger LOGGER = LoggerFactory.getLogger(Client.class);
+
+    private static final AttributeKey CHANNEL = new AttributeKey(Client.class,
+            "channel");
+
+    /**
+     * Response timeouts and pool resizing of every client.
+     */
+    private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(
+            1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "mina-client-timer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    static {
+        TIMER.setRemoveOnCancelPolicy(true);
+    }
+
+    private final SocketAddress remoteServerAddress;
+    private final AtomicInteger sequence = new AtomicInteger();
+    private ScheduledFuture<?> resizeTask;
+    /**
+     * Copied on write, there are few sessions and they rarely change.
+     */
+    private volatile Channel[] channels = new Channel[0];
+    private final AtomicInteger rotation = new AtomicInteger();
+    private final AtomicBoolean growing = new AtomicBoolean();
+    /**
+     * Highest load of the least loaded session seen since the last resize.
+     */
+    private final AtomicInteger leastLoadPeak = new AtomicInteger();
+    private volatile boolean closed;
+
+    /**
+     * A session of the pool and the requests awaiting a response on it.
+     */
+    private static final class Channel {
+
+        private final IoSession session;
+        private final ConcurrentMap<Integer, CompletableFuture<Object>> pending = new ConcurrentHashMap<>();
+        private final OutboundQueue outbound;
+
+        Channel(final IoSession session, final MultipartIoServiceConfig config) {
+            this.session = session;
+            outbound = new OutboundQueue(config.getMaxOutstandingMessages(),
+                    config.getMaxOutstandingBytes());
+        }
+
+        int load() {
+            return pending.size() + outbound.getMessages();
+        }
+
+        void failPending(final Throwable cause) {
+            Iterator<CompletableFuture<Object>> it = pending.values()
+                    .iterator();
+            while (it.hasNext()) {
+                CompletableFuture<Object> future = it.next();
+                it.remove();
+                future.completeExceptionally(cause);
+            }
+        }
+    }
 
     public Client(SocketAddress remoteServerAddress) {
-        super.initService();
+        this(remoteServerAddress, new MultipartIoServiceConfig());
+    }
+
+    public Client(SocketAddress remoteServerAddress,
+            MultipartIoServiceConfig config) {
+        this.remoteServerAddress = remoteServerAddress;
+        super.initService(config);
         try {
-            session = ((IoConnector) service).connect(remoteServerAddress)
-                    .await().getSession();
-        } catch (InterruptedException e) {
+            for (int i = 0; i < config.getMinConnections(); ++i) {
+                IoSession session = ((IoConnector) service)
+                        .connect(remoteServerAddress).await().getSession();
+                // Bounded by the connect timeout.
+                negotiateWithin(session).get();
+                addChannel(session);
+            }
+            // Even at a fixed size, to reconnect lost sessions.
+            long interval = config.getPoolResizeIntervalNanos();
+            resizeTask = TIMER.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    resize();
+                }
+            }, interval, interval, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException | ExecutionException
+                | RuntimeException e) {
+            // Sessions connected so far and the connector go with it.
+            close();
+            if (e instanceof InterruptedException)
+                Thread.currentThread().interrupt();
+            if (e instanceof RuntimeException)
+                throw (RuntimeException) e;
             throw new RuntimeException(e);
         }
     }
 
     public SocketAddress getLocalAddress() {
-        if (session != null)
-            return session.getLocalAddress();
+        Channel[] snapshot = channels;
+        if (snapshot.length > 0)
+            return snapshot[0].session.getLocalAddress();
+        return null;
+    }
+
+    /**
+     * @return number of sessions in the pool.
+     */
+    public int getConnectionCount() {
+        return channels.length;
+    }
+
+    /**
+     * @return serializer the first session sends with, null without session.
+     */
+    public SerializerType getSerializerType() {
+        Channel[] snapshot = channels;
+        if (snapshot.length > 0)
+            return SerializerNegotiation.serializerOf(snapshot[0].session);
         return null;
     }
 
     @Override
     public void close() {
-        if (session != null) {
-            session.close(true);
-            session = null;
+        closed = true;
+        Channel[] snapshot;
+        synchronized (this) {
+            snapshot = channels;
+            channels = new Channel[0];
+        }
+        for (Channel channel : snapshot) {
+            channel.session.close(true);
+            channel.failPending(new IOException("client closed"));
         }
+        if (resizeTask != null)
+            resizeTask.cancel(false);
         super.close();
     }
 
+    /**
+     * @return number of frames handed to the sessions but not written yet.
+     */
+    public int getOutstandingMessages() {
+        int messages = 0;
+        for (Channel channel : channels)
+            messages += channel.outbound.getMessages();
+        return messages;
+    }
+
+    /**
+     * @return encoded bytes handed to the sessions but not written yet.
+     */
+    public long getOutstandingBytes() {
+        long bytes = 0L;
+        for (Channel channel : channels)
+            bytes += channel.outbound.getBytes();
+        return bytes;
+    }
+
+    /**
+     * Send an uncorrelated message. If the outbound queue is full, wait for
+     * room as long as the {@link MultipartIoServiceConfig#setSendTimeout send
+     * timeout} says.
+     *
+     * @param data
+     * @throws RejectedExecutionException
+     *             if there was no room in time.
+     */
     public <T> void send(T data) {
-        sendMessage(session, data);
+        send(data, config.getSendTimeoutNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Send an uncorrelated message. On an I/O processor thread a full queue
+     * rejects it at once, that thread may be the one that would make room.
+     *
+     * @param data
+     * @param timeout
+     *            time to wait for room in the outbound queue, negative to wait
+     *            as long as it takes, 0 not to wait.
+     * @param unit
+     * @throws RejectedExecutionException
+     *             if there was no room in time.
+     */
+    public <T> void send(T data, long timeout, TimeUnit unit) {
+        Channel channel = select();
+        if (channel != null)
+            write(channel, 0, data, timeout < 0L ? -1L : unit.toNanos(timeout));
+    }
+
+    /**
+     * Send a request and return a future of its response. The future is
+     * completed on the I/O thread, use the {@code *Async} stages of
+     * {@link CompletableFuture} for anything expensive.
+     *
+     * @param request
+     * @return future completed with the response, or exceptionally if the
+     *         request could not be written, found no room in the outbound
+     *         queue in time or the session was closed.
+     */
+    public <T, V> CompletableFuture<V> requestAsync(final T request) {
+        return requestAsync(request, 0L, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send a request and return a future of its response.
+     *
+     * @param request
+     * @param timeout
+     *            time to wait for the response, not positive for no limit.
+     * @param unit
+     * @return future completed with the response, or exceptionally with a
+     *         {@link TimeoutException} if none arrives in time.
+     */
+    @SuppressWarnings("unchecked")
+    public <T, V> CompletableFuture<V> requestAsync(final T request,
+            final long timeout, final TimeUnit unit) {
+        final CompletableFuture<Object> future = new CompletableFuture<>();
+        final Channel channel = select();
+        if (channel == null) {
+            future.completeExceptionally(new IOException(closed ? "client closed"
+                    : "not connected"));
+            return (CompletableFuture<V>) future;
+        }
+        final ConcurrentMap<Integer, CompletableFuture<Object>> pending = channel.pending;
+        final int correlationId = nextCorrelationId();
+        pending.put(correlationId, future);
+        if (timeout > 0L) {
+            final ScheduledFuture<?> expiry = TIMER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (pending.remove(correlationId, future))
+                        future.completeExceptionally(new TimeoutException(
+                                "no response in " + timeout + " " + unit));
+                }
+            }, timeout, unit);
+            future.whenComplete((v, e) -> expiry.cancel(false));
+        }
+        WriteFuture written;
+        try {
+            written = write(channel, correlationId, request,
+                    config.getSendTimeoutNanos());
+        } catch (RuntimeException e) {
+            if (pending.remove(correlationId, future))
+                future.completeExceptionally(e);
+            return (CompletableFuture<V>) future;
+        }
+        written.addListener(new IoFutureListener<WriteFuture>() {
+            @Override
+            public void operationComplete(WriteFuture f) {
+                if (!f.isWritten() && pending.remove(correlationId, future))
+                    future.completeExceptionally(f.getException());
+            }
+        });
+        return (CompletableFuture<V>) future;
+    }
+
+    @Override
+    protected void messageReceived(IoSession session, int correlationId,
+            Object messageObj) {
+        Channel channel = (Channel) session.getAttribute(CHANNEL);
+        CompletableFuture<Object> future = correlationId == 0
+                || channel == null ? null : channel.pending
+                .remove(correlationId);
+        if (future == null) {
+            super.messageReceived(session, correlationId, messageObj);
+            return;
+        }
+        future.complete(messageObj);
+    }
+
+    @Override
+    protected void sessionClosed(IoSession session) {
+        Channel channel;
+        synchronized (this) {
+            channel = (Channel) session.getAttribute(CHANNEL);
+        }
+        if (channel == null)
+            return;
+        removeChannel(channel);
+        channel.failPending(new IOException("session closed before response"));
     }
 
     @Override
@@ -45,4 +337,209 @@ public abstract class Client extends MultipartIoService {
         return new NioSocketConnector();
     }
 
+    /**
+     * Pick the least loaded session. The scan starts at a rotating offset so
+     * that ties are spread over the pool.
+     *
+     * @return null if there is no session.
+     */
+    private Channel select() {
+        Channel[] snapshot = channels;
+        int n = snapshot.length;
+        if (n == 0)
+            return null;
+        if (n == 1 && config.getMaxConnections() <= 1)
+            return snapshot[0];
+        int start = n == 1 ? 0 : (rotation.getAndIncrement() & Integer.MAX_VALUE)
+                % n;
+        Channel best = null;
+        int leastLoad = Integer.MAX_VALUE;
+        for (int i = 0; i < n; ++i) {
+            Channel channel = snapshot[(start + i) % n];
+            int load = channel.load();
+            if (load < leastLoad) {
+                best = channel;
+                leastLoad = load;
+                if (load == 0)
+                    break;
+            }
+        }
+        int peak;
+        while (leastLoad > (peak = leastLoadPeak.get())
+                && !leastLoadPeak.compareAndSet(peak, leastLoad))
+            ;
+        if (leastLoad >= config.getConnectionGrowThreshold()
+                && n < config.getMaxConnections())
+            grow();
+        return best;
+    }
+
+    /**
+     * Connect one more session in the background, one at a time.
+     */
+    private void grow() {
+        if (closed || !growing.compareAndSet(false, true))
+            return;
+        ((IoConnector) service).connect(remoteServerAddress).addListener(
+                new IoFutureListener<ConnectFuture>() {
+                    @Override
+                    public void operationComplete(ConnectFuture future) {
+                        if (!future.isConnected()) {
+                            LOGGER.warn("failed to connect "
+                                    + remoteServerAddress,
+                                    future.getException());
+                            growing.set(false);
+                            return;
+                        }
+                        final IoSession session = future.getSession();
+                        negotiateWithin(session).thenRun(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    addChannel(session);
+                                } finally {
+                                    growing.set(false);
+                                }
+                            }
+                        });
+                    }
+                });
+    }
+
+    /**
+     * Top the pool up to the minimum, or retire a session if one was idle
+     * whenever a message was sent since the last call.
+     */
+    private void resize() {
+        int peak = leastLoadPeak.getAndSet(0);
+        Channel[] snapshot = channels;
+        if (snapshot.length < config.getMinConnections()) {
+            grow();
+        } else if (peak == 0 && snapshot.length > config.getMinConnections()) {
+            final Channel channel = snapshot[snapshot.length - 1];
+            if (removeChannel(channel))
+                retire(channel);
+        }
+    }
+
+    /**
+     * Close a session taken out of the pool once its responses are in.
+     */
+    private void retire(final Channel channel) {
+        if (closed)
+            return;
+        if (channel.pending.isEmpty()) {
+            channel.session.close(false);
+            return;
+        }
+        TIMER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                retire(channel);
+            }
+        }, config.getPoolResizeIntervalNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Offer serializers on a new session, and give up waiting for the answer
+     * after the connect timeout. Frames then go out with
+     * {@link SerializerType#JDK} until it arrives, if ever.
+     */
+    private CompletableFuture<SerializerType> negotiateWithin(
+            final IoSession session) {
+        final CompletableFuture<SerializerType> agreed = negotiate(session);
+        if (agreed.isDone())
+            return agreed;
+        final long timeout = ((IoConnector) service).getConnectTimeoutMillis();
+        final ScheduledFuture<?> expiry = TIMER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (agreed.complete(SerializerType.JDK))
+                    LOGGER.warn("no handshake from {} in {} ms, sending {}",
+                            session, timeout, SerializerType.JDK);
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+        agreed.whenComplete((v, e) -> expiry.cancel(false));
+        return agreed;
+    }
+
+    /**
+     * Add the session to the pool, unless the client or the session is
+     * closed already. Under the same lock as {@link #sessionClosed}, so a
+     * session is either added before it is seen closed, or not at all.
+     */
+    private synchronized void addChannel(final IoSession session) {
+        if (closed || !session.isConnected()) {
+            session.close(true);
+            return;
+        }
+        Channel channel = new Channel(session, config);
+        session.setAttribute(CHANNEL, channel);
+        Channel[] snapshot = Arrays.copyOf(channels, channels.length + 1);
+        snapshot[snapshot.length - 1] = channel;
+        channels = snapshot;
+    }
+
+    private synchronized boolean removeChannel(final Channel channel) {
+        Channel[] snapshot = channels;
+        for (int i = 0; i < snapshot.length; ++i) {
+            if (snapshot[i] != channel)
+                continue;
+            Channel[] removed = new Channel[snapshot.length - 1];
+            System.arraycopy(snapshot, 0, removed, 0, i);
+            System.arraycopy(snapshot, i + 1, removed, i, removed.length - i);
+            channels = removed;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Write a frame once there is room for it in the outbound queue of the
+     * session, the slot is given back when the write completes.
+     */
+    private WriteFuture write(final Channel channel, final int correlationId,
+            final Object message, final long timeoutNanos) {
+        final OutboundQueue outbound = channel.outbound;
+        try {
+            if (!outbound.acquire(channel.session, timeoutNanos))
+                throw new RejectedExecutionException(
+                        "outbound queue still full after " + timeoutNanos
+                                + " ns: " + outbound.getMessages()
+                                + " messages, " + outbound.getBytes()
+                                + " bytes");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException(
+                    "interrupted while waiting for room in outbound queue", e);
+        }
+        Frame frame = new Frame(correlationId, message);
+        WriteFuture written;
+        try {
+            written = write(channel.session, frame);
+        } catch (RuntimeException e) {
+            outbound.release(0);
+            throw e;
+        }
+        final int size = frame.getEncodedSize();
+        outbound.encoded(size);
+        written.addListener(new IoFutureListener<WriteFuture>() {
+            @Override
+            public void operationComplete(WriteFuture f) {
+                outbound.release(size);
+            }
+        });
+        return written;
+    }
+
+    /**
+     * @return a non-zero id, 0 is reserved for uncorrelated messages.
+     */
+    private int nextCorrelationId() {
+        int id;
+        do {
+            id = sequence.incrementAndGet();
+        } while (id == 0);
+        return id;
+    }
 }
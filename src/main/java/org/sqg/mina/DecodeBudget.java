@@ -0,0 +1,136 @@
+package org.sqg.mina;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import org.apache.mina.core.session.AttributeKey;
+import org.apache.mina.core.session.IoSession;
+
+/**
+ * Memory budget for frames that are partially received, shared by all
+ * sessions of a service.
+ * <p>
+ * A frame reserves its full length once its length prefix is read but the
+ * rest has not arrived, which is when the session starts to accumulate it.
+ * If the budget cannot cover it, reading from the session is suspended and
+ * the session waits in line, until completed frames of other sessions free
+ * enough. Frames that arrive in one piece are decoded at once and take no
+ * budget. A single frame is always admitted while nothing else is reserved,
+ * so a frame larger than the budget still gets through, alone.
+ * </p>
+ */
+final class DecodeBudget {
+
+    private static final AttributeKey RESERVATION = new AttributeKey(
+            DecodeBudget.class, "reservation");
+
+    private final long capacity;
+    private long used;
+    /**
+     * Sessions holding or waiting for room, lets the release after every
+     * decoded frame skip the lock while nothing is reserved.
+     */
+    private volatile int holders;
+    private final Queue<IoSession> waiting = new ArrayDeque<>();
+
+    private static final class Reservation {
+
+        private long reserved;
+        private long needed;
+    }
+
+    /**
+     * @param capacity
+     *            bytes partially received frames may take in total.
+     */
+    DecodeBudget(final long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Reserve room for the frame the session is accumulating. Reading is
+     * suspended if there is none, the reservation is then made on behalf of
+     * the session as soon as room is freed and reading resumes.
+     *
+     * @param session
+     * @param bytes
+     *            full size of the frame, length prefix included, which may
+     *            exceed an {@code int}.
+     * @return whether the frame has its room.
+     */
+    synchronized boolean reserve(final IoSession session, final long bytes) {
+        Reservation r = reservation(session);
+        if (r.reserved > 0)
+            return true;
+        if (r.needed > 0)
+            return false;
+        ++holders;
+        if (fits(bytes)) {
+            used += bytes;
+            r.reserved = bytes;
+            return true;
+        }
+        r.needed = bytes;
+        waiting.add(session);
+        // Under the lock, a release must not resume before this suspends.
+        ReadSuspension.suspend(session);
+        return false;
+    }
+
+    /**
+     * Give back what the session holds, after its frame is decoded or the
+     * session is closed, and admit waiting sessions the room suffices for.
+     *
+     * @param session
+     */
+    void release(final IoSession session) {
+        if (holders == 0)
+            return;
+        Reservation r = (Reservation) session.getAttribute(RESERVATION);
+        if (r == null)
+            return;
+        synchronized (this) {
+            release(session, r);
+        }
+    }
+
+    private void release(final IoSession session, final Reservation r) {
+        if (r.reserved == 0 && r.needed == 0)
+            return;
+        --holders;
+        used -= r.reserved;
+        r.reserved = 0;
+        if (r.needed > 0) {
+            waiting.remove(session);
+            r.needed = 0;
+        }
+        IoSession next;
+        while ((next = waiting.peek()) != null) {
+            Reservation w = reservation(next);
+            if (!fits(w.needed))
+                break;
+            waiting.poll();
+            used += w.needed;
+            w.reserved = w.needed;
+            w.needed = 0;
+            ReadSuspension.resume(next);
+        }
+    }
+
+    synchronized long getUsed() {
+        return used;
+    }
+
+    private boolean fits(final long bytes) {
+        return used == 0L || used + bytes <= capacity;
+    }
+
+    private static Reservation reservation(final IoSession session) {
+        Reservation r = (Reservation) session.getAttribute(RESERVATION);
+        if (r == null) {
+            r = new Reservation();
+            session.setAttribute(RESERVATION, r);
+        }
+        return r;
+    }
+}
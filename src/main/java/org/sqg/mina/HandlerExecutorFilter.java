@@ -0,0 +1,141 @@
+package org.sqg.mina;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.session.AttributeKey;
+import org.apache.mina.core.session.IoSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands decoded messages over to an {@link Executor} so that the handler does
+ * not run on the I/O processor thread.
+ * <p>
+ * Unlike MINA's {@code ExecutorFilter}, per session ordering does not depend
+ * on a particular thread pool implementation: when ordered, the events of a
+ * session are queued and drained by at most one task at a time, so any
+ * executor works, a bounded pool as well as one thread per task.
+ * </p>
+ * <p>
+ * Only {@code messageReceived}, {@code sessionClosed} and
+ * {@code exceptionCaught} are offloaded, writes never go through here.
+ * </p>
+ */
+final class HandlerExecutorFilter extends IoFilterAdapter {
+
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(HandlerExecutorFilter.class);
+
+    /**
+     * Events of one session drained before the task yields to others.
+     */
+    private static final int MAX_EVENTS_PER_RUN = 64;
+
+    private static final AttributeKey TASKS = new AttributeKey(
+            HandlerExecutorFilter.class, "tasks");
+
+    private final Executor executor;
+    private final boolean ordered;
+
+    HandlerExecutorFilter(final Executor executor, final boolean ordered) {
+        this.executor = executor;
+        this.ordered = ordered;
+    }
+
+    @Override
+    public void messageReceived(final NextFilter nextFilter,
+            final IoSession session, final Object message) throws Exception {
+        execute(session, new Runnable() {
+            @Override
+            public void run() {
+                nextFilter.messageReceived(session, message);
+            }
+        });
+    }
+
+    @Override
+    public void sessionClosed(final NextFilter nextFilter,
+            final IoSession session) throws Exception {
+        execute(session, new Runnable() {
+            @Override
+            public void run() {
+                nextFilter.sessionClosed(session);
+            }
+        });
+    }
+
+    @Override
+    public void exceptionCaught(final NextFilter nextFilter,
+            final IoSession session, final Throwable cause) throws Exception {
+        execute(session, new Runnable() {
+            @Override
+            public void run() {
+                nextFilter.exceptionCaught(session, cause);
+            }
+        });
+    }
+
+    private void execute(final IoSession session, final Runnable event) {
+        if (!ordered) {
+            executor.execute(event);
+            return;
+        }
+        SessionTasks tasks = (SessionTasks) session.getAttribute(TASKS);
+        if (tasks == null) {
+            tasks = new SessionTasks();
+            SessionTasks old = (SessionTasks) session.setAttributeIfAbsent(
+                    TASKS, tasks);
+            if (old != null)
+                tasks = old;
+        }
+        tasks.submit(event);
+    }
+
+    /**
+     * Serial queue of the events of one session.
+     */
+    private final class SessionTasks implements Runnable {
+
+        private final Queue<Runnable> events = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        void submit(final Runnable event) {
+            events.offer(event);
+            schedule();
+        }
+
+        private void schedule() {
+            if (!scheduled.compareAndSet(false, true))
+                return;
+            try {
+                executor.execute(this);
+            } catch (RuntimeException e) {
+                scheduled.set(false);
+                throw e;
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                Runnable event;
+                for (int i = 0; i < MAX_EVENTS_PER_RUN
+                        && (event = events.poll()) != null; ++i) {
+                    try {
+                        event.run();
+                    } catch (Throwable t) {
+                        LOGGER.warn("unexpected exception from handler", t);
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+            }
+            if (!events.isEmpty())
+                schedule();
+        }
+    }
+}
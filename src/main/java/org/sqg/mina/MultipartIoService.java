@@ -1,24 +1,27 @@
 package org.sqg.mina;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
 
 import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.future.DefaultWriteFuture;
+import org.apache.mina.core.future.WriteFuture;
 import org.apache.mina.core.service.IoHandlerAdapter;
 import org.apache.mina.core.service.IoService;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.ProtocolCodecFilter;
 import org.apache.mina.filter.codec.ProtocolDecoderOutput;
 import org.apache.mina.filter.codec.ProtocolEncoderOutput;
+import org.apache.mina.filter.codec.RecoverableProtocolDecoderException;
 import org.apache.mina.filter.codec.demux.DemuxingProtocolCodecFactory;
 import org.apache.mina.filter.codec.demux.MessageDecoderAdapter;
 import org.apache.mina.filter.codec.demux.MessageDecoderResult;
 import org.apache.mina.filter.codec.demux.MessageEncoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.sqg.util.JdkSerializer;
+import org.sqg.mina.SerializerNegotiation.Handshake;
+import org.sqg.util.Compression;
 import org.sqg.util.Serializer;
 
 public abstract class MultipartIoService implements AutoCloseable {
@@ -31,48 +34,262 @@ public abstract class MultipartIoService implements AutoCloseable {
 
         private static final class Decoder extends MessageDecoderAdapter {
 
+            private final int maxFrameSize;
+            private final DecodeBudget budget;
+            private final SessionSerializers serializers;
+            private final ChunkedFrames chunks;
+            private final Compression compression;
+
+            Decoder(final int maxFrameSize, final DecodeBudget budget,
+                    final SessionSerializers serializers,
+                    final ChunkedFrames chunks, final Compression compression) {
+                this.maxFrameSize = maxFrameSize;
+                this.budget = budget;
+                this.serializers = serializers;
+                this.chunks = chunks;
+                this.compression = compression;
+            }
+
+            /**
+             * Check the length prefix as soon as it is there. An over-limit
+             * frame closes the session before any of it is buffered, a frame
+             * that is still arriving reserves its room in the budget.
+             */
             public MessageDecoderResult decodable(IoSession session, IoBuffer in) {
-                try {
-                return !in.prefixedDataAvailable(4) ? MessageDecoderResult.NEED_DATA
-                        : MessageDecoderResult.OK;
-                } catch (Exception e) {
+                if (in.remaining() < 4)
+                    return MessageDecoderResult.NEED_DATA;
+                int length = in.getInt(in.position());
+                if (length < HEADER_SIZE || length > maxFrameSize) {
+                    LOGGER.warn("closing {}, frame length {} not in [{}, {}]",
+                            session, length, HEADER_SIZE, maxFrameSize);
+                    session.close(true);
                     return MessageDecoderResult.NOT_OK;
                 }
+                if (in.remaining() - 4 >= length)
+                    return MessageDecoderResult.OK;
+                if (budget != null)
+                    budget.reserve(session, length + 4L);
+                return MessageDecoderResult.NEED_DATA;
             }
 
             /**
-             * Decode IoBuffer into {@code ByteBuffer}.
-             *
-             * @see ByteBuffer
+             * Deserialize the payload straight out of the received
+             * {@code IoBuffer}. The buffer is only narrowed to the frame, the
+             * bytes are never copied to an intermediate array.
+             * <p>
+             * The payload must be consumed here: the cumulative decoder
+             * compacts its buffer before decoded messages are handed on, so
+             * a slice kept in the output would be overwritten. A compressed
+             * payload is the exception, it is inflated into an array first.
+             * </p>
+             * <p>
+             * A frame that fails to decode is skipped, unless its serializer
+             * is {@link SerializerType#isStateful() stateful}: the session is
+             * closed then, its state may be out of step with the peer's.
+             * </p>
              */
             public MessageDecoderResult decode(IoSession session, IoBuffer in,
                     ProtocolDecoderOutput out) throws Exception {
-                byte[] buf = new byte[in.getInt()];
-                in.get(buf);
-                out.write(ByteBuffer.wrap(buf));
+                int length = in.getInt();
+                int limit = in.limit();
+                int end = in.position() + length;
+                byte serializerId = in.get();
+                int correlationId = in.getInt();
+                in.limit(end);
+                SerializerType serializer = null;
+                try {
+                    if (serializerId == CONTROL) {
+                        out.write(Handshake.read(in));
+                        return MessageDecoderResult.OK;
+                    }
+                    serializer = SerializerType
+                            .valueOf((byte) (serializerId
+                                    & ~(ChunkedFrames.FLAGS | COMPRESSED)));
+                    if (serializer == null)
+                        throw new IOException("unknown serializer "
+                                + serializerId);
+                    ByteBuffer payload = in.buf();
+                    if ((serializerId & COMPRESSED) != 0)
+                        payload = compression.decompress(payload,
+                                maxFrameSize);
+                    if ((serializerId & ChunkedFrames.CHUNK) != 0) {
+                        chunks.received(session, serializerId, serializer,
+                                serializers.get(session, serializer),
+                                correlationId, payload);
+                        return MessageDecoderResult.OK;
+                    }
+                    out.write(new Frame(serializer, correlationId, serializers
+                            .get(session, serializer).deserialize(payload)));
+                } catch (ClassNotFoundException | IOException
+                        | RuntimeException e) {
+                    if (serializer != null && serializer.isStateful()) {
+                        // The schemas or back references of the session may
+                        // be half read, the frames after it cannot be trusted.
+                        LOGGER.warn("closing {}, {} failed to decode", session,
+                                serializer, e);
+                        session.close(true);
+                    } else {
+                        // The frame is skipped as a whole and decoding goes
+                        // on. Thrown, the frames cumulated after it would be
+                        // lost.
+                        session.getFilterChain().fireExceptionCaught(
+                                new RecoverableProtocolDecoderException(e));
+                    }
+                } finally {
+                    in.limit(limit);
+                    in.position(end);
+                    if (budget != null)
+                        budget.release(session);
+                }
                 return MessageDecoderResult.OK;
             }
 
         }
 
-        private static final class Encoder implements
-                MessageEncoder<ByteBuffer> {
+        private static final class Encoder implements MessageEncoder<Frame> {
+
+            private final BufferPool pool;
+            private final MultipartIoServiceConfig config;
+            private final SessionSerializers serializers;
+            private final Compression compression;
+
+            Encoder(final BufferPool pool, final MultipartIoServiceConfig config,
+                    final SessionSerializers serializers,
+                    final Compression compression) {
+                this.pool = pool;
+                this.config = config;
+                this.serializers = serializers;
+                this.compression = compression;
+            }
 
+            /**
+             * Serialize the message straight into a pooled buffer. The length
+             * prefix is reserved up front and filled in afterwards, the
+             * processor frees the buffer back to the pool once written.
+             */
             @Override
-            public void encode(IoSession session, ByteBuffer message,
+            public void encode(IoSession session, Frame message,
                     ProtocolEncoderOutput out) throws Exception {
-                IoBuffer buf = IoBuffer.allocate(message.remaining() + 4);
-                buf.putInt(message.remaining());
-                buf.put(message);
+                IoBuffer buf = pool.allocate(config.getEncodeBufferSize(),
+                        config.isDirectBuffers());
+                try {
+                    buf.setAutoExpand(true);
+                    buf = putFrame(pool,
+                            serializers.get(session, message.serializer),
+                            compression, buf, message);
+                    buf.flip();
+                    message.encodedSize = buf.remaining();
+                } catch (Exception e) {
+                    buf.free();
+                    throw e;
+                }
+                out.write(buf);
+            }
+
+        }
+
+        private static final class HandshakeEncoder implements
+                MessageEncoder<Handshake> {
+
+            @Override
+            public void encode(IoSession session, Handshake message,
+                    ProtocolEncoderOutput out) throws Exception {
+                IoBuffer buf = IoBuffer.allocate(64).setAutoExpand(true);
+                buf.putInt(0);
+                buf.put(CONTROL);
+                buf.putInt(0);
+                message.write(buf);
+                buf.putInt(0, buf.position() - 4);
                 buf.flip();
                 out.write(buf);
             }
+        }
 
+        public MultipartDemuxingProtocolCodecFactory(final BufferPool pool,
+                final DecodeBudget budget,
+                final MultipartIoServiceConfig config,
+                final SessionSerializers serializers,
+                final ChunkedFrames chunks, final Compression compression) {
+            super.addMessageDecoder(new Decoder(config.getMaxFrameSize(),
+                    budget, serializers, chunks, compression));
+            super.addMessageEncoder(Frame.class, new Encoder(pool, config,
+                    serializers, compression));
+            super.addMessageEncoder(Handshake.class, new HandshakeEncoder());
         }
+    }
 
-        public MultipartDemuxingProtocolCodecFactory() {
-            super.addMessageDecoder(new Decoder());
-            super.addMessageEncoder(ByteBuffer.class, new Encoder());
+    /**
+     * Serializer id of control frames.
+     */
+    private static final byte CONTROL = 0;
+
+    /**
+     * Flag of the serializer id, the payload is compressed.
+     *
+     * @see Compression
+     */
+    static final byte COMPRESSED = 0x10;
+
+    /**
+     * Bytes after the length prefix that every frame has.
+     */
+    static final int HEADER_SIZE = 5;
+
+    /**
+     * One message on the wire:
+     * {@code [length][serializer id][correlation id][payload]}. The length
+     * prefix counts everything after itself.
+     */
+    static final class Frame {
+
+        /**
+         * Set when the frame is written if not given.
+         */
+        private SerializerType serializer;
+        private final int correlationId;
+        private final Object payload;
+        /**
+         * Bytes on the wire, set by whoever serializes the frame. Writes
+         * encode on the calling thread, so it is known once the write call
+         * returns.
+         */
+        private int encodedSize;
+
+        Frame(final int correlationId, final Object payload) {
+            this(null, correlationId, payload);
+        }
+
+        Frame(final SerializerType serializer, final int correlationId,
+                final Object payload) {
+            this.serializer = serializer;
+            this.correlationId = correlationId;
+            this.payload = payload;
+        }
+
+        @Override
+        public String toString() {
+            return "Frame{serializer = " + serializer + ", correlationId = "
+                    + correlationId + ", payload = " + payload + "}";
+        }
+
+        SerializerType getSerializer() {
+            return serializer;
+        }
+
+        int getCorrelationId() {
+            return correlationId;
+        }
+
+        Object getPayload() {
+            return payload;
+        }
+
+        int getEncodedSize() {
+            return encodedSize;
+        }
+
+        void setEncodedSize(final int value) {
+            encodedSize = value;
         }
     }
 
@@ -81,20 +298,30 @@ public abstract class MultipartIoService implements AutoCloseable {
         @Override
         public void messageReceived(IoSession session, Object message)
                 throws Exception {
-            Object request = MultipartIoService.this
-                    .decodeMessage((ByteBuffer) message);
-            Object response = MultipartIoService.this.handleMessage(request);
-            if (response != null)
-                session.write(MultipartIoService.this.encodeMessage(response));
+            if (message instanceof Handshake) {
+                negotiation.received(session, (Handshake) message);
+                return;
+            }
+            Frame frame = (Frame) message;
+            MultipartIoService.this.messageReceived(session,
+                    frame.correlationId, frame.payload);
         }
 
         @Override
         public void messageSent(IoSession session, Object message)
                 throws Exception {
-            ((ByteBuffer) message).flip();
             LOGGER.debug("SENT {}", message);
         }
 
+        @Override
+        public void sessionClosed(IoSession session) throws Exception {
+            if (budget != null)
+                budget.release(session);
+            chunks.sessionClosed(session);
+            SerializerNegotiation.sessionClosed(session);
+            MultipartIoService.this.sessionClosed(session);
+        }
+
         @Override
         public void exceptionCaught(IoSession session, Throwable cause)
                 throws Exception {
@@ -103,90 +330,228 @@ public abstract class MultipartIoService implements AutoCloseable {
     }
 
     protected IoService service;
-    protected final Serializer serializer = new JdkSerializer();
+    protected MultipartIoServiceConfig config;
+    /**
+     * The most preferred serializer. Which one a session sends with is agreed
+     * when it connects.
+     */
+    protected Serializer serializer;
+    private SerializerNegotiation negotiation;
+    private SessionSerializers serializers;
+    private BufferPool pool;
+    private DecodeBudget budget;
+    private WriteBatcher batcher;
+    private ChunkedFrames chunks;
+    private Compression compression;
+
+    /**
+     * Append one frame at the position of an auto-expanding pooled buffer.
+     * The length prefix is reserved up front and filled in afterwards, the
+     * payload is serialized straight into the buffer, then compressed in
+     * place if {@code compression} finds it worth it.
+     *
+     * @param pool
+     * @param serializer
+     *            of the frame's {@link SerializerType} for the session.
+     * @param compression
+     * @param buf
+     * @param frame
+     * @return the buffer holding the frame, {@code buf} unless the payload
+     *         outgrew it, in which case {@code buf} is freed.
+     * @throws IOException
+     */
+    static IoBuffer putFrame(final BufferPool pool,
+            final Serializer serializer, final Compression compression,
+            final IoBuffer buf, final Frame frame) throws IOException {
+        int start = buf.position();
+        buf.putInt(0);
+        buf.put(frame.serializer.getId());
+        buf.putInt(frame.correlationId);
+        ByteBuffer written = serializer.serialize(frame.payload, buf.buf());
+        IoBuffer out = buf;
+        if (written != buf.buf()) {
+            // The payload outgrew the buffer and went on in a larger copy.
+            out = pool.wrap(written);
+            out.setAutoExpand(true);
+            buf.free();
+        }
+        if (compression.compress(out.buf(), start + 4 + HEADER_SIZE))
+            out.put(start + 4, (byte) (frame.serializer.getId() | COMPRESSED));
+        out.putInt(start, out.position() - start - 4);
+        return out;
+    }
 
     /**
      * Only create service add codec and set handler.
      */
     protected void initService() {
+        initService(new MultipartIoServiceConfig());
+    }
+
+    /**
+     * Only create service add codec and set handler.
+     *
+     * @param aConfig
+     */
+    protected void initService(final MultipartIoServiceConfig aConfig) {
+        config = aConfig;
+        serializer = config.getSerializers().get(0)
+                .getSerializer(config.getKryoRegistry());
+        negotiation = new SerializerNegotiation(config.getSerializers(),
+                config.getKryoRegistry());
+        serializers = new SessionSerializers(config.getKryoRegistry());
+        pool = new BufferPool(config.getMaxPooledBufferSize(),
+                config.getMaxPooledBuffers());
+        if (config.getDecodeMemoryBudget() > 0L)
+            budget = new DecodeBudget(config.getDecodeMemoryBudget());
+        compression = new Compression(config.getCompressionThreshold());
+        if (config.getWriteBatchBytes() > 0)
+            batcher = new WriteBatcher(pool, config, serializers, compression);
+        chunks = new ChunkedFrames(pool, config, compression, batcher);
         service = createIoService();
         service.getFilterChain().addLast(
                 "demux-codec",
                 new ProtocolCodecFilter(
-                        new MultipartDemuxingProtocolCodecFactory()));
+                        new MultipartDemuxingProtocolCodecFactory(pool, budget,
+                                config, serializers, chunks, compression)));
+        if (config.getHandlerExecutor() != null)
+            service.getFilterChain().addLast(
+                    "handler-executor",
+                    new HandlerExecutorFilter(config.getHandlerExecutor(),
+                            config.isOrderedHandler()));
         service.setHandler(new Handler());
     }
 
     protected abstract IoService createIoService();
 
+    /**
+     * Whether the calling thread is an I/O processor, as MINA's own dead lock
+     * check tells. Walks the stack, keep it off the fast path.
+     */
+    static boolean isIoProcessorThread() {
+        for (StackTraceElement e : Thread.currentThread().getStackTrace())
+            if (e.getClassName().startsWith(
+                    "org.apache.mina.core.polling.AbstractPollingIoProcessor"))
+                return true;
+        return false;
+    }
+
+    /**
+     * @return compression of the frames, with what it saved and cost so far.
+     * @see MultipartIoServiceConfig#setCompressionThreshold
+     */
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Agree with the peer of a session just connected on the serializer to
+     * send with.
+     *
+     * @param session
+     * @return future of the agreed serializer.
+     */
+    CompletableFuture<SerializerType> negotiate(final IoSession session) {
+        return negotiation.offer(session);
+    }
+
     /**
      * Dispose the service.
      */
     @Override
     public void close() {
+        // Open batches go out, or fail, before the sessions are gone.
+        if (batcher != null)
+            batcher.close();
         if (service != null)
             service.dispose();
+        if (chunks != null)
+            chunks.close();
+        if (pool != null)
+            pool.clear();
     }
 
     protected <T> T decodeMessage(ByteBuffer message, Class<T> type) {
-        ByteArrayInputStream is = null;
-        if (message.hasArray())
-            is = new ByteArrayInputStream(message.array(),
-                    message.arrayOffset() + message.position(),
-                    message.remaining());
-        else {
-            byte[] data = new byte[message.remaining()];
-            message.get(data);
-            is = new ByteArrayInputStream(data);
-        }
-
         try {
-            return serializer.deserialize(is, type);
+            return serializer.deserialize(message.duplicate(), type);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-
     }
 
-    private Object decodeMessage(ByteBuffer message) {
-        ByteArrayInputStream is = null;
-        if (message.hasArray()) {
-            is = new ByteArrayInputStream(message.array(),
-                    message.arrayOffset() + message.position(),
-                    message.remaining());
-        } else {
-            byte[] data = new byte[message.remaining()];
-            message.get(data);
-            is = new ByteArrayInputStream(data);
-        }
+    /**
+     * handle message and create response object.
+     *
+     * @param messageObj
+     * @return response object if response is neccessary. Otherwise null.
+     */
+    protected abstract Object handleMessage(Object messageObj);
 
-        try {
-            return serializer.deserialize(is);
-        } catch (ClassNotFoundException | IOException e) {
-            throw new RuntimeException(e);
-        }
+    /**
+     * Dispatch a received message. The response of {@link #handleMessage}, if
+     * any, is sent back with the same correlation id so that the peer can
+     * match it with its request.
+     *
+     * @param session
+     * @param correlationId
+     *            id the peer attached to the message, 0 if uncorrelated.
+     * @param messageObj
+     */
+    protected void messageReceived(IoSession session, int correlationId,
+            Object messageObj) {
+        Object response = handleMessage(messageObj);
+        if (response != null)
+            sendMessage(session, correlationId, response);
+    }
+
+    /**
+     * Called after the session is closed.
+     *
+     * @param session
+     */
+    protected void sessionClosed(IoSession session) {
+    }
 
+    protected <T> WriteFuture sendMessage(IoSession session, T typedMessage) {
+        return sendMessage(session, 0, typedMessage);
     }
 
-    private ByteBuffer encodeMessage(Object messageObj) {
-        try (ByteArrayOutputStream os = new ByteArrayOutputStream()) {
-            serializer.serialize(messageObj, os);
-            return ByteBuffer.wrap(os.toByteArray());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+    protected <T> WriteFuture sendMessage(IoSession session,
+            int correlationId, T typedMessage) {
+        if (session == null)
+            return null;
+        return write(session, new Frame(correlationId, typedMessage));
     }
 
     /**
-     * handle message and create response object.
+     * Write a frame, on return its {@link Frame#getEncodedSize() size} is set
+     * unless encoding failed.
      *
-     * @param messageObj
-     * @return response object if response is neccessary. Otherwise null.
+     * @param session
+     * @param frame
+     * @return future of the write.
      */
-    protected abstract Object handleMessage(Object messageObj);
-
-    protected <T> void sendMessage(IoSession session, T typedMessage) {
-        if (session != null)
-            session.write(encodeMessage(typedMessage));
+    WriteFuture write(final IoSession session, final Frame frame) {
+        if (frame.serializer == null)
+            frame.serializer = SerializerNegotiation.serializerOf(session);
+        if (config.getChunkSize() > 0 && !frame.serializer.isStateful()) {
+            try {
+                return chunks.write(session, frame,
+                        serializers.get(session, frame.serializer));
+            } catch (IOException e) {
+                DefaultWriteFuture failed = new DefaultWriteFuture(session);
+                failed.setException(e);
+                return failed;
+            }
+        }
+        if (batcher != null)
+            return batcher.write(session, frame);
+        Object lock = serializers.writeLock(session, frame.serializer);
+        if (lock == null)
+            return session.write(frame);
+        // Encoding happens in this thread, keep it in the queue's order.
+        synchronized (lock) {
+            return session.write(frame);
+        }
     }
 }
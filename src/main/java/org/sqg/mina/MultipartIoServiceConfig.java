@@ -0,0 +1,476 @@
+package org.sqg.mina;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.sqg.util.KryoRegistry;
+
+/**
+ * Tuning knobs of a {@link MultipartIoService}. Setters return {@code this} for
+ * chained calls, the defaults match the behavior of a service created without
+ * a config.
+ */
+public class MultipartIoServiceConfig {
+
+    private boolean directBuffers;
+    private int encodeBufferSize = 256;
+    private int maxPooledBufferSize = 1 << 18;
+    private int maxPooledBuffers = 64;
+    private Executor handlerExecutor;
+    private boolean orderedHandler = true;
+    private int writeBatchBytes;
+    private long writeBatchWindowNanos = TimeUnit.MICROSECONDS.toNanos(200);
+    private int maxOutstandingMessages;
+    private long maxOutstandingBytes;
+    private long sendTimeoutNanos = -1L;
+    private int maxFrameSize = 16 << 20;
+    private int chunkSize;
+    private int maxInboundChunkedMessages = 64;
+    private int chunkWriterThreads = 16;
+    private int compressionThreshold;
+    private long decodeMemoryBudget;
+    private int minConnections = 1;
+    private int maxConnections = 1;
+    private int connectionGrowThreshold = 16;
+    private long poolResizeIntervalNanos = TimeUnit.SECONDS.toNanos(1);
+    private List<SerializerType> serializers = Collections
+            .unmodifiableList(Arrays.asList(SerializerType.KRYO_REGISTERED,
+                    SerializerType.KRYO, SerializerType.JDK));
+    private KryoRegistry kryoRegistry = KryoRegistry.DEFAULT;
+
+    public boolean isDirectBuffers() {
+        return directBuffers;
+    }
+
+    /**
+     * Serialize outbound frames into direct buffers, saving the copy the JDK
+     * makes from heap buffers into its own direct buffer on every socket
+     * write.
+     *
+     * @param value
+     * @return this config.
+     */
+    public MultipartIoServiceConfig setDirectBuffers(final boolean value) {
+        directBuffers = value;
+        return this;
+    }
+
+    public int getEncodeBufferSize() {
+        return encodeBufferSize;
+    }
+
+    /**
+     * Initial capacity of the buffer an outbound frame is serialized into. The
+     * buffer grows on demand.
+     *
+     * @param value
+     * @return this config.
+     */
+    public MultipartIoServiceConfig setEncodeBufferSize(final int value) {
+        encodeBufferSize = value;
+        return this;
+    }
+
+    public int getMaxPooledBufferSize() {
+        return maxPooledBufferSize;
+    }
+
+    /**
+     * Encode buffers with a larger capacity are not returned to the pool.
+     *
+     * @param value
+     * @return this config.
+     */
+    public MultipartIoServiceConfig setMaxPooledBufferSize(final int value) {
+        maxPooledBufferSize = value;
+        return this;
+    }
+
+    public int getMaxPooledBuffers() {
+        return maxPooledBuffers;
+    }
+
+    /**
+     * Maximum number of idle encode buffers kept per capacity.
+     *
+     * @param value
+     * @return this config.
+     */
+    public MultipartIoServiceConfig setMaxPooledBuffers(final int value) {
+        maxPooledBuffers = value;
+        return this;
+    }
+
+    public Executor getHandlerExecutor() {
+        return handlerExecutor;
+    }
+
+    /**
+     * Run {@code handleMessage} on this executor instead of the I/O processor
+     * thread, which then only reads, decodes and writes. {@code null}, the
+     * default, keeps everything on the I/O thread.
+     * <p>
+     * The executor is not shut down by the service. A bounded pool should use
+     * {@link java.util.concurrent.ThreadPoolExecutor.CallerRunsPolicy} so that
+     * a saturated pool throttles the I/O thread instead of failing events.
+     * </p>
+     *
+     * @param value
+     * @return this config.
+     */
+    public MultipartIoServiceConfig setHandlerExecutor(final Executor value) {
+        handlerExecutor = value;
+        return this;
+    }
+
+    public boolean isOrderedHandler() {
+        return orderedHandler;
+    }
+
+    /**
+     * Whether messages of one session are handled one at a time in arrival
+     * order (the default), or concurrently. Only relevant with a
+     * {@link #setHandlerExecutor handler executor}.
+     *
+     * @param value
+     * @return this config.
+     */
+    public MultipartIoServiceConfig setOrderedHandler(final boolean value) {
+        orderedHandler = value;
+        return this;
+    }
+
+    public int getWriteBatchBytes() {
+        return writeBatchBytes;
+    }
+
+    /**
+     * Coalesce outbound frames of a session into one buffer, which is written
+     * once it holds this many bytes or the {@link #setWriteBatchWindow batch
+     * window} has passed since its first frame. Many small frames then cost
+     * one write call instead of one each. 0, the default, writes every frame
+     * on its own.
+     *
+     * @param value
+     * @return this config.
+     */
+    public MultipartIoServiceConfig setWriteBatchBytes(final int value) {
+        writeBatchBytes = value;
+        return this;
+    }
+
+    public long getWriteBatchWindowNanos() {
+        return writeBatchWindowNanos;
+    }
+
+    /**
+     * How long a frame may wait for others to share its write, only relevant
+     * with {@link #setWriteBatchBytes write batching}. Defaults to 200
+     * microseconds.
+     *
+     * @param duration
+     * @param unit
+     * @return this config.
+     */
+    public MultipartIoServiceConfig setWriteBatchWindow(final long duration,
+            final TimeUnit unit) {
+        writeBatchWindowNanos = unit.toNanos(duration);
+        return this;
+    }
+
+    public int getMaxOutstandingMessages() {
+        return maxOutstandingMessages;
+    }
+
+    /**
+     * Maximum number of frames a {@link Client} may have queued for writing
+     * before sending waits for room, see {@link #setSendTimeout}. 0, the
+     * default, for no limit.
+     *
+     * @param value
+     * @return this config.
+     */
+    public MultipartIoServiceConfig setMaxOutstandingMessages(final int value) {
+        maxOutstandingMessages = value;
+        return this;
+    }
+
+    public long getMaxOutstandingBytes() {
+        return maxOutstandingBytes;
+    }
+
+    /**
+     * Maximum number of encoded bytes a {@link Client} may have queued for
+     * writing before sending waits for room. The last frame admitted may
+     * overshoot it by its own size. 0, the default, for no limit.
+     *
+     * @param value
+     * @return this config.
+     */
+    public MultipartIoServiceConfig setMaxOutstandingBytes(final long value) {
+        maxOutstandingBytes = value;
+        return this;
+    }
+
+    public long getSendTimeoutNanos() {
+        return sendTimeoutNanos;
+    }
+
+    /**
+     * How long a {@link Client} send waits for room in a full outbound queue
+     * before it is rejected: negative, the default, waits as long as it takes,
+     * 0 rejects at once. {@link Client#send(Object, long, TimeUnit)} takes a
+     * timeout of its own.
+     *
+     * @param duration
+     * @param unit
+     * @return this config.
+     */
+    public MultipartIoServiceConfig setSendTimeout(final long duration,
+            final TimeUnit unit) {
+        sendTimeoutNanos = duration < 0L ? -1L : unit.toNanos(duration);
+        return this;
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * Largest inbound frame accepted, correlation id and payload included. A
+     * peer announcing a larger one is disconnected before any of it is
+     * buffered, and compressed payloads may not inflate beyond it. Defaults
+     * to 16 MB, send larger messages in {@link #setChunkSize chunks} rather
+     * than raising it.
+     *
+     * @param value
+     * @return this config.
+     */
+    public MultipartIoServiceConfig setMaxFrameSize(final int value) {
+        maxFrameSize = value;
+        return this;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Send messages whose payload is larger than this many bytes as a series
+     * of frames of at most this size, written while the message is still
+     * being serialized. The peer deserializes them as they arrive, so
+     * neither side holds the whole message, only a few chunks. Applies to
+     * serializers that are not stateful. With {@link #setWriteBatchBytes
+     * write batching}, messages that fit one chunk are batched, larger ones
+     * are not. Chunked messages sent from an I/O processor thread are sent by
+     * {@link #setChunkWriterThreads writer threads}. 0, the default, writes
+     * every message as one frame. Chunks are received regardless.
+     *
+     * @param value
+     * @return this config.
+     */
+    public MultipartIoServiceConfig setChunkSize(final int value) {
+        chunkSize = value;
+        return this;
+    }
+
+    public int getMaxInboundChunkedMessages() {
+        return maxInboundChunkedMessages;
+    }
+
+    /**
+     * Chunked messages a service receives at once, each deserialized by a
+     * thread of its own as its chunks arrive. The chunks of any more are
+     * dropped, and the message is reported like a frame that cannot be
+     * decoded. Defaults to 64.
+     *
+     * @param value
+     * @return this config.
+     */
+    public MultipartIoServiceConfig setMaxInboundChunkedMessages(
+            final int value) {
+        maxInboundChunkedMessages = value;
+        return this;
+    }
+
+    public int getChunkWriterThreads() {
+        return chunkWriterThreads;
+    }
+
+    /**
+     * Threads sending the chunked messages written from an I/O processor
+     * thread, such as the responses of handlers that run there. The I/O
+     * processor cannot wait for its own writes, so such a message is handed
+     * to one of these, which waits for its chunks to be written like any
+     * other sender. Messages beyond wait in line. Defaults to 16.
+     *
+     * @param value
+     * @return this config.
+     */
+    public MultipartIoServiceConfig setChunkWriterThreads(final int value) {
+        chunkWriterThreads = value;
+        return this;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Deflate the payload of outbound frames larger than this many bytes, at
+     * the fastest level, and send it compressed if it got smaller. Chunks are
+     * compressed one by one. What it saves and costs is in
+     * {@link MultipartIoService#getCompression()}. 0, the default, compresses
+     * nothing. Compressed frames are received regardless, and rejected if
+     * larger than the {@link #setMaxFrameSize maximum frame size} once
+     * decompressed.
+     *
+     * @param value
+     * @return this config.
+     */
+    public MultipartIoServiceConfig setCompressionThreshold(final int value) {
+        compressionThreshold = value;
+        return this;
+    }
+
+    public long getDecodeMemoryBudget() {
+        return decodeMemoryBudget;
+    }
+
+    /**
+     * Bytes that partially received frames may take across all sessions of
+     * the service. A session whose next frame does not fit stops being read
+     * until other frames are decoded. 0, the default, for no limit.
+     *
+     * @param value
+     * @return this config.
+     */
+    public MultipartIoServiceConfig setDecodeMemoryBudget(final long value) {
+        decodeMemoryBudget = value;
+        return this;
+    }
+
+    public int getMinConnections() {
+        return minConnections;
+    }
+
+    /**
+     * Sessions a {@link Client} opens up front and keeps at least, lost ones
+     * are reconnected. Defaults to 1. Set the maximum first when raising both.
+     *
+     * @param value
+     * @return this config.
+     * @throws IllegalArgumentException
+     *             if less than 1 or more than the maximum.
+     */
+    public MultipartIoServiceConfig setMinConnections(final int value) {
+        if (value < 1 || value > maxConnections)
+            throw new IllegalArgumentException("min connections " + value
+                    + " not in [1, " + maxConnections + "]");
+        minConnections = value;
+        return this;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Sessions a {@link Client} may grow to under load, each is served by its
+     * own I/O processor where possible. Defaults to 1, a single session.
+     *
+     * @param value
+     * @return this config.
+     * @throws IllegalArgumentException
+     *             if less than the minimum.
+     */
+    public MultipartIoServiceConfig setMaxConnections(final int value) {
+        if (value < minConnections)
+            throw new IllegalArgumentException("max connections " + value
+                    + " < min connections " + minConnections);
+        maxConnections = value;
+        return this;
+    }
+
+    public int getConnectionGrowThreshold() {
+        return connectionGrowThreshold;
+    }
+
+    /**
+     * Load of the least loaded session, in requests awaiting a response and
+     * frames not written yet, from which a {@link Client} opens another
+     * session. Defaults to 16.
+     *
+     * @param value
+     * @return this config.
+     */
+    public MultipartIoServiceConfig setConnectionGrowThreshold(final int value) {
+        connectionGrowThreshold = value;
+        return this;
+    }
+
+    public long getPoolResizeIntervalNanos() {
+        return poolResizeIntervalNanos;
+    }
+
+    /**
+     * How often a {@link Client} reconnects sessions lost below the minimum,
+     * and checks whether it can do with one less, which it can if an idle
+     * session was at hand for every message since the last check. Defaults
+     * to 1 second.
+     *
+     * @param duration
+     * @param unit
+     * @return this config.
+     */
+    public MultipartIoServiceConfig setPoolResizeInterval(final long duration,
+            final TimeUnit unit) {
+        poolResizeIntervalNanos = unit.toNanos(duration);
+        return this;
+    }
+
+    public List<SerializerType> getSerializers() {
+        return serializers;
+    }
+
+    /**
+     * Serializers this side is willing to send with, most preferred first.
+     * When a client connects, it offers its list and the server takes the
+     * first entry it has in its own list as well. Frames of any serializer
+     * are decoded regardless. Defaults to
+     * {@link SerializerType#KRYO_REGISTERED}, {@link SerializerType#KRYO}, then
+     * {@link SerializerType#JDK}.
+     *
+     * @param values
+     * @return this config.
+     */
+    public MultipartIoServiceConfig setSerializers(
+            final SerializerType... values) {
+        if (values.length == 0)
+            throw new IllegalArgumentException("no serializer");
+        serializers = Collections.unmodifiableList(Arrays.asList(values
+                .clone()));
+        return this;
+    }
+
+    public KryoRegistry getKryoRegistry() {
+        return kryoRegistry;
+    }
+
+    /**
+     * Classes {@link SerializerType#KRYO_REGISTERED} writes as ids, which the
+     * peer must have as well for it to be agreed. Defaults to
+     * {@link KryoRegistry#DEFAULT}, message types of the application can be
+     * added with {@link KryoRegistry#with(Class...)}.
+     *
+     * @param value
+     * @return this config.
+     */
+    public MultipartIoServiceConfig setKryoRegistry(final KryoRegistry value) {
+        kryoRegistry = value;
+        return this;
+    }
+}
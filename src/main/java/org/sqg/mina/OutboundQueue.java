@@ -0,0 +1,106 @@
+package org.sqg.mina;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.core.session.IoSession;
+
+/**
+ * Bookkeeping of the frames a client has handed to its session but which are
+ * not written to the socket yet.
+ * <p>
+ * A frame takes its slot before it is encoded, its size is only known
+ * afterwards. So the byte limit is checked on admission and may be overshot by
+ * the last admitted frame, the message limit is exact. Slots are given back
+ * when the write future completes, written or failed, which includes the
+ * writes dropped when the session closes.
+ * </p>
+ */
+final class OutboundQueue {
+
+    private final int maxMessages;
+    private final long maxBytes;
+    private int messages;
+    private long bytes;
+
+    /**
+     * @param maxMessages
+     *            not positive for no limit.
+     * @param maxBytes
+     *            not positive for no limit.
+     */
+    OutboundQueue(final int maxMessages, final long maxBytes) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Take a slot for one frame, waiting for room if the queue is full. An
+     * I/O processor thread never waits: room is made by the processor
+     * writing the queue out, maybe the very thread waiting.
+     *
+     * @param session
+     *            waiting stops once it is closing.
+     * @param timeoutNanos
+     *            negative to wait as long as it takes, 0 not to wait at all.
+     * @return false if there was no room in time, or at once on an I/O
+     *         processor thread.
+     * @throws InterruptedException
+     */
+    synchronized boolean acquire(final IoSession session,
+            final long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        boolean checked = false;
+        while (isFull() && !session.isClosing()) {
+            if (!checked) {
+                checked = true;
+                if (timeoutNanos != 0L
+                        && MultipartIoService.isIoProcessorThread())
+                    return false;
+            }
+            if (timeoutNanos < 0L) {
+                wait();
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0L)
+                return false;
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        ++messages;
+        return true;
+    }
+
+    /**
+     * Account the encoded size of a frame that took a slot.
+     *
+     * @param size
+     */
+    synchronized void encoded(final int size) {
+        bytes += size;
+    }
+
+    /**
+     * Give back the slot of a frame that is written or failed.
+     *
+     * @param size
+     *            the size passed to {@link #encoded}, 0 if never encoded.
+     */
+    synchronized void release(final int size) {
+        --messages;
+        bytes -= size;
+        notifyAll();
+    }
+
+    synchronized int getMessages() {
+        return messages;
+    }
+
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    private boolean isFull() {
+        return (maxMessages > 0 && messages >= maxMessages)
+                || (maxBytes > 0L && bytes >= maxBytes);
+    }
+}
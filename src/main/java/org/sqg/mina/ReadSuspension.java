@@ -0,0 +1,76 @@
+package org.sqg.mina;
+
+import org.apache.mina.core.session.AbstractIoSession;
+import org.apache.mina.core.session.AttributeKey;
+import org.apache.mina.core.session.IoSession;
+
+/**
+ * Reading of a session suspended for more than one reason at a time, by the
+ * {@link DecodeBudget} and by {@link ChunkedFrames}. The session has a single
+ * flag, reading resumes once every reason to suspend it is gone.
+ */
+final class ReadSuspension {
+
+    private static final AttributeKey COUNT = new AttributeKey(
+            ReadSuspension.class, "count");
+
+    private int count;
+
+    private ReadSuspension() {
+    }
+
+    /**
+     * Suspend reading, or keep it suspended, until a matching
+     * {@link #resume}.
+     *
+     * @param session
+     */
+    static void suspend(final IoSession session) {
+        ReadSuspension s = of(session);
+        synchronized (s) {
+            if (s.count++ == 0)
+                session.suspendRead();
+        }
+    }
+
+    /**
+     * Drop one reason to suspend reading, and resume it if it was the last.
+     *
+     * @param session
+     */
+    static void resume(final IoSession session) {
+        ReadSuspension s = of(session);
+        synchronized (s) {
+            if (s.count > 0 && --s.count == 0)
+                resumeRead(session);
+        }
+    }
+
+    /**
+     * {@link IoSession#resumeRead()} sets the interest in reading from the
+     * calling thread, a processor blocked in select() only sees it when it
+     * next wakes up, up to a second later. Scheduling an (empty) flush wakes
+     * it up at once.
+     *
+     * @param session
+     */
+    @SuppressWarnings("unchecked")
+    private static void resumeRead(final IoSession session) {
+        session.resumeRead();
+        if (session instanceof AbstractIoSession)
+            ((AbstractIoSession) session).getProcessor().flush(
+                    (AbstractIoSession) session);
+    }
+
+    private static ReadSuspension of(final IoSession session) {
+        ReadSuspension s = (ReadSuspension) session.getAttribute(COUNT);
+        if (s == null) {
+            s = new ReadSuspension();
+            ReadSuspension old = (ReadSuspension) session.setAttributeIfAbsent(
+                    COUNT, s);
+            if (old != null)
+                s = old;
+        }
+        return s;
+    }
+}
@@ -0,0 +1,204 @@
+package org.sqg.mina;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.session.AttributeKey;
+import org.apache.mina.core.session.IoSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sqg.util.KryoRegistry;
+
+/**
+ * Agrees on the serializer of a session when it connects.
+ * <p>
+ * The connecting side offers the serializers it is willing to send in order
+ * of preference, the other side picks the first of them it is willing to
+ * send as well and accepts it. Both then send with it. Until then, or if there
+ * is nothing in common, frames go out with {@link SerializerType#JDK}.
+ * Decoding follows the id in each frame, so frames sent before the agreement
+ * are understood just as well.
+ * </p>
+ * <p>
+ * {@link SerializerType#KRYO_REGISTERED} is only picked when both sides have
+ * the same {@link KryoRegistry}, whose fingerprint goes along with the offer.
+ * </p>
+ */
+final class SerializerNegotiation {
+
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(SerializerNegotiation.class);
+
+    private static final AttributeKey SERIALIZER = new AttributeKey(
+            SerializerNegotiation.class, "serializer");
+    private static final AttributeKey AGREED = new AttributeKey(
+            SerializerNegotiation.class, "agreed");
+
+    /**
+     * Control frame of the handshake,
+     * {@code [type][registry fingerprint:4][serializer id]...} after the frame
+     * header.
+     */
+    static final class Handshake {
+
+        static final byte OFFER = 1;
+        static final byte ACCEPT = 2;
+
+        private final byte type;
+        private final int registry;
+        private final List<SerializerType> serializers;
+
+        Handshake(final byte type, final int registry,
+                final List<SerializerType> serializers) {
+            this.type = type;
+            this.registry = registry;
+            this.serializers = serializers;
+        }
+
+        /**
+         * Read the rest of a control frame, ids unknown here are skipped.
+         *
+         * @param in
+         *            limited to the frame.
+         * @return the handshake.
+         */
+        static Handshake read(final IoBuffer in) {
+            byte type = in.get();
+            int registry = in.getInt();
+            List<SerializerType> serializers = new ArrayList<>();
+            while (in.hasRemaining()) {
+                SerializerType serializer = SerializerType.valueOf(in.get());
+                if (serializer != null)
+                    serializers.add(serializer);
+            }
+            return new Handshake(type, registry, serializers);
+        }
+
+        void write(final IoBuffer out) {
+            out.put(type);
+            out.putInt(registry);
+            for (SerializerType serializer : serializers)
+                out.put(serializer.getId());
+        }
+
+        @Override
+        public String toString() {
+            return "Handshake{type = " + type + ", registry = "
+                    + Integer.toHexString(registry) + ", serializers = "
+                    + serializers + "}";
+        }
+    }
+
+    private final List<SerializerType> preference;
+    private final int registry;
+
+    /**
+     * @param preference
+     *            serializers willing to send, most preferred first.
+     * @param registry
+     *            used by {@link SerializerType#KRYO_REGISTERED}.
+     */
+    SerializerNegotiation(final List<SerializerType> preference,
+            final KryoRegistry registry) {
+        this.preference = preference;
+        this.registry = registry.getFingerprint();
+    }
+
+    /**
+     * @param session
+     * @return serializer to send with on the session.
+     */
+    static SerializerType serializerOf(final IoSession session) {
+        SerializerType serializer = (SerializerType) session
+                .getAttribute(SERIALIZER);
+        return serializer == null ? SerializerType.JDK : serializer;
+    }
+
+    /**
+     * Start the handshake on a session just connected.
+     *
+     * @param session
+     * @return future of the agreed serializer, completed with
+     *         {@link SerializerType#JDK} if there is nothing in common or the
+     *         session closes first.
+     */
+    CompletableFuture<SerializerType> offer(final IoSession session) {
+        CompletableFuture<SerializerType> agreed = new CompletableFuture<>();
+        session.setAttribute(AGREED, agreed);
+        session.write(new Handshake(Handshake.OFFER, registry, preference));
+        if (session.isClosing())
+            agreed.complete(SerializerType.JDK);
+        return agreed;
+    }
+
+    /**
+     * Answer an offer, or take the serializer the peer accepted.
+     *
+     * @param session
+     * @param handshake
+     */
+    void received(final IoSession session, final Handshake handshake) {
+        if (handshake.type == Handshake.OFFER) {
+            SerializerType chosen = null;
+            for (SerializerType serializer : handshake.serializers)
+                if (accepts(serializer, handshake.registry)) {
+                    chosen = serializer;
+                    break;
+                }
+            List<SerializerType> accepted = new ArrayList<>(1);
+            if (chosen != null)
+                accepted.add(chosen);
+            // The answer goes out before any frame written with the choice.
+            session.write(new Handshake(Handshake.ACCEPT, registry, accepted));
+            agree(session, chosen);
+        } else if (handshake.type == Handshake.ACCEPT) {
+            agree(session, handshake.serializers.isEmpty() ? null
+                    : handshake.serializers.get(0));
+        } else {
+            LOGGER.warn("ignoring {} from {}", handshake, session);
+        }
+    }
+
+    private boolean accepts(final SerializerType serializer,
+            final int peerRegistry) {
+        if (!preference.contains(serializer))
+            return false;
+        if (serializer == SerializerType.KRYO_REGISTERED
+                && peerRegistry != registry) {
+            LOGGER.debug("registry {} differs from {}, skipping {}",
+                    Integer.toHexString(peerRegistry),
+                    Integer.toHexString(registry), serializer);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Give up waiting for an agreement on a closed session.
+     *
+     * @param session
+     */
+    static void sessionClosed(final IoSession session) {
+        @SuppressWarnings("unchecked")
+        CompletableFuture<SerializerType> agreed = (CompletableFuture<SerializerType>) session
+                .getAttribute(AGREED);
+        if (agreed != null)
+            agreed.complete(SerializerType.JDK);
+    }
+
+    private static void agree(final IoSession session,
+            final SerializerType serializer) {
+        if (serializer == null)
+            LOGGER.warn("no serializer in common with {}, sending {}",
+                    session, SerializerType.JDK);
+        else
+            session.setAttribute(SERIALIZER, serializer);
+        @SuppressWarnings("unchecked")
+        CompletableFuture<SerializerType> agreed = (CompletableFuture<SerializerType>) session
+                .getAttribute(AGREED);
+        if (agreed != null)
+            agreed.complete(serializerOf(session));
+    }
+}
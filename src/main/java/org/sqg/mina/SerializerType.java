@@ -0,0 +1,110 @@
+package org.sqg.mina;
+
+import org.sqg.util.CompactSerializer;
+import org.sqg.util.JdkSerializer;
+import org.sqg.util.KryoRegistry;
+import org.sqg.util.KryoSerializer;
+import org.sqg.util.Serializer;
+import org.sqg.util.SessionJdkSerializer;
+import org.sqg.util.ThriftSerializer;
+
+/**
+ * Serializers a {@link MultipartIoService} can put on the wire. Every frame
+ * carries the id of the one its payload is written with, so a peer decodes
+ * any of them, and peers agree on the one to send when they connect.
+ */
+public enum SerializerType {
+
+    /**
+     * Java serialization, supported by every peer and used until another is
+     * agreed.
+     */
+    JDK(1, new JdkSerializer()),
+    /**
+     * Kryo, with class names on the wire.
+     */
+    KRYO(2, new KryoSerializer()),
+    /**
+     * Kryo, with ids from a {@link KryoRegistry} instead of class names. Only
+     * agreed when both peers have the same registry.
+     */
+    KRYO_REGISTERED(3, null),
+    /**
+     * {@link CompactSerializer}, which sends the schema of a class once per
+     * connection, so every session has its own.
+     */
+    COMPACT(4, null),
+    /**
+     * {@link ThriftSerializer}, Thrift structs with the compact protocol and
+     * other objects with Kryo.
+     */
+    THRIFT(5, new ThriftSerializer()),
+    /**
+     * {@link SessionJdkSerializer}, Java serialization sending class
+     * descriptors once per connection, so every session has its own.
+     */
+    JDK_SESSION(6, null);
+
+    private static final SerializerType[] BY_ID = new SerializerType[256];
+
+    static {
+        for (SerializerType type : values())
+            BY_ID[type.id & 0xff] = type;
+    }
+
+    private final byte id;
+    private final Serializer serializer;
+
+    private SerializerType(final int id, final Serializer serializer) {
+        this.id = (byte) id;
+        this.serializer = serializer;
+    }
+
+    /**
+     * @return id on the wire, never 0 which marks control frames.
+     */
+    public byte getId() {
+        return id;
+    }
+
+    /**
+     * @return the serializer, with {@link KryoRegistry#DEFAULT} if it takes a
+     *         registry.
+     */
+    public Serializer getSerializer() {
+        return getSerializer(KryoRegistry.DEFAULT);
+    }
+
+    /**
+     * @param registry
+     * @return the serializer, with {@code registry} if it takes one. A new
+     *         one on every call for {@link #isStateful() stateful} ones.
+     */
+    public Serializer getSerializer(final KryoRegistry registry) {
+        if (serializer != null)
+            return serializer;
+        switch (this) {
+        case COMPACT:
+            return new CompactSerializer();
+        case JDK_SESSION:
+            return new SessionJdkSerializer();
+        default:
+            return registry.getSerializer();
+        }
+    }
+
+    /**
+     * @return whether the serializer keeps state per connection.
+     */
+    public boolean isStateful() {
+        return this == COMPACT || this == JDK_SESSION;
+    }
+
+    /**
+     * @param id
+     * @return the type with this id, null if unknown.
+     */
+    public static SerializerType valueOf(final byte id) {
+        return BY_ID[id & 0xff];
+    }
+}
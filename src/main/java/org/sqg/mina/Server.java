@@ -21,7 +21,18 @@ public abstract class Server extends MultipartIoService {
      *            listen port.
      */
     public Server(int port) {
-        initService();
+        this(port, new MultipartIoServiceConfig());
+    }
+
+    /**
+     * Construct server and start listen.
+     *
+     * @param port
+     *            listen port.
+     * @param config
+     */
+    public Server(int port, MultipartIoServiceConfig config) {
+        initService(config);
         try {
             SocketAddress address = new InetSocketAddress(port);
             LOGGER.info("server starting at " + address + " ...");
@@ -52,6 +63,9 @@ public abstract class Server extends MultipartIoService {
 
     @Override
     protected IoService createIoService() {
-        return new NioSocketAcceptor();
+        NioSocketAcceptor acceptor = new NioSocketAcceptor();
+        // Rebind at once after a restart even with connections in TIME_WAIT.
+        acceptor.setReuseAddress(true);
+        return acceptor;
     }
 }
\ No newline at end of file
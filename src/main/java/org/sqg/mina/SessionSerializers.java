@@ -0,0 +1,61 @@
+package org.sqg.mina;
+
+import org.apache.mina.core.session.AttributeKey;
+import org.apache.mina.core.session.IoSession;
+import org.sqg.util.KryoRegistry;
+import org.sqg.util.Serializer;
+
+/**
+ * Resolves the serializer of a {@link SerializerType} for a session. Those
+ * that keep state per connection are created once per session and kept in
+ * it, shared by both directions; the others are shared by all sessions.
+ */
+final class SessionSerializers {
+
+    private static final AttributeKey[] KEYS = new AttributeKey[SerializerType
+            .values().length];
+
+    static {
+        for (SerializerType type : SerializerType.values())
+            KEYS[type.ordinal()] = new AttributeKey(SessionSerializers.class,
+                    type.name());
+    }
+
+    private final KryoRegistry registry;
+
+    SessionSerializers(final KryoRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * @param session
+     * @param type
+     * @return the serializer of {@code type} for {@code session}.
+     */
+    Serializer get(final IoSession session, final SerializerType type) {
+        if (!type.isStateful())
+            return type.getSerializer(registry);
+        AttributeKey key = KEYS[type.ordinal()];
+        Serializer serializer = (Serializer) session.getAttribute(key);
+        if (serializer == null) {
+            serializer = type.getSerializer(registry);
+            Serializer old = (Serializer) session.setAttributeIfAbsent(key,
+                    serializer);
+            if (old != null)
+                serializer = old;
+        }
+        return serializer;
+    }
+
+    /**
+     * A stateful serializer expects frames in the order it wrote them, so
+     * encoding and queueing a frame must not interleave with another write.
+     *
+     * @param session
+     * @param type
+     * @return the lock to hold while writing, null if none is needed.
+     */
+    Object writeLock(final IoSession session, final SerializerType type) {
+        return type.isStateful() ? get(session, type) : null;
+    }
+}
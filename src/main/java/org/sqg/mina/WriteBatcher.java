@@ -0,0 +1,239 @@
+package org.sqg.mina;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.future.DefaultWriteFuture;
+import org.apache.mina.core.future.IoFutureListener;
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.core.session.AttributeKey;
+import org.apache.mina.core.session.IoSession;
+import org.sqg.util.Compression;
+
+/**
+ * Coalesces the frames written to a session within a short window into one
+ * buffer and one {@code session.write}.
+ * <p>
+ * Frames are serialized straight into the open batch of their session, so
+ * batching costs no extra copy. Frames {@link ChunkedFrames} serialized on
+ * their own, because they might have taken more than one chunk, are copied
+ * in. A batch is written when it reaches the byte
+ * budget or when the window since its first frame has passed, whichever comes
+ * first. All frames of a batch share one {@link WriteFuture}. Batches still
+ * open when the batcher is closed are written, or fail if their session is
+ * gone.
+ * </p>
+ */
+final class WriteBatcher {
+
+    private static final AttributeKey BATCH = new AttributeKey(
+            WriteBatcher.class, "batch");
+
+    private final BufferPool pool;
+    private final MultipartIoServiceConfig config;
+    private final SessionSerializers serializers;
+    private final Compression compression;
+    private final ScheduledThreadPoolExecutor timer;
+    /**
+     * Batches holding frames not written yet.
+     */
+    private final Set<Batch> open = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    WriteBatcher(final BufferPool pool, final MultipartIoServiceConfig config,
+            final SessionSerializers serializers,
+            final Compression compression) {
+        this.pool = pool;
+        this.config = config;
+        this.serializers = serializers;
+        this.compression = compression;
+        timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "mina-write-batcher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Append a frame to the open batch of the session.
+     *
+     * @param session
+     * @param frame
+     * @return future of the batch the frame went into.
+     */
+    WriteFuture write(final IoSession session,
+            final MultipartIoService.Frame frame) {
+        return batch(session).append(frame);
+    }
+
+    /**
+     * Append an encoded frame to the open batch of the session.
+     *
+     * @param session
+     * @param encoded
+     *            the frame from its position to its limit, freed once copied.
+     * @return future of the batch the frame went into.
+     */
+    WriteFuture write(final IoSession session, final IoBuffer encoded) {
+        try {
+            return batch(session).append(encoded);
+        } finally {
+            encoded.free();
+        }
+    }
+
+    /**
+     * Write the open batch of the session now, if there is one.
+     *
+     * @param session
+     */
+    void flush(final IoSession session) {
+        Batch batch = (Batch) session.getAttribute(BATCH);
+        if (batch != null)
+            batch.flush(null);
+    }
+
+    private Batch batch(final IoSession session) {
+        Batch batch = (Batch) session.getAttribute(BATCH);
+        if (batch == null) {
+            batch = new Batch(session);
+            Batch old = (Batch) session.setAttributeIfAbsent(BATCH, batch);
+            if (old != null)
+                batch = old;
+        }
+        return batch;
+    }
+
+    void close() {
+        closed = true;
+        timer.shutdownNow();
+        for (Batch batch : open)
+            batch.flush(null);
+    }
+
+    private final class Batch {
+
+        private final IoSession session;
+        private IoBuffer buf;
+        private DefaultWriteFuture future;
+        /**
+         * Flush of the open batch at the end of its window.
+         */
+        private ScheduledFuture<?> flushTask;
+
+        Batch(final IoSession session) {
+            this.session = session;
+        }
+
+        synchronized WriteFuture append(final MultipartIoService.Frame frame) {
+            if (!ensureOpen())
+                return failed(new IOException("batcher closed"));
+            int start = buf.position();
+            try {
+                buf = MultipartIoService.putFrame(pool,
+                        serializers.get(session, frame.getSerializer()),
+                        compression, buf, frame);
+            } catch (Exception e) {
+                // Drop the partial frame, the rest of the batch is intact.
+                buf.position(start);
+                return failed(e);
+            }
+            frame.setEncodedSize(buf.position() - start);
+            return appended();
+        }
+
+        synchronized WriteFuture append(final IoBuffer encoded) {
+            if (!ensureOpen())
+                return failed(new IOException("batcher closed"));
+            buf.put(encoded);
+            return appended();
+        }
+
+        /**
+         * @return false if there is no open batch and the batcher is closed.
+         */
+        private boolean ensureOpen() {
+            if (buf != null)
+                return true;
+            if (closed)
+                return false;
+            buf = pool.allocate(Math.max(config.getEncodeBufferSize(),
+                    config.getWriteBatchBytes()), config.isDirectBuffers());
+            buf.setAutoExpand(true);
+            future = new DefaultWriteFuture(session);
+            open.add(this);
+            return true;
+        }
+
+        private WriteFuture failed(final Exception e) {
+            DefaultWriteFuture failed = new DefaultWriteFuture(session);
+            failed.setException(e);
+            return failed;
+        }
+
+        /**
+         * Write the batch if the frame just appended filled it, or start its
+         * window if it was the first.
+         */
+        private WriteFuture appended() {
+            final DefaultWriteFuture written = future;
+            if (buf.position() >= config.getWriteBatchBytes())
+                flush(null);
+            else if (flushTask == null && !closed)
+                flushTask = timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush(written);
+                    }
+                }, config.getWriteBatchWindowNanos(), TimeUnit.NANOSECONDS);
+            return written;
+        }
+
+        /**
+         * Write the batch, the lock keeps batches in append order.
+         *
+         * @param expected
+         *            future of the batch the window of which has passed, null
+         *            to write whatever batch is open. A timer that fires after
+         *            its batch was written leaves the next one alone.
+         */
+        private synchronized void flush(final DefaultWriteFuture expected) {
+            if (buf == null || expected != null && expected != future)
+                return;
+            if (flushTask != null) {
+                flushTask.cancel(false);
+                flushTask = null;
+            }
+            open.remove(this);
+            IoBuffer out = buf;
+            final DefaultWriteFuture batchFuture = future;
+            buf = null;
+            future = null;
+            if (out.position() == 0) {
+                out.free();
+                return;
+            }
+            out.flip();
+            session.write(out).addListener(
+                    new IoFutureListener<WriteFuture>() {
+                        @Override
+                        public void operationComplete(WriteFuture f) {
+                            if (f.isWritten())
+                                batchFuture.setWritten();
+                            else
+                                batchFuture.setException(f.getException());
+                        }
+                    });
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.sqg.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+
+import org.sqg.util.Serializer;
+
+/**
+ * Decoder of {@code [length:4][payload]} frames, deserializing the payload
+ * straight from the slice of the frame in the cumulation buffer, without
+ * copying it out first.
+ *
+ * @param <T>
+ *            type of the messages.
+ */
+class FrameDecoder<T> extends LengthFieldBasedFrameDecoder {
+
+    private final Serializer serializer;
+    private final Class<T> type;
+
+    /**
+     * @param serializer
+     * @param type
+     * @param maxFrameLength
+     *            of the payload, longer frames are discarded and fail with a
+     *            {@link io.netty.handler.codec.TooLongFrameException}.
+     */
+    FrameDecoder(final Serializer serializer, final Class<T> type,
+            final int maxFrameLength) {
+        super(maxFrameLength + Integer.BYTES, 0, Integer.BYTES, 0,
+                Integer.BYTES);
+        this.serializer = serializer;
+        this.type = type;
+    }
+
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, ByteBuf in)
+            throws Exception {
+        // A retained slice of the cumulation buffer.
+        ByteBuf frame = (ByteBuf) super.decode(ctx, in);
+        if (frame == null)
+            return null;
+        try {
+            return serializer.deserialize(new ByteBufInputStream(frame), type);
+        } finally {
+            frame.release();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package org.sqg.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToByteEncoder;
+
+import org.sqg.util.Serializer;
+
+/**
+ * Encoder of {@code [length:4][payload]} frames, serializing straight into
+ * the buffer of the frame, taken from the allocator of the channel, and
+ * filling in the length afterwards.
+ * <p>
+ * Messages are not chunked: each is serialized whole into its frame, so it
+ * takes as much memory as its size, and the peer refuses frames larger than
+ * {@link RpcService#MAX_FRAME_LENGTH}. Streaming large messages in chunks, as
+ * {@link org.sqg.mina.MultipartIoServiceConfig#setChunkSize} does for MINA,
+ * is not implemented for Netty yet.
+ * </p>
+ *
+ * @param <T>
+ *            type of the messages.
+ */
+class FrameEncoder<T> extends MessageToByteEncoder<T> {
+
+    private final Serializer serializer;
+
+    FrameEncoder(final Serializer serializer, final Class<T> type) {
+        super(type);
+        this.serializer = serializer;
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, T msg, ByteBuf out)
+            throws Exception {
+        int start = out.writerIndex();
+        out.writeInt(0);
+        serializer.serialize(msg, new ByteBufOutputStream(out));
+        out.setInt(start, out.writerIndex() - start - Integer.BYTES);
+    }
+}
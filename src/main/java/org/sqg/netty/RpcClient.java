@@ -0,0 +1,397 @@
+package org.sqg.netty;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.SocketChannel;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.SocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client of an {@link RpcService}, calling it through proxies of its
+ * interfaces over one channel.
+ * <p>
+ * Every call goes out as an {@link RpcRequest} with an id of its own, and
+ * waits for its response in a table of pending calls rather than on the
+ * channel, so any number of callers share the channel and responses complete
+ * their calls in whatever order they come. A method returning a
+ * {@link CompletableFuture} or a {@link CompletionStage} returns at once with
+ * the future of its call, any other waits for the result, or throws what the
+ * service threw.
+ * </p>
+ * <p>
+ * A method fails with what the service threw, or with the checked exception
+ * of the call itself if the method declares it. Otherwise an
+ * {@link IOException} is wrapped into an {@link UncheckedIOException}, any
+ * other checked exception into an {@link RpcException}.
+ * </p>
+ * <p>
+ * Waiting for a result, or for the handshake when connecting, gives up after
+ * a {@link #getTimeoutMillis() timeout} with a {@link TimeoutException},
+ * wrapped as above.
+ * Futures complete on the event loop of the channel, where waiting would
+ * hold up the very response waited for: a method that does not return a
+ * future fails with an {@link IllegalStateException} when called there, from
+ * a callback of another call for instance.
+ * </p>
+ */
+public final class RpcClient implements AutoCloseable {
+
+    /**
+     * Completes pending calls with their responses.
+     */
+    private final class ResponseHandler extends
+            SimpleChannelInboundHandler<RpcResponse> {
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx,
+                RpcResponse response) throws Exception {
+            if (response.getId() == RpcService.HANDSHAKE) {
+                String[] signatures = (String[]) response.getResult();
+                Map<String, Integer> ids = new HashMap<>();
+                for (int i = 0; i < signatures.length; ++i)
+                    ids.put(signatures[i], i);
+                methodIds.complete(ids);
+                return;
+            }
+            CompletableFuture<Object> call = pending.remove(response.getId());
+            if (call == null)
+                return;
+            if (response.getThrowable() != null)
+                call.completeExceptionally(response.getThrowable());
+            else
+                call.complete(response.getResult());
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx)
+                throws Exception {
+            failAll(new IOException("channel closed"));
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx,
+                Throwable cause) throws Exception {
+            failAll(cause);
+            ctx.close();
+        }
+    }
+
+    /**
+     * Proxy of one interface, with the ids of its methods resolved once.
+     */
+    private final class Invoker implements InvocationHandler {
+
+        private final Class<?> iface;
+        private final Map<Method, Integer> ids = new HashMap<>();
+
+        Invoker(final Class<?> iface, final Map<String, Integer> served) {
+            this.iface = iface;
+            for (Method method : RpcService.methodsOf(iface)) {
+                Integer id = served.get(RpcService.signature(iface, method));
+                if (id != null)
+                    ids.put(method, id);
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+            if (method.getDeclaringClass() == Object.class)
+                return invokeObjectMethod(proxy, method, args);
+            if (isClose(method)) {
+                if (owner)
+                    close();
+                return null;
+            }
+            Class<?> type = method.getReturnType();
+            boolean future = type == CompletableFuture.class
+                    || type == CompletionStage.class;
+            if (!future && channel.eventLoop().inEventLoop())
+                throw new IllegalStateException(
+                        "waiting on the event loop for "
+                                + RpcService.signature(iface, method)
+                                + " would never end, call it from another"
+                                + " thread or through a method returning a"
+                                + " future");
+            Integer id = ids.get(method);
+            CompletableFuture<Object> result;
+            if (id != null)
+                result = call(id, args);
+            else {
+                result = new CompletableFuture<>();
+                result.completeExceptionally(new NoSuchMethodException(
+                        RpcService.signature(iface, method)
+                                + " is not served"));
+            }
+            if (future)
+                return result;
+            try {
+                return result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                throw declared(method, e.getCause());
+            } catch (TimeoutException e) {
+                // Rare enough for a scan, the response is ignored if it comes.
+                pending.values().remove(result);
+                throw declared(method, new TimeoutException("no response to "
+                        + RpcService.signature(iface, method) + " within "
+                        + timeoutMillis + " ms"));
+            }
+        }
+
+        /**
+         * @param method
+         * @param t
+         * @return {@code t} if {@code method} may throw it, an unchecked
+         *         exception caused by it otherwise.
+         */
+        private Throwable declared(final Method method, final Throwable t) {
+            if (t instanceof RuntimeException || t instanceof Error)
+                return t;
+            for (Class<?> type : method.getExceptionTypes())
+                if (type.isInstance(t))
+                    return t;
+            String message = RpcService.signature(iface, method) + ": " + t;
+            if (t instanceof IOException)
+                return new UncheckedIOException(message, (IOException) t);
+            return new RpcException(message, t);
+        }
+
+        RpcClient getClient() {
+            return RpcClient.this;
+        }
+
+        private boolean isClose(final Method method) {
+            return method.getName().equals("close")
+                    && method.getParameterCount() == 0
+                    && AutoCloseable.class.isAssignableFrom(iface);
+        }
+
+        private Object invokeObjectMethod(final Object proxy,
+                final Method method, final Object[] args) {
+            switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            default:
+                return iface.getName() + "@" + channel.remoteAddress();
+            }
+        }
+    }
+
+    /**
+     * Default of {@link #getTimeoutMillis()}.
+     */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 30000L;
+
+    private final EventLoopGroup group;
+    private final Channel channel;
+    private final long timeoutMillis;
+    private final CompletableFuture<Map<String, Integer>> methodIds = new CompletableFuture<>();
+    private final ConcurrentMap<Integer, CompletableFuture<Object>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    /**
+     * Closed by the proxy of {@link #create}.
+     */
+    private boolean owner;
+
+    /**
+     * Connect over the {@link Transport#getDefault() default transport} and
+     * wait for the handshake of the service.
+     *
+     * @param address
+     * @throws IOException
+     *             if the service cannot be reached.
+     */
+    public RpcClient(final SocketAddress address) throws IOException {
+        this(address, Transport.getDefault());
+    }
+
+    /**
+     * Connect and wait for the handshake of the service, with the
+     * {@link #DEFAULT_TIMEOUT_MILLIS default timeout}.
+     *
+     * @param address
+     * @param transport
+     * @throws IOException
+     *             if the service cannot be reached.
+     */
+    public RpcClient(final SocketAddress address, final Transport transport)
+            throws IOException {
+        this(address, transport, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Connect and wait for the handshake of the service.
+     *
+     * @param address
+     * @param transport
+     * @param timeoutMillis
+     *            how long to wait for the handshake, and for the result of
+     *            a call that does not return a future.
+     * @throws IOException
+     *             if the service cannot be reached, or does not answer in
+     *             time.
+     */
+    public RpcClient(final SocketAddress address, final Transport transport,
+            final long timeoutMillis) throws IOException {
+        if (!transport.isAvailable())
+            throw new IllegalArgumentException(transport + " is not available");
+        if (timeoutMillis <= 0L)
+            throw new IllegalArgumentException("timeout <= 0");
+        this.timeoutMillis = timeoutMillis;
+        group = transport.newEventLoopGroup(1);
+        Bootstrap bootstrap = new Bootstrap();
+        bootstrap.group(group).channel(transport.getChannelClass())
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.ALLOCATOR,
+                        PooledByteBufAllocator.DEFAULT)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new RpcResponse.Decoder(),
+                                new RpcRequest.Encoder(),
+                                new ResponseHandler());
+                    }
+                });
+        ChannelFuture connected = bootstrap.connect(address)
+                .awaitUninterruptibly();
+        if (!connected.isSuccess()) {
+            group.shutdownGracefully(0L, 1L, TimeUnit.SECONDS);
+            throw new IOException("cannot connect to " + address,
+                    connected.cause());
+        }
+        channel = connected.channel();
+        try {
+            methodIds.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException | ExecutionException
+                | TimeoutException e) {
+            close();
+            throw new IOException("no handshake from " + address, e);
+        }
+    }
+
+    /**
+     * @param iface
+     * @param address
+     * @return a proxy of {@code iface} over a client of its own, closed by
+     *         {@link #close(Object)}, or by the {@code close()} of the proxy
+     *         if {@code iface} extends {@link AutoCloseable}. The
+     *         {@code close()} of other proxies does nothing.
+     * @throws IOException
+     *             if the service cannot be reached.
+     */
+    public static <T> T create(final Class<T> iface,
+            final SocketAddress address) throws IOException {
+        RpcClient client = new RpcClient(address);
+        client.owner = true;
+        return client.proxy(iface);
+    }
+
+    /**
+     * @param iface
+     * @return a proxy of {@code iface} calling the service over this client.
+     *         Methods the service does not serve fail with a
+     *         {@link NoSuchMethodException}.
+     */
+    public <T> T proxy(final Class<T> iface) {
+        return iface.cast(Proxy.newProxyInstance(iface.getClassLoader(),
+                new Class<?>[] { iface },
+                new Invoker(iface, methodIds.join())));
+    }
+
+    /**
+     * @return milliseconds to wait for the result of a call that does not
+     *         return a future.
+     */
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * @return number of calls waiting for their response.
+     */
+    public int getPendingCalls() {
+        return pending.size();
+    }
+
+    /**
+     * Close the client a proxy calls through, the one of its own for a proxy
+     * of {@link #create}.
+     *
+     * @param proxy
+     * @throws IllegalArgumentException
+     *             if {@code proxy} is not a proxy of a client.
+     */
+    public static void close(final Object proxy) {
+        InvocationHandler handler = Proxy.isProxyClass(proxy.getClass()) ? Proxy
+                .getInvocationHandler(proxy) : null;
+        if (!(handler instanceof Invoker))
+            throw new IllegalArgumentException(proxy
+                    + " is not a proxy of an RpcClient");
+        ((Invoker) handler).getClient().close();
+    }
+
+    @Override
+    public void close() {
+        channel.close().awaitUninterruptibly();
+        group.shutdownGracefully(0L, 1L, TimeUnit.SECONDS);
+        failAll(new IOException("client closed"));
+    }
+
+    private CompletableFuture<Object> call(final int methodId,
+            final Object[] args) {
+        int id;
+        do {
+            id = nextId.incrementAndGet();
+        } while (id == RpcService.HANDSHAKE);
+        final Integer key = id;
+        final CompletableFuture<Object> result = new CompletableFuture<>();
+        pending.put(key, result);
+        channel.writeAndFlush(new RpcRequest(id, methodId, args))
+                .addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) {
+                        if (!future.isSuccess() && pending.remove(key) != null)
+                            result.completeExceptionally(future.cause());
+                    }
+                });
+        // Closed in between, the close did not see the call.
+        if (!channel.isActive() && pending.remove(key) != null)
+            result.completeExceptionally(new IOException("channel closed"));
+        return result;
+    }
+
+    private void failAll(final Throwable cause) {
+        methodIds.completeExceptionally(cause);
+        for (Integer id : pending.keySet()) {
+            CompletableFuture<Object> call = pending.remove(id);
+            if (call != null)
+                call.completeExceptionally(cause);
+        }
+    }
+}
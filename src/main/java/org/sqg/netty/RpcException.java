@@ -0,0 +1,16 @@
+package org.sqg.netty;
+
+/**
+ * Failure of a call through a proxy of {@link RpcClient} with a checked
+ * exception its method does not declare, such as a
+ * {@link java.util.concurrent.TimeoutException} or a
+ * {@link NoSuchMethodException}, which is the cause.
+ */
+public class RpcException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public RpcException(final String message, final Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -1,59 +1,84 @@
 package org.sqg.netty;
 
-import io.netty.buffer.ByteBuf;
-import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.ByteToMessageDecoder;
-import io.netty.handler.codec.MessageToByteEncoder;
-
 import java.io.Serializable;
-import java.lang.reflect.Method;
-import java.util.List;
 
+import org.sqg.util.CompactSerializer;
+import org.sqg.util.Serializer;
+
+/**
+ * A call of a method by the id the {@link RpcService} gave it in its
+ * handshake.
+ */
 public class RpcRequest implements Serializable {
 
     private static final long serialVersionUID = 9094466951558223550L;
 
-    private Class<?> iface;
-    private Method method;
+    private int id;
+    private int methodId;
     private Object[] parameters;
 
-    public RpcRequest(final Class<?> iface, final Method method,
+    /**
+     * @param id
+     *            of the call, echoed by its response, never
+     *            {@link RpcService#HANDSHAKE}.
+     * @param methodId
+     * @param parameters
+     */
+    public RpcRequest(final int id, final int methodId,
             final Object... parameters) {
-        this.iface = iface;
-        this.method = method;
+        this.id = id;
+        this.methodId = methodId;
         this.parameters = parameters;
     }
 
-    public static final class Decoder extends ByteToMessageDecoder {
-
-        @Override
-        protected void decode(ChannelHandlerContext ctx, ByteBuf in,
-                List<Object> out) throws Exception {
-            int size = 0;
-            byte[] bytes = null;
-            while (in.readableBytes() > Integer.BYTES) {
-                in.markReaderIndex();
-                size = in.readInt();
-                if (in.readableBytes() < size) {
-                    in.resetReaderIndex();
-                    break;
-                }
-                bytes = new byte[size];
-                in.readBytes(bytes);
-                out.add(RpcService.SERIALIZER.deserialize(bytes,
-                        RpcRequest.class));
-            }
+    public int getId() {
+        return id;
+    }
+
+    public int getMethodId() {
+        return methodId;
+    }
+
+    public Object[] getParameters() {
+        return parameters;
+    }
+
+    /**
+     * Decoder with its own serializer, create one per channel when it is
+     * stateful like {@link CompactSerializer}.
+     */
+    public static final class Decoder extends FrameDecoder<RpcRequest> {
+
+        public Decoder() {
+            this(RpcService.SERIALIZER);
+        }
+
+        public Decoder(final Serializer serializer) {
+            this(serializer, RpcService.MAX_FRAME_LENGTH);
+        }
+
+        /**
+         * @param serializer
+         * @param maxFrameLength
+         *            of the serialized requests.
+         */
+        public Decoder(final Serializer serializer, final int maxFrameLength) {
+            super(serializer, RpcRequest.class, maxFrameLength);
         }
     }
 
-    public static final class Encoder extends MessageToByteEncoder<RpcRequest> {
+    /**
+     * Encoder with its own serializer, create one per channel when it is
+     * stateful like {@link CompactSerializer}.
+     */
+    public static final class Encoder extends FrameEncoder<RpcRequest> {
+
+        public Encoder() {
+            this(RpcService.SERIALIZER);
+        }
 
-        @Override
-        protected void encode(ChannelHandlerContext ctx, RpcRequest msg,
-                ByteBuf out) throws Exception {
-            byte[] bytes = RpcService.SERIALIZER.serialize(msg);
-            out.writeInt(bytes.length);
-            out.writeBytes(bytes);
+        public Encoder(final Serializer serializer) {
+            super(serializer, RpcRequest.class);
         }
     }
 }
@@ -1,47 +1,85 @@
 package org.sqg.netty;
 
-import io.netty.buffer.ByteBuf;
-import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.ByteToMessageDecoder;
-import io.netty.handler.codec.MessageToByteEncoder;
+import java.io.Serializable;
 
-import java.util.List;
+import org.sqg.util.CompactSerializer;
+import org.sqg.util.Serializer;
 
-public class RpcResponse {
+/**
+ * The outcome of an {@link RpcRequest}, or with id
+ * {@link RpcService#HANDSHAKE} the signatures of the methods of the service,
+ * indexed by their id.
+ */
+public class RpcResponse implements Serializable {
 
-    private Throwable throwable;
+    private static final long serialVersionUID = 1L;
+
+    private int id;
     private Object result;
+    private Throwable throwable;
+
+    /**
+     * @param id
+     *            of the request.
+     * @param result
+     * @param throwable
+     *            thrown by the call, null if it returned.
+     */
+    public RpcResponse(final int id, final Object result,
+            final Throwable throwable) {
+        this.id = id;
+        this.result = result;
+        this.throwable = throwable;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public Object getResult() {
+        return result;
+    }
 
-    public static final class Decoder extends ByteToMessageDecoder {
-
-        @Override
-        protected void decode(ChannelHandlerContext ctx, ByteBuf in,
-                List<Object> out) throws Exception {
-            int size = 0;
-            byte[] bytes = null;
-            while (in.readableBytes() > Integer.BYTES) {
-                in.markReaderIndex();
-                size = in.readInt();
-                if (in.readableBytes() < size) {
-                    in.resetReaderIndex();
-                    break;
-                }
-                bytes = new byte[size];
-                in.readBytes(bytes);
-                out.add(RpcService.SERIALIZER.deserialize(bytes,
-                        RpcResponse.class));
-            }
+    public Throwable getThrowable() {
+        return throwable;
+    }
+
+    /**
+     * Decoder with its own serializer, create one per channel when it is
+     * stateful like {@link CompactSerializer}.
+     */
+    public static final class Decoder extends FrameDecoder<RpcResponse> {
+
+        public Decoder() {
+            this(RpcService.SERIALIZER);
+        }
+
+        public Decoder(final Serializer serializer) {
+            this(serializer, RpcService.MAX_FRAME_LENGTH);
+        }
+
+        /**
+         * @param serializer
+         * @param maxFrameLength
+         *            of the serialized responses.
+         */
+        public Decoder(final Serializer serializer, final int maxFrameLength) {
+            super(serializer, RpcResponse.class, maxFrameLength);
         }
     }
 
-    public static final class Encoder extends MessageToByteEncoder<RpcResponse> {
+    /**
+     * Encoder with its own serializer, create one per channel when it is
+     * stateful like {@link CompactSerializer}.
+     */
+    public static final class Encoder extends FrameEncoder<RpcResponse> {
+
+        public Encoder() {
+            this(RpcService.SERIALIZER);
+        }
 
-        @Override
-        protected void encode(ChannelHandlerContext ctx, RpcResponse msg,
-                ByteBuf out) throws Exception {
-            byte[] bytes = RpcService.SERIALIZER.serialize(msg);
-            out.writeInt(bytes.length);
-            out.writeBytes(bytes);
+        public Encoder(final Serializer serializer) {
+            super(serializer, RpcResponse.class);
         }
     }
 }
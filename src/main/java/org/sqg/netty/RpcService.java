@@ -1,29 +1,400 @@
 package org.sqg.netty;
 
 import io.netty.bootstrap.ServerBootstrap;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.socket.SocketChannel;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.sqg.util.JdkSerializer;
+import org.sqg.util.KryoRegistry;
 import org.sqg.util.Serializer;
 
+/**
+ * Server of the interfaces registered with it, over Netty.
+ * <p>
+ * Every method of a registered interface gets an id, its index in the method
+ * table sent to a client as the handshake when it connects. Requests name the
+ * method by that id, and are dispatched through a table of
+ * {@link MethodHandle}s bound to the implementations and adapted once to take
+ * the parameters as an array, so a call involves no reflection.
+ * </p>
+ * <p>
+ * Methods run on the event loop of their channel, which suits short calls
+ * that do not block, or on an {@link #setExecutor executor}. A method
+ * returning a {@link CompletionStage} is answered once the stage completes.
+ * Responses go out as calls complete, not necessarily in request order.
+ * </p>
+ * <p>
+ * Connections are accepted over {@link Transport#getDefault() epoll where
+ * it is available}, by one thread unless {@link #setAcceptors more} bind the
+ * port together.
+ * </p>
+ */
 public final class RpcService implements AutoCloseable {
 
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(RpcService.class);
+
     public static final Serializer SERIALIZER = new JdkSerializer();
 
-    private int port;
+    /**
+     * {@link KryoRegistry#DEFAULT} with the requests and responses, for
+     * encoders and decoders built with its {@link KryoRegistry#getSerializer()
+     * serializer} instead of {@link #SERIALIZER}.
+     */
+    public static final KryoRegistry KRYO_REGISTRY = KryoRegistry.DEFAULT
+            .with(RpcRequest.class, RpcResponse.class);
+
+    /**
+     * Id of the response carrying the method table.
+     */
+    public static final int HANDSHAKE = 0;
+
+    /**
+     * Default limit of the serialized requests and responses.
+     */
+    public static final int MAX_FRAME_LENGTH = 16 << 20;
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final MethodType INVOKER_TYPE = MethodType.methodType(
+            Object.class, Object[].class);
+
+    private static final Object[] NO_PARAMETERS = new Object[0];
+
+    /**
+     * Answers the handshake and the requests of every channel.
+     */
+    @Sharable
+    private static final class Dispatcher extends
+            SimpleChannelInboundHandler<RpcRequest> {
+
+        private final String[] signatures;
+        private final MethodHandle[] invokers;
+        private final Executor executor;
+
+        Dispatcher(final String[] signatures, final MethodHandle[] invokers,
+                final Executor executor) {
+            this.signatures = signatures;
+            this.invokers = invokers;
+            this.executor = executor;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            ctx.writeAndFlush(new RpcResponse(HANDSHAKE, signatures, null));
+            super.channelActive(ctx);
+        }
+
+        @Override
+        protected void channelRead0(final ChannelHandlerContext ctx,
+                final RpcRequest request) throws Exception {
+            if (executor == null) {
+                call(ctx, request);
+                return;
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    call(ctx, request);
+                }
+            });
+        }
+
+        private void call(final ChannelHandlerContext ctx,
+                final RpcRequest request) {
+            Object result = null;
+            Throwable throwable = null;
+            int methodId = request.getMethodId();
+            Object[] parameters = request.getParameters();
+            if (parameters == null)
+                parameters = NO_PARAMETERS;
+            if (methodId < 0 || methodId >= invokers.length)
+                throwable = new NoSuchMethodException("no method with id "
+                        + methodId);
+            else
+                try {
+                    result = (Object) invokers[methodId]
+                            .invokeExact(parameters);
+                } catch (Throwable t) {
+                    throwable = t;
+                }
+            if (!(result instanceof CompletionStage)) {
+                respond(ctx, request.getId(), result, throwable);
+                return;
+            }
+            ((CompletionStage<?>) result)
+                    .whenComplete(new BiConsumer<Object, Throwable>() {
+                        @Override
+                        public void accept(Object value, Throwable t) {
+                            if (t instanceof CompletionException
+                                    && t.getCause() != null)
+                                t = t.getCause();
+                            respond(ctx, request.getId(), value, t);
+                        }
+                    });
+        }
+
+        /**
+         * Send the outcome of a call. If it cannot be sent, most likely as it
+         * does not serialize, the caller is answered with the reason instead
+         * of being left waiting, and the channel is closed if even that fails.
+         */
+        private static void respond(final ChannelHandlerContext ctx,
+                final int id, final Object result, final Throwable throwable) {
+            ctx.writeAndFlush(new RpcResponse(id, result, throwable))
+                    .addListener(new ChannelFutureListener() {
+                        @Override
+                        public void operationComplete(ChannelFuture future) {
+                            if (future.isSuccess())
+                                return;
+                            LOGGER.warn("cannot send response {} to {}", id,
+                                    ctx.channel(), future.cause());
+                            ctx.writeAndFlush(
+                                    new RpcResponse(id, null, future.cause()))
+                                    .addListener(
+                                            ChannelFutureListener.CLOSE_ON_FAILURE);
+                        }
+                    });
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx,
+                Throwable cause) throws Exception {
+            LOGGER.warn("closing {}", ctx.channel(), cause);
+            ctx.close();
+        }
+    }
+
+    private final int port;
+    private final Set<Class<?>> interfaces = new HashSet<>();
+    private final List<String> signatures = new ArrayList<>();
+    private final List<MethodHandle> invokers = new ArrayList<>();
+    private Executor executor;
+    private Transport transport = Transport.getDefault();
+    private int acceptors = 1;
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
+    /**
+     * Bound server channels, one per acceptor, empty until started.
+     */
+    private final List<Channel> channels = new ArrayList<>();
 
     public RpcService(final int port) {
         this.port = port;
     }
 
-    public void start() {
-        NioEventLoopGroup globalGroup = new NioEventLoopGroup();
-        NioEventLoopGroup workerGroup = new NioEventLoopGroup();
+    /**
+     * Serve the methods of an interface, before {@link #start()}.
+     *
+     * @param iface
+     * @param implementation
+     * @return this service.
+     */
+    public synchronized <T> RpcService register(final Class<T> iface,
+            final T implementation) {
+        if (!channels.isEmpty())
+            throw new IllegalStateException("already started");
+        if (!iface.isInterface())
+            throw new IllegalArgumentException(iface + " is not an interface");
+        if (!interfaces.add(iface))
+            throw new IllegalArgumentException(iface + " already registered");
+        for (Method method : methodsOf(iface)) {
+            MethodHandle handle;
+            try {
+                method.setAccessible(true);
+                handle = LOOKUP.unreflect(method);
+            } catch (IllegalAccessException | RuntimeException e) {
+                throw new IllegalArgumentException(method
+                        + " is not accessible", e);
+            }
+            signatures.add(signature(iface, method));
+            invokers.add(handle.bindTo(implementation)
+                    .asSpreader(Object[].class, method.getParameterCount())
+                    .asType(INVOKER_TYPE));
+        }
+        return this;
+    }
+
+    /**
+     * Run methods on this executor instead of the event loop, before
+     * {@link #start()}, so that a slow call does not hold up the others of
+     * its channel. {@code null}, the default, for the event loop. The
+     * executor is not shut down by the service.
+     *
+     * @param value
+     * @return this service.
+     */
+    public synchronized RpcService setExecutor(final Executor value) {
+        if (!channels.isEmpty())
+            throw new IllegalStateException("already started");
+        executor = value;
+        return this;
+    }
+
+    /**
+     * Transport to accept connections over, before {@link #start()}.
+     *
+     * @param value
+     * @return this service.
+     * @throws IllegalArgumentException
+     *             if the transport is not available.
+     */
+    public synchronized RpcService setTransport(final Transport value) {
+        if (!channels.isEmpty())
+            throw new IllegalStateException("already started");
+        if (!value.isAvailable())
+            throw new IllegalArgumentException(value + " is not available");
+        transport = value;
+        return this;
+    }
+
+    public synchronized Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Number of server channels binding the port with {@code SO_REUSEPORT},
+     * each accepting on a thread of its own, before {@link #start()}. More
+     * than one needs {@link Transport#EPOLL}.
+     *
+     * @param value
+     * @return this service.
+     */
+    public synchronized RpcService setAcceptors(final int value) {
+        if (!channels.isEmpty())
+            throw new IllegalStateException("already started");
+        if (value < 1)
+            throw new IllegalArgumentException("acceptors < 1");
+        acceptors = value;
+        return this;
+    }
+
+    public synchronized void start() {
+        if (!channels.isEmpty())
+            throw new IllegalStateException("already started");
+        if (acceptors > 1 && transport != Transport.EPOLL)
+            throw new IllegalStateException(acceptors
+                    + " acceptors need " + Transport.EPOLL);
+        final Dispatcher dispatcher = new Dispatcher(
+                signatures.toArray(new String[signatures.size()]),
+                invokers.toArray(new MethodHandle[invokers.size()]),
+                executor);
+        bossGroup = transport.newEventLoopGroup(acceptors);
+        workerGroup = transport.newEventLoopGroup(0);
         ServerBootstrap bootstrap = new ServerBootstrap();
-        bootstrap.group();
+        bootstrap.group(bossGroup, workerGroup)
+                .channel(transport.getServerChannelClass())
+                .option(ChannelOption.SO_REUSEADDR, true)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childOption(ChannelOption.ALLOCATOR,
+                        PooledByteBufAllocator.DEFAULT)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new RpcRequest.Decoder(),
+                                new RpcResponse.Encoder(), dispatcher);
+                    }
+                });
+        if (acceptors > 1)
+            bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+        try {
+            channels.add(bootstrap.bind(port).syncUninterruptibly().channel());
+            // Each further channel is registered with the next boss thread.
+            int bound = ((InetSocketAddress) getLocalAddress()).getPort();
+            for (int i = 1; i < acceptors; ++i)
+                channels.add(bootstrap.bind(bound).syncUninterruptibly()
+                        .channel());
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+        LOGGER.info("rpc service started at {} over {} with {} methods",
+                getLocalAddress(), transport, signatures.size());
+    }
+
+    public synchronized SocketAddress getLocalAddress() {
+        return channels.isEmpty() ? null : channels.get(0).localAddress();
     }
 
     @Override
-    public void close() {
+    public synchronized void close() {
+        if (!channels.isEmpty()) {
+            for (Channel channel : channels)
+                channel.close().syncUninterruptibly();
+            LOGGER.info("rpc service stopped at {}", getLocalAddress());
+            channels.clear();
+        }
+        if (bossGroup != null) {
+            bossGroup.shutdownGracefully(0L, 5L, TimeUnit.SECONDS);
+            workerGroup.shutdownGracefully(0L, 5L, TimeUnit.SECONDS);
+            bossGroup = null;
+            workerGroup = null;
+        }
+    }
+
+    /**
+     * @param iface
+     * @return the methods of {@code iface} a service serves, in the order of
+     *         their signatures.
+     */
+    static Method[] methodsOf(final Class<?> iface) {
+        List<Method> methods = new ArrayList<>();
+        for (Method method : iface.getMethods())
+            if (!Modifier.isStatic(method.getModifiers()))
+                methods.add(method);
+        Method[] sorted = methods.toArray(new Method[methods.size()]);
+        Arrays.sort(sorted, new Comparator<Method>() {
+            @Override
+            public int compare(final Method a, final Method b) {
+                return signature(iface, a).compareTo(signature(iface, b));
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * @param iface
+     *            registered, not necessarily declaring {@code method}.
+     * @param method
+     * @return the interface, name and descriptor of {@code method}, which
+     *         tell overloads apart.
+     */
+    static String signature(final Class<?> iface, final Method method) {
+        return iface.getName()
+                + "#"
+                + method.getName()
+                + MethodType.methodType(method.getReturnType(),
+                        method.getParameterTypes()).toMethodDescriptorString();
     }
 }
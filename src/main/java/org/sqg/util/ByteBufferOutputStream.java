@@ -0,0 +1,70 @@
+package org.sqg.util;
+
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link OutputStream} writing into a {@link ByteBuffer} from its position on,
+ * up to its capacity. When the buffer is full, writing goes on in a copy of it
+ * twice as large, of the same kind and byte order, which keeps what was in the
+ * buffer before the position the stream started at.
+ */
+public final class ByteBufferOutputStream extends OutputStream {
+
+    private ByteBuffer buffer;
+
+    /**
+     * @param buffer
+     *            its limit is set to its capacity.
+     */
+    public ByteBufferOutputStream(final ByteBuffer buffer) {
+        buffer.limit(buffer.capacity());
+        this.buffer = buffer;
+    }
+
+    /**
+     * @return the buffer written into, either the one given or a larger copy,
+     *         positioned after the last byte written.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    @Override
+    public void write(final int b) {
+        ensureRemaining(1);
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) {
+        ensureRemaining(len);
+        buffer.put(b, off, len);
+    }
+
+    /**
+     * Grow the buffer if it has less room than asked for.
+     *
+     * @param bytes
+     * @return the buffer to write into, with at least {@code bytes} remaining.
+     */
+    public ByteBuffer ensureRemaining(final int bytes) {
+        if (buffer.remaining() >= bytes)
+            return buffer;
+        long needed = (long) buffer.position() + bytes;
+        long capacity = Math.max(buffer.capacity(), 1);
+        while (capacity < needed)
+            capacity <<= 1;
+        if (capacity > Integer.MAX_VALUE)
+            throw new BufferOverflowException();
+        ByteBuffer grown = buffer.isDirect() ? ByteBuffer
+                .allocateDirect((int) capacity) : ByteBuffer
+                .allocate((int) capacity);
+        grown.order(buffer.order());
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+        return buffer;
+    }
+}
@@ -0,0 +1,872 @@
+package org.sqg.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.objenesis.instantiator.ObjectInstantiator;
+import org.objenesis.strategy.StdInstantiatorStrategy;
+import org.sqg.mina.AbstractSerializer;
+
+/**
+ * Compact binary serializer for small messages.
+ * <p>
+ * Ints and longs are written as zig-zag varints, strings as their UTF-8
+ * length and bytes, copied byte for byte when they are ASCII. An object is
+ * written as its fields in a fixed order, without tags for primitive and
+ * {@link String} fields. The names of its class and fields only go out the
+ * first time the class is written, as a schema the reader keeps under the
+ * next number, and later messages refer to that number.
+ * </p>
+ * <p>
+ * An instance therefore belongs to one connection, or one stream of messages
+ * read in the order they were written, and each side needs its own. Fields
+ * are matched by name, those only one side has are skipped or left to their
+ * default value.
+ * </p>
+ * <p>
+ * Supported are null, primitives and their wrappers, strings, {@code byte[]},
+ * {@code int[]}, {@code long[]}, {@code Object[]}, lists, sets and maps (read
+ * back as {@link ArrayList}, {@link LinkedHashSet} and {@link LinkedHashMap}),
+ * enums, and objects of other classes with fields of these types. Other
+ * {@code java.*} classes and arrays go through Java serialization. Objects are
+ * written as a tree, shared references and cycles are not preserved.
+ * </p>
+ */
+public final class CompactSerializer extends AbstractSerializer {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final byte NULL = 0;
+    private static final byte FALSE = 1;
+    private static final byte TRUE = 2;
+    private static final byte BYTE = 3;
+    private static final byte SHORT = 4;
+    private static final byte CHAR = 5;
+    private static final byte INT = 6;
+    private static final byte LONG = 7;
+    private static final byte FLOAT = 8;
+    private static final byte DOUBLE = 9;
+    private static final byte STRING = 10;
+    private static final byte BYTES = 11;
+    private static final byte INTS = 12;
+    private static final byte LONGS = 13;
+    private static final byte ARRAY = 14;
+    private static final byte LIST = 15;
+    private static final byte SET = 16;
+    private static final byte MAP = 17;
+    /**
+     * A schema follows, then the value it is for.
+     */
+    private static final byte SCHEMA = 18;
+    private static final byte OBJECT = 19;
+    private static final byte ENUM = 20;
+    private static final byte SERIALIZED = 21;
+
+    /**
+     * Kinds of fields in a schema. Values of {@link #F_VALUE} fields are
+     * tagged, the others are written bare.
+     */
+    private static final byte F_BOOLEAN = 1;
+    private static final byte F_BYTE = 2;
+    private static final byte F_SHORT = 3;
+    private static final byte F_CHAR = 4;
+    private static final byte F_INT = 5;
+    private static final byte F_LONG = 6;
+    private static final byte F_FLOAT = 7;
+    private static final byte F_DOUBLE = 8;
+    private static final byte F_STRING = 9;
+    private static final byte F_VALUE = 10;
+
+    private static final ClassValue<ClassInfo> CLASSES = new ClassValue<ClassInfo>() {
+        @Override
+        protected ClassInfo computeValue(final Class<?> type) {
+            return new ClassInfo(type);
+        }
+    };
+
+    /**
+     * Classes whose schema the peer has, in the order it numbered them.
+     * Guarded by itself, as is everything written.
+     */
+    private final List<Class<?>> written = new ArrayList<>();
+    private final Map<Class<?>, Integer> writtenIds = new HashMap<>();
+    /**
+     * Schemas read so far, by number. Guarded by itself.
+     */
+    private final List<Schema> read = new ArrayList<>();
+
+    @Override
+    public <T> void serialize(final T objectGraph, final OutputStream os)
+            throws IOException {
+        ByteBuffer buffer = serialize(objectGraph, ByteBuffer.allocate(256));
+        os.write(buffer.array(), 0, buffer.position());
+    }
+
+    @Override
+    public <T> ByteBuffer serialize(final T objectGraph,
+            final ByteBuffer buffer) throws IOException {
+        synchronized (written) {
+            int known = written.size();
+            boolean done = false;
+            try {
+                Writer out = new Writer(buffer);
+                writeValue(out, objectGraph);
+                done = true;
+                return out.buffer;
+            } finally {
+                // Schemas of a message that is not sent are not known.
+                if (!done)
+                    while (written.size() > known)
+                        writtenIds.remove(written.remove(written.size() - 1));
+            }
+        }
+    }
+
+    @Override
+    public <T> T deserialize(final InputStream is, final Class<T> type)
+            throws IOException {
+        try {
+            return type.cast(deserialize(is));
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Reads the stream to its end.
+     */
+    @Override
+    public Object deserialize(final InputStream is) throws IOException,
+            ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        int n;
+        while ((n = is.read(chunk)) >= 0)
+            bytes.write(chunk, 0, n);
+        return deserialize(ByteBuffer.wrap(bytes.toByteArray()));
+    }
+
+    @Override
+    public <T> T deserialize(final ByteBuffer buffer, final Class<T> type)
+            throws IOException {
+        try {
+            return type.cast(deserialize(buffer));
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public Object deserialize(final ByteBuffer buffer) throws IOException,
+            ClassNotFoundException {
+        synchronized (read) {
+            try {
+                return readValue(new Reader(buffer));
+            } catch (BufferUnderflowException e) {
+                throw new EOFException("message ends early");
+            }
+        }
+    }
+
+    private void writeValue(final Writer out, final Object value)
+            throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+            return;
+        }
+        Class<?> type = value.getClass();
+        if (type == String.class) {
+            out.writeByte(STRING);
+            out.writeString((String) value);
+        } else if (type == Integer.class) {
+            out.writeByte(INT);
+            out.writeVarInt((Integer) value);
+        } else if (type == Long.class) {
+            out.writeByte(LONG);
+            out.writeVarLong((Long) value);
+        } else if (type == Boolean.class) {
+            out.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (type == Double.class) {
+            out.writeByte(DOUBLE);
+            out.writeLong(Double.doubleToRawLongBits((Double) value));
+        } else if (type == Float.class) {
+            out.writeByte(FLOAT);
+            out.writeInt(Float.floatToRawIntBits((Float) value));
+        } else if (type == Short.class) {
+            out.writeByte(SHORT);
+            out.writeVarInt((Short) value);
+        } else if (type == Byte.class) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) value);
+        } else if (type == Character.class) {
+            out.writeByte(CHAR);
+            out.writeUnsignedVarInt((Character) value);
+        } else if (type == byte[].class) {
+            byte[] bytes = (byte[]) value;
+            out.writeByte(BYTES);
+            out.writeUnsignedVarInt(bytes.length);
+            out.writeBytes(bytes, 0, bytes.length);
+        } else if (type == int[].class) {
+            int[] ints = (int[]) value;
+            out.writeByte(INTS);
+            out.writeUnsignedVarInt(ints.length);
+            for (int i : ints)
+                out.writeVarInt(i);
+        } else if (type == long[].class) {
+            long[] longs = (long[]) value;
+            out.writeByte(LONGS);
+            out.writeUnsignedVarInt(longs.length);
+            for (long l : longs)
+                out.writeVarLong(l);
+        } else if (value instanceof Object[]) {
+            Object[] array = (Object[]) value;
+            out.writeByte(ARRAY);
+            out.writeUnsignedVarInt(array.length);
+            for (Object element : array)
+                writeValue(out, element);
+        } else if (value instanceof List) {
+            writeCollection(out, LIST, (List<?>) value);
+        } else if (value instanceof Set) {
+            writeCollection(out, SET, (Set<?>) value);
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            out.writeByte(MAP);
+            out.writeUnsignedVarInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeValue(out, entry.getKey());
+                writeValue(out, entry.getValue());
+            }
+        } else if (value instanceof Enum) {
+            Enum<?> constant = (Enum<?>) value;
+            int id = schema(out, constant.getDeclaringClass());
+            out.writeByte(ENUM);
+            out.writeUnsignedVarInt(id);
+            out.writeUnsignedVarInt(constant.ordinal());
+        } else if (type.isArray() || type.getName().startsWith("java.")
+                || type.getName().startsWith("javax.")) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+                oos.writeObject(value);
+            }
+            out.writeByte(SERIALIZED);
+            out.writeUnsignedVarInt(bytes.size());
+            out.writeBytes(bytes.toByteArray(), 0, bytes.size());
+        } else {
+            int id = schema(out, type);
+            out.writeByte(OBJECT);
+            out.writeUnsignedVarInt(id);
+            writeFields(out, CLASSES.get(type), value);
+        }
+    }
+
+    private void writeCollection(final Writer out, final byte tag,
+            final Collection<?> collection) throws IOException {
+        out.writeByte(tag);
+        out.writeUnsignedVarInt(collection.size());
+        for (Object element : collection)
+            writeValue(out, element);
+    }
+
+    /**
+     * @return number of the schema of {@code type}, which is written first if
+     *         the peer does not have it yet.
+     */
+    private int schema(final Writer out, final Class<?> type) {
+        Integer id = writtenIds.get(type);
+        if (id != null)
+            return id;
+        id = written.size();
+        written.add(type);
+        writtenIds.put(type, id);
+        ClassInfo info = CLASSES.get(type);
+        out.writeByte(SCHEMA);
+        out.writeString(type.getName());
+        out.writeUnsignedVarInt(info.fields.length);
+        for (FieldInfo field : info.fields) {
+            out.writeString(field.name);
+            out.writeByte(field.kind);
+        }
+        return id;
+    }
+
+    private void writeFields(final Writer out, final ClassInfo info,
+            final Object object) throws IOException {
+        try {
+            for (FieldInfo field : info.fields) {
+                MethodHandle getter = field.getter;
+                switch (field.kind) {
+                case F_BOOLEAN:
+                    out.writeByte((boolean) getter.invokeExact(object) ? 1 : 0);
+                    break;
+                case F_BYTE:
+                    out.writeByte((byte) getter.invokeExact(object));
+                    break;
+                case F_SHORT:
+                    out.writeVarInt((short) getter.invokeExact(object));
+                    break;
+                case F_CHAR:
+                    out.writeUnsignedVarInt((char) getter.invokeExact(object));
+                    break;
+                case F_INT:
+                    out.writeVarInt((int) getter.invokeExact(object));
+                    break;
+                case F_LONG:
+                    out.writeVarLong((long) getter.invokeExact(object));
+                    break;
+                case F_FLOAT:
+                    out.writeInt(Float.floatToRawIntBits((float) getter
+                            .invokeExact(object)));
+                    break;
+                case F_DOUBLE:
+                    out.writeLong(Double.doubleToRawLongBits((double) getter
+                            .invokeExact(object)));
+                    break;
+                case F_STRING:
+                    out.writeString((String) getter.invokeExact(object));
+                    break;
+                default:
+                    writeValue(out, (Object) getter.invokeExact(object));
+                }
+            }
+        } catch (IOException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IOException(e);
+        }
+    }
+
+    private Object readValue(final Reader in) throws IOException,
+            ClassNotFoundException {
+        byte tag = in.readByte();
+        while (tag == SCHEMA) {
+            readSchema(in);
+            tag = in.readByte();
+        }
+        switch (tag) {
+        case NULL:
+            return null;
+        case FALSE:
+            return Boolean.FALSE;
+        case TRUE:
+            return Boolean.TRUE;
+        case BYTE:
+            return in.readByte();
+        case SHORT:
+            return (short) in.readVarInt();
+        case CHAR:
+            return (char) in.readUnsignedVarInt();
+        case INT:
+            return in.readVarInt();
+        case LONG:
+            return in.readVarLong();
+        case FLOAT:
+            return Float.intBitsToFloat(in.readInt());
+        case DOUBLE:
+            return Double.longBitsToDouble(in.readLong());
+        case STRING:
+            return in.readString();
+        case BYTES: {
+            byte[] bytes = new byte[in.readLength()];
+            in.readBytes(bytes, 0, bytes.length);
+            return bytes;
+        }
+        case INTS: {
+            int[] ints = new int[in.readLength()];
+            for (int i = 0; i < ints.length; ++i)
+                ints[i] = in.readVarInt();
+            return ints;
+        }
+        case LONGS: {
+            long[] longs = new long[in.readLength()];
+            for (int i = 0; i < longs.length; ++i)
+                longs[i] = in.readVarLong();
+            return longs;
+        }
+        case ARRAY: {
+            Object[] array = new Object[in.readLength()];
+            for (int i = 0; i < array.length; ++i)
+                array[i] = readValue(in);
+            return array;
+        }
+        case LIST: {
+            int n = in.readLength();
+            List<Object> list = new ArrayList<>(n);
+            for (int i = 0; i < n; ++i)
+                list.add(readValue(in));
+            return list;
+        }
+        case SET: {
+            int n = in.readLength();
+            Set<Object> set = new LinkedHashSet<>(capacity(n));
+            for (int i = 0; i < n; ++i)
+                set.add(readValue(in));
+            return set;
+        }
+        case MAP: {
+            int n = in.readLength();
+            Map<Object, Object> map = new LinkedHashMap<>(capacity(n));
+            for (int i = 0; i < n; ++i)
+                map.put(readValue(in), readValue(in));
+            return map;
+        }
+        case OBJECT:
+            return readFields(in, schema(in.readUnsignedVarInt()));
+        case ENUM: {
+            Object[] constants = schema(in.readUnsignedVarInt()).local.type
+                    .getEnumConstants();
+            int ordinal = in.readUnsignedVarInt();
+            if (constants == null || ordinal >= constants.length)
+                throw new StreamCorruptedException("no enum constant "
+                        + ordinal);
+            return constants[ordinal];
+        }
+        case SERIALIZED: {
+            byte[] bytes = new byte[in.readLength()];
+            in.readBytes(bytes, 0, bytes.length);
+            try (ObjectInputStream ois = new ObjectInputStream(
+                    new ByteBufferInputStream(ByteBuffer.wrap(bytes)))) {
+                return ois.readObject();
+            }
+        }
+        default:
+            throw new StreamCorruptedException("unknown tag " + tag);
+        }
+    }
+
+    private static int capacity(final int size) {
+        return size < 3 ? size + 1 : (int) (size / 0.75f + 1.0f);
+    }
+
+    private void readSchema(final Reader in) throws ClassNotFoundException,
+            IOException {
+        Class<?> type = Class.forName(in.readString(), false,
+                CompactSerializer.class.getClassLoader());
+        ClassInfo local = CLASSES.get(type);
+        int n = in.readLength();
+        byte[] kinds = new byte[n];
+        FieldInfo[] targets = new FieldInfo[n];
+        for (int i = 0; i < n; ++i) {
+            String name = in.readString();
+            kinds[i] = in.readByte();
+            FieldInfo field = local.field(name);
+            // A field whose type changed is skipped as well.
+            if (field != null && field.kind == kinds[i])
+                targets[i] = field;
+        }
+        read.add(new Schema(local, kinds, targets));
+    }
+
+    private Schema schema(final int id) throws StreamCorruptedException {
+        if (id >= read.size())
+            throw new StreamCorruptedException("unknown schema " + id);
+        return read.get(id);
+    }
+
+    private Object readFields(final Reader in, final Schema schema)
+            throws IOException, ClassNotFoundException {
+        try {
+            Object object = schema.local.newInstance();
+            for (int i = 0; i < schema.kinds.length; ++i) {
+                FieldInfo field = schema.targets[i];
+                if (field == null) {
+                    skipField(in, schema.kinds[i]);
+                    continue;
+                }
+                MethodHandle setter = field.setter;
+                switch (field.kind) {
+                case F_BOOLEAN:
+                    setter.invokeExact(object, in.readByte() != 0);
+                    break;
+                case F_BYTE:
+                    setter.invokeExact(object, in.readByte());
+                    break;
+                case F_SHORT:
+                    setter.invokeExact(object, (short) in.readVarInt());
+                    break;
+                case F_CHAR:
+                    setter.invokeExact(object, (char) in.readUnsignedVarInt());
+                    break;
+                case F_INT:
+                    setter.invokeExact(object, in.readVarInt());
+                    break;
+                case F_LONG:
+                    setter.invokeExact(object, in.readVarLong());
+                    break;
+                case F_FLOAT:
+                    setter.invokeExact(object,
+                            Float.intBitsToFloat(in.readInt()));
+                    break;
+                case F_DOUBLE:
+                    setter.invokeExact(object,
+                            Double.longBitsToDouble(in.readLong()));
+                    break;
+                case F_STRING:
+                    setter.invokeExact(object, in.readString());
+                    break;
+                default:
+                    setter.invokeExact(object, readValue(in));
+                }
+            }
+            return object;
+        } catch (IOException | ClassNotFoundException | RuntimeException
+                | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void skipField(final Reader in, final byte kind)
+            throws IOException, ClassNotFoundException {
+        switch (kind) {
+        case F_BOOLEAN:
+        case F_BYTE:
+            in.readByte();
+            break;
+        case F_SHORT:
+        case F_CHAR:
+        case F_INT:
+            in.readUnsignedVarInt();
+            break;
+        case F_LONG:
+            in.readVarLong();
+            break;
+        case F_FLOAT:
+            in.readInt();
+            break;
+        case F_DOUBLE:
+            in.readLong();
+            break;
+        case F_STRING:
+            in.readString();
+            break;
+        case F_VALUE:
+            readValue(in);
+            break;
+        default:
+            throw new StreamCorruptedException("unknown field kind " + kind);
+        }
+    }
+
+    /**
+     * Fields of a local class, and how to create it.
+     */
+    private static final class ClassInfo {
+
+        private final Class<?> type;
+        private final FieldInfo[] fields;
+        private final Map<String, FieldInfo> byName = new HashMap<>();
+        private final MethodHandle constructor;
+        private final ObjectInstantiator<?> instantiator;
+
+        ClassInfo(final Class<?> type) {
+            this.type = type;
+            List<Field> all = type.isEnum() ? new ArrayList<Field>()
+                    : SerializedFields.of(type);
+            fields = new FieldInfo[all.size()];
+            for (int i = 0; i < fields.length; ++i) {
+                fields[i] = new FieldInfo(all.get(i));
+                // A shadowed field keeps the name of the subclass one.
+                byName.put(fields[i].name, fields[i]);
+            }
+            MethodHandle c = null;
+            try {
+                Constructor<?> noArg = type.getDeclaredConstructor();
+                noArg.setAccessible(true);
+                c = LOOKUP.unreflectConstructor(noArg).asType(
+                        MethodType.methodType(Object.class));
+            } catch (NoSuchMethodException | IllegalAccessException
+                    | RuntimeException e) {
+                // Instantiated without calling a constructor.
+            }
+            constructor = c;
+            instantiator = c == null && !type.isEnum() ? new StdInstantiatorStrategy()
+                    .newInstantiatorOf(type) : null;
+        }
+
+        FieldInfo field(final String name) {
+            return byName.get(name);
+        }
+
+        Object newInstance() throws Throwable {
+            return constructor != null ? (Object) constructor.invokeExact()
+                    : instantiator.newInstance();
+        }
+    }
+
+    /**
+     * A field with its getter and setter, typed {@code (Object)T} and
+     * {@code (Object, T)void}, where {@code T} is the type of the field for
+     * primitives and strings and {@code Object} otherwise.
+     */
+    private static final class FieldInfo {
+
+        private final String name;
+        private final byte kind;
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        FieldInfo(final Field field) {
+            Class<?> type = field.getType();
+            name = field.getName();
+            kind = kindOf(type);
+            Class<?> valueType = kind == F_VALUE ? Object.class : type;
+            try {
+                field.setAccessible(true);
+                getter = LOOKUP.unreflectGetter(field).asType(
+                        MethodType.methodType(valueType, Object.class));
+                setter = LOOKUP.unreflectSetter(field).asType(
+                        MethodType.methodType(void.class, Object.class,
+                                valueType));
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException("cannot access " + field, e);
+            }
+        }
+
+        private static byte kindOf(final Class<?> type) {
+            if (type == boolean.class)
+                return F_BOOLEAN;
+            if (type == byte.class)
+                return F_BYTE;
+            if (type == short.class)
+                return F_SHORT;
+            if (type == char.class)
+                return F_CHAR;
+            if (type == int.class)
+                return F_INT;
+            if (type == long.class)
+                return F_LONG;
+            if (type == float.class)
+                return F_FLOAT;
+            if (type == double.class)
+                return F_DOUBLE;
+            if (type == String.class)
+                return F_STRING;
+            return F_VALUE;
+        }
+    }
+
+    /**
+     * A schema as read: the local class, and for each field on the wire its
+     * kind and the local field it goes into, null to skip it.
+     */
+    private static final class Schema {
+
+        private final ClassInfo local;
+        private final byte[] kinds;
+        private final FieldInfo[] targets;
+
+        Schema(final ClassInfo local, final byte[] kinds,
+                final FieldInfo[] targets) {
+            this.local = local;
+            this.kinds = kinds;
+            this.targets = targets;
+        }
+    }
+
+    /**
+     * Writes into a buffer, growing it as {@link ByteBufferOutputStream}
+     * does.
+     */
+    private static final class Writer {
+
+        private final ByteBufferOutputStream os;
+        private ByteBuffer buffer;
+
+        Writer(final ByteBuffer buffer) {
+            os = new ByteBufferOutputStream(buffer);
+            this.buffer = buffer;
+        }
+
+        private void require(final int bytes) {
+            if (buffer.remaining() < bytes)
+                buffer = os.ensureRemaining(bytes);
+        }
+
+        void writeByte(final int b) {
+            require(1);
+            buffer.put((byte) b);
+        }
+
+        void writeBytes(final byte[] b, final int off, final int len) {
+            require(len);
+            buffer.put(b, off, len);
+        }
+
+        void writeInt(final int i) {
+            require(4);
+            buffer.putInt(i);
+        }
+
+        void writeLong(final long l) {
+            require(8);
+            buffer.putLong(l);
+        }
+
+        void writeUnsignedVarInt(int i) {
+            require(5);
+            while ((i & ~0x7f) != 0) {
+                buffer.put((byte) (i & 0x7f | 0x80));
+                i >>>= 7;
+            }
+            buffer.put((byte) i);
+        }
+
+        void writeVarInt(final int i) {
+            writeUnsignedVarInt(i << 1 ^ i >> 31);
+        }
+
+        void writeVarLong(final long value) {
+            long l = value << 1 ^ value >> 63;
+            require(10);
+            while ((l & ~0x7fL) != 0L) {
+                buffer.put((byte) (l & 0x7f | 0x80));
+                l >>>= 7;
+            }
+            buffer.put((byte) l);
+        }
+
+        /**
+         * {@code ((length << 1 | ascii) + 1)} as a varint, 0 for null, then
+         * the UTF-8 bytes.
+         */
+        void writeString(final String s) {
+            if (s == null) {
+                writeUnsignedVarInt(0);
+                return;
+            }
+            int length = s.length();
+            boolean ascii = true;
+            for (int i = 0; i < length && ascii; ++i)
+                ascii = s.charAt(i) < 0x80;
+            if (ascii) {
+                writeUnsignedVarInt((length << 1 | 1) + 1);
+                require(length);
+                for (int i = 0; i < length; ++i)
+                    buffer.put((byte) s.charAt(i));
+            } else {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                writeUnsignedVarInt((bytes.length << 1) + 1);
+                writeBytes(bytes, 0, bytes.length);
+            }
+        }
+    }
+
+    /**
+     * Reads a buffer from its position to its limit.
+     */
+    private static final class Reader {
+
+        private final ByteBuffer buffer;
+        private byte[] scratch;
+
+        Reader(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        byte readByte() {
+            return buffer.get();
+        }
+
+        void readBytes(final byte[] b, final int off, final int len) {
+            buffer.get(b, off, len);
+        }
+
+        int readInt() {
+            return buffer.getInt();
+        }
+
+        long readLong() {
+            return buffer.getLong();
+        }
+
+        int readUnsignedVarInt() throws StreamCorruptedException {
+            int i = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = buffer.get();
+                i |= (b & 0x7f) << shift;
+                if (b >= 0)
+                    return i;
+            }
+            throw new StreamCorruptedException("varint too long");
+        }
+
+        /**
+         * @return a count of elements or bytes, which cannot exceed what is
+         *         left to read.
+         */
+        int readLength() throws StreamCorruptedException {
+            int length = readUnsignedVarInt();
+            if (length < 0 || length > buffer.remaining())
+                throw new StreamCorruptedException("length " + length
+                        + " exceeds the " + buffer.remaining()
+                        + " bytes left");
+            return length;
+        }
+
+        int readVarInt() throws StreamCorruptedException {
+            int i = readUnsignedVarInt();
+            return i >>> 1 ^ -(i & 1);
+        }
+
+        long readVarLong() throws StreamCorruptedException {
+            long l = 0L;
+            for (int shift = 0; shift < 70; shift += 7) {
+                byte b = buffer.get();
+                l |= (long) (b & 0x7f) << shift;
+                if (b >= 0)
+                    return l >>> 1 ^ -(l & 1L);
+            }
+            throw new StreamCorruptedException("varlong too long");
+        }
+
+        String readString() throws StreamCorruptedException {
+            int header = readUnsignedVarInt();
+            if (header == 0)
+                return null;
+            int length = (header - 1) >>> 1;
+            if (length > buffer.remaining())
+                throw new StreamCorruptedException("string length " + length
+                        + " exceeds the " + buffer.remaining()
+                        + " bytes left");
+            // ASCII is a subset of ISO-8859-1, which decodes by copying.
+            Charset charset = ((header - 1) & 1) != 0 ? StandardCharsets.ISO_8859_1
+                    : StandardCharsets.UTF_8;
+            String s;
+            if (buffer.hasArray()) {
+                s = new String(buffer.array(), buffer.arrayOffset()
+                        + buffer.position(), length, charset);
+                buffer.position(buffer.position() + length);
+            } else {
+                if (scratch == null || scratch.length < length)
+                    scratch = new byte[Math.max(length, 64)];
+                buffer.get(scratch, 0, length);
+                s = new String(scratch, 0, length, charset);
+            }
+            return s;
+        }
+    }
+}
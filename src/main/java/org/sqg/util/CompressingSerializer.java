@@ -0,0 +1,165 @@
+package org.sqg.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import org.sqg.mina.AbstractSerializer;
+
+/**
+ * Decorator compressing what another serializer writes once it is larger
+ * than a threshold, see {@link Compression}.
+ * <p>
+ * The data is a marker byte telling whether it is compressed, then what the
+ * decorated serializer wrote, as it is or compressed. Small messages thus
+ * cost one byte and no compression attempt.
+ * </p>
+ */
+public final class CompressingSerializer extends AbstractSerializer {
+
+    private static final byte RAW = 0;
+    private static final byte DEFLATED = 1;
+
+    /**
+     * Default limit of the data once decompressed, in bytes.
+     */
+    public static final int DEFAULT_MAX_LENGTH = 16 << 20;
+
+    private final Serializer serializer;
+    private final Compression compression;
+    private final int maxLength;
+
+    /**
+     * @param serializer
+     *            the serializer decorated.
+     * @param threshold
+     *            messages of at most this many bytes are not compressed.
+     */
+    public CompressingSerializer(final Serializer serializer,
+            final int threshold) {
+        this(serializer, new Compression(threshold));
+    }
+
+    /**
+     * @param serializer
+     *            the serializer decorated.
+     * @param compression
+     *            which may be shared with other decorators, for statistics
+     *            of them all.
+     */
+    public CompressingSerializer(final Serializer serializer,
+            final Compression compression) {
+        this(serializer, compression, DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * @param serializer
+     *            the serializer decorated.
+     * @param compression
+     *            which may be shared with other decorators, for statistics
+     *            of them all.
+     * @param maxLength
+     *            largest data accepted once decompressed, the length it
+     *            announces is checked before anything is allocated.
+     */
+    public CompressingSerializer(final Serializer serializer,
+            final Compression compression, final int maxLength) {
+        if (maxLength < 0)
+            throw new IllegalArgumentException("negative max length "
+                    + maxLength);
+        this.serializer = serializer;
+        this.compression = compression;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * @return the compression, with its statistics.
+     */
+    public Compression getCompression() {
+        return compression;
+    }
+
+    @Override
+    public <T> void serialize(final T objectGraph, final OutputStream os)
+            throws IOException {
+        ByteBuffer buffer = serialize(objectGraph, ByteBuffer.allocate(256));
+        os.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+    }
+
+    @Override
+    public <T> ByteBuffer serialize(final T objectGraph,
+            final ByteBuffer buffer) throws IOException {
+        ByteBuffer out = new ByteBufferOutputStream(buffer).ensureRemaining(1);
+        int marker = out.position();
+        out.put(RAW);
+        out = serializer.serialize(objectGraph, out);
+        if (compression.compress(out, marker + 1))
+            out.put(marker, DEFLATED);
+        return out;
+    }
+
+    @Override
+    public <T> T deserialize(final InputStream is, final Class<T> type)
+            throws IOException {
+        int marker = is.read();
+        if (marker == RAW)
+            return serializer.deserialize(is, type);
+        return serializer.deserialize(inflate(marker, is), type);
+    }
+
+    @Override
+    public Object deserialize(final InputStream is) throws IOException,
+            ClassNotFoundException {
+        int marker = is.read();
+        if (marker == RAW)
+            return serializer.deserialize(is);
+        return serializer.deserialize(inflate(marker, is));
+    }
+
+    @Override
+    public <T> T deserialize(final ByteBuffer buffer, final Class<T> type)
+            throws IOException {
+        int marker = buffer.hasRemaining() ? buffer.get() : -1;
+        if (marker == RAW)
+            return serializer.deserialize(buffer, type);
+        return serializer.deserialize(inflate(marker, buffer), type);
+    }
+
+    @Override
+    public Object deserialize(final ByteBuffer buffer) throws IOException,
+            ClassNotFoundException {
+        int marker = buffer.hasRemaining() ? buffer.get() : -1;
+        if (marker == RAW)
+            return serializer.deserialize(buffer);
+        return serializer.deserialize(inflate(marker, buffer));
+    }
+
+    private static void checkDeflated(final int marker) throws IOException {
+        if (marker != DEFLATED)
+            throw new IOException(marker < 0 ? "no data" : "unknown marker "
+                    + marker);
+    }
+
+    private ByteBuffer inflate(final int marker, final ByteBuffer buffer)
+            throws IOException {
+        checkDeflated(marker);
+        return compression.decompress(buffer, maxLength);
+    }
+
+    /**
+     * The compressed data has no length of its own, so the stream is read to
+     * its end.
+     */
+    private ByteBuffer inflate(final int marker, final InputStream is)
+            throws IOException {
+        checkDeflated(marker);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] b = new byte[4096];
+        for (int n; (n = is.read(b)) != -1;)
+            os.write(b, 0, n);
+        return compression.decompress(ByteBuffer.wrap(os.toByteArray()),
+                maxLength);
+    }
+}
@@ -0,0 +1,256 @@
+package org.sqg.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate at its fastest level, for serialized payloads above a size
+ * threshold, with statistics of what it saved and what it cost.
+ * <p>
+ * A payload is compressed in place into {@code [length][deflated]}, where
+ * {@code length} is its size before compression, and left as it is if it is
+ * no larger than the threshold or does not get smaller. Whoever reads it must
+ * know which one it got, from a flag of its own. Deflaters and inflaters are
+ * pooled, as {@link KryoSerializer} pools its {@code Kryo} instances.
+ * </p>
+ */
+public final class Compression {
+
+    private static final class Context {
+
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final Inflater inflater = new Inflater();
+        private byte[] in = new byte[0];
+        private byte[] out = new byte[0];
+
+        void end() {
+            deflater.end();
+            inflater.end();
+        }
+    }
+
+    private final int threshold;
+    private final Queue<Context> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final LongAdder compressed = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+    private final LongAdder decompressNanos = new LongAdder();
+
+    /**
+     * @param threshold
+     *            payloads of at most this many bytes are not compressed, not
+     *            positive for none to be.
+     */
+    public Compression(final int threshold) {
+        this.threshold = threshold;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Compress the bytes from {@code start} to the position of
+     * {@code buffer} in place, if it is worth it.
+     *
+     * @param buffer
+     *            positioned after the payload on return.
+     * @param start
+     * @return whether the payload is compressed.
+     */
+    public boolean compress(final ByteBuffer buffer, final int start) {
+        int length = buffer.position() - start;
+        if (threshold <= 0 || length <= threshold) {
+            skipped.increment();
+            return false;
+        }
+        long t1 = System.nanoTime();
+        Context context = borrow();
+        try {
+            byte[] src;
+            int offset;
+            if (buffer.hasArray()) {
+                src = buffer.array();
+                offset = buffer.arrayOffset() + start;
+            } else {
+                src = context.in = ensure(context.in, length);
+                offset = 0;
+                ByteBuffer view = buffer.duplicate();
+                view.position(start);
+                view.get(src, 0, length);
+            }
+            // Only worth it if the result is smaller, length prefix included.
+            int room = length - 5;
+            byte[] dst = context.out = ensure(context.out, room);
+            Deflater deflater = context.deflater;
+            deflater.setInput(src, offset, length);
+            deflater.finish();
+            int n = 0;
+            while (!deflater.finished() && n < room)
+                n += deflater.deflate(dst, n, room - n);
+            if (!deflater.finished()) {
+                skipped.increment();
+                return false;
+            }
+            buffer.position(start);
+            buffer.putInt(length);
+            buffer.put(dst, 0, n);
+            compressed.increment();
+            bytesIn.add(length);
+            bytesOut.add(n + 4);
+            return true;
+        } finally {
+            release(context);
+            compressNanos.add(System.nanoTime() - t1);
+        }
+    }
+
+    /**
+     * Decompress a payload from the position of {@code buffer}, which is
+     * left after it.
+     *
+     * @param buffer
+     * @param maxLength
+     *            largest size accepted before compression.
+     * @return the payload as it was before compression.
+     * @throws IOException
+     *             if it is corrupt or too large.
+     */
+    public ByteBuffer decompress(final ByteBuffer buffer, final int maxLength)
+            throws IOException {
+        long t1 = System.nanoTime();
+        int length = buffer.getInt();
+        if (length < 0 || length > maxLength)
+            throw new IOException("compressed payload of " + length
+                    + " bytes exceeds " + maxLength);
+        int n = buffer.remaining();
+        Context context = borrow();
+        try {
+            byte[] src;
+            int offset;
+            int start = buffer.position();
+            if (buffer.hasArray()) {
+                src = buffer.array();
+                offset = buffer.arrayOffset() + start;
+            } else {
+                src = context.in = ensure(context.in, n);
+                offset = 0;
+                buffer.duplicate().get(src, 0, n);
+            }
+            byte[] out = new byte[length];
+            Inflater inflater = context.inflater;
+            inflater.setInput(src, offset, n);
+            int inflated = 0;
+            while (!inflater.finished()) {
+                int k = inflater.inflate(out, inflated, length - inflated);
+                if (k == 0 && (inflater.needsInput()
+                        || inflater.needsDictionary() || inflated == length))
+                    break;
+                inflated += k;
+            }
+            if (!inflater.finished() || inflated != length)
+                throw new IOException("corrupt compressed payload");
+            buffer.position(start + n - inflater.getRemaining());
+            return ByteBuffer.wrap(out);
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            release(context);
+            decompressNanos.add(System.nanoTime() - t1);
+        }
+    }
+
+    /**
+     * @return number of payloads compressed.
+     */
+    public long getCompressed() {
+        return compressed.sum();
+    }
+
+    /**
+     * @return number of payloads left as they were, too small or not getting
+     *         smaller.
+     */
+    public long getSkipped() {
+        return skipped.sum();
+    }
+
+    /**
+     * @return bytes of the compressed payloads before compression.
+     */
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    /**
+     * @return bytes of the compressed payloads after compression.
+     */
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    /**
+     * @return {@link #getBytesOut()} over {@link #getBytesIn()}, 1 before
+     *         any payload is compressed.
+     */
+    public double getRatio() {
+        long in = bytesIn.sum();
+        return in == 0L ? 1.0 : (double) bytesOut.sum() / in;
+    }
+
+    /**
+     * @return time spent compressing, skipped payloads included.
+     */
+    public long getCompressNanos() {
+        return compressNanos.sum();
+    }
+
+    /**
+     * @return time spent decompressing.
+     */
+    public long getDecompressNanos() {
+        return decompressNanos.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "Compression{threshold = " + threshold + ", compressed = "
+                + getCompressed() + ", skipped = " + getSkipped()
+                + ", ratio = " + getRatio() + "}";
+    }
+
+    private static byte[] ensure(final byte[] array, final int length) {
+        return array.length >= length ? array : new byte[Math.max(length,
+                2 * array.length)];
+    }
+
+    private Context borrow() {
+        Context context = idle.poll();
+        if (context != null) {
+            idleCount.decrementAndGet();
+            return context;
+        }
+        return new Context();
+    }
+
+    private void release(final Context context) {
+        context.deflater.reset();
+        context.inflater.reset();
+        if (idleCount.incrementAndGet() > KryoPool.DEFAULT_MAX_IDLE) {
+            idleCount.decrementAndGet();
+            context.end();
+            return;
+        }
+        idle.offer(context);
+    }
+}
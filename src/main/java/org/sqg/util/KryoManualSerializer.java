@@ -3,22 +3,21 @@ package org.sqg.util;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import org.sqg.mina.AbstractSerializer;
 
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.Registration;
-import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.ByteBufferOutput;
 import com.esotericsoftware.kryo.io.Output;
 
 public final class KryoManualSerializer extends AbstractSerializer {
 
-    /**
-     * FIXME How to prevent memory leaks here?
-     */
-    private static final ThreadLocal<Kryo> KRYOS = new ThreadLocal<Kryo>() {
+    private static final KryoPool KRYOS = new KryoPool(
+            KryoPool.DEFAULT_MAX_IDLE) {
         @Override
-        protected Kryo initialValue() {
+        protected Kryo newKryo() {
             return new Kryo();
         };
     };
@@ -26,19 +25,56 @@ public final class KryoManualSerializer extends AbstractSerializer {
     @Override
     public <T> void serialize(T objectGraph, OutputStream os)
             throws IOException {
-        Output out = new Output(os);
-        Kryo kryo = KRYOS.get();
-        Registration reg = kryo.getRegistration(objectGraph.getClass());
-        kryo.writeObject(out, objectGraph, reg.getSerializer());
-        out.flush();
+        KryoPool.Context context = KRYOS.borrow();
+        try {
+            Output out = context.output(os);
+            Kryo kryo = context.kryo();
+            Registration reg = kryo.getRegistration(objectGraph.getClass());
+            kryo.writeObject(out, objectGraph, reg.getSerializer());
+            out.flush();
+        } finally {
+            KRYOS.release(context);
+        }
+    }
+
+    @Override
+    public <T> ByteBuffer serialize(T objectGraph, ByteBuffer buffer) {
+        KryoPool.Context context = KRYOS.borrow();
+        try {
+            ByteBufferOutput out = context.output(buffer);
+            Kryo kryo = context.kryo();
+            Registration reg = kryo.getRegistration(objectGraph.getClass());
+            kryo.writeObject(out, objectGraph, reg.getSerializer());
+            return context.written();
+        } finally {
+            KRYOS.release(context);
+        }
     }
 
     @Override
     public <T> T deserialize(InputStream is, Class<T> type) throws IOException {
-        Kryo kryo = KRYOS.get();
-        Registration reg = kryo.getRegistration(type);
-        return type.cast(kryo.readObject(new Input(is), type,
-                reg.getSerializer()));
+        KryoPool.Context context = KRYOS.borrow();
+        try {
+            Kryo kryo = context.kryo();
+            Registration reg = kryo.getRegistration(type);
+            return type.cast(kryo.readObject(context.input(is), type,
+                    reg.getSerializer()));
+        } finally {
+            KRYOS.release(context);
+        }
+    }
+
+    @Override
+    public <T> T deserialize(ByteBuffer buffer, Class<T> type) {
+        KryoPool.Context context = KRYOS.borrow();
+        try {
+            Kryo kryo = context.kryo();
+            Registration reg = kryo.getRegistration(type);
+            return type.cast(kryo.readObject(context.input(buffer), type,
+                    reg.getSerializer()));
+        } finally {
+            KRYOS.release(context);
+        }
     }
 
     @Override
@@ -46,4 +82,9 @@ public final class KryoManualSerializer extends AbstractSerializer {
             ClassNotFoundException {
         throw new UnsupportedOperationException();
     }
+
+    @Override
+    public Object deserialize(ByteBuffer buffer) {
+        throw new UnsupportedOperationException();
+    }
 }
@@ -0,0 +1,178 @@
+package org.sqg.util;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.ByteBufferInput;
+import com.esotericsoftware.kryo.io.ByteBufferOutput;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * Pool of {@link Kryo} instances, each with an {@link Input} and an
+ * {@link Output} buffer, and their {@link ByteBuffer} counterparts, that are
+ * reused from call to call.
+ * <p>
+ * Unlike a {@code ThreadLocal}, the number of instances kept does not follow
+ * the number of threads: a context is only held for the duration of one call,
+ * any number can be borrowed at the same time, and at most {@code maxIdle} are
+ * kept once given back, the rest are left to the GC.
+ * </p>
+ */
+abstract class KryoPool {
+
+    /**
+     * More contexts than cores are seldom in use at the same time.
+     */
+    static final int DEFAULT_MAX_IDLE = 2 * Runtime.getRuntime()
+            .availableProcessors();
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final int maxIdle;
+    private final Queue<Context> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    /**
+     * A {@link Kryo} and its buffers, to be used by one thread at a time.
+     */
+    static final class Context {
+
+        private final Kryo kryo;
+        private final Input input = new Input(BUFFER_SIZE);
+        private final Output output = new Output(BUFFER_SIZE);
+        private final ByteBufferInput bufferInput = new ByteBufferInput();
+        private final ByteBufferOutput bufferOutput = new ByteBufferOutput();
+        private ByteBuffer buffer;
+        private ByteOrder order;
+
+        Context(final Kryo kryo) {
+            this.kryo = kryo;
+        }
+
+        Kryo kryo() {
+            return kryo;
+        }
+
+        /**
+         * @param is
+         * @return the input buffer, reading from {@code is}.
+         */
+        Input input(final InputStream is) {
+            input.setInputStream(is);
+            return input;
+        }
+
+        /**
+         * @param os
+         * @return the output buffer, writing to {@code os} when flushed.
+         */
+        Output output(final OutputStream os) {
+            output.setOutputStream(os);
+            return output;
+        }
+
+        /**
+         * @param buffer
+         * @return an input reading {@code buffer} from its position to its
+         *         limit, and moving its position along.
+         */
+        ByteBufferInput input(final ByteBuffer buffer) {
+            attach(buffer);
+            bufferInput.setBuffer(buffer);
+            return bufferInput;
+        }
+
+        /**
+         * @param buffer
+         * @return an output writing into {@code buffer} from its position on,
+         *         or into a larger copy once it is full.
+         * @see #written()
+         */
+        ByteBufferOutput output(final ByteBuffer buffer) {
+            attach(buffer);
+            buffer.limit(buffer.capacity());
+            bufferOutput.setBuffer(buffer, -1);
+            return bufferOutput;
+        }
+
+        /**
+         * @return the buffer the output wrote into, positioned after the data.
+         */
+        ByteBuffer written() {
+            return bufferOutput.getByteBuffer().order(order);
+        }
+
+        /**
+         * Kryo writes numbers in the order of the buffer, which must not
+         * depend on the caller's.
+         */
+        private void attach(final ByteBuffer buffer) {
+            this.buffer = buffer;
+            order = buffer.order();
+            buffer.order(ByteOrder.BIG_ENDIAN);
+        }
+
+        /**
+         * Drop the streams and buffers, so an idle context does not hold on to
+         * them.
+         */
+        void detach() {
+            input.setInputStream(null);
+            output.setOutputStream(null);
+            if (buffer != null) {
+                buffer.order(order);
+                buffer = null;
+                bufferInput.setBuffer(EMPTY);
+                bufferOutput.setBuffer(EMPTY, -1);
+            }
+        }
+    }
+
+    /**
+     * @param maxIdle
+     *            maximum number of contexts kept when not in use.
+     */
+    KryoPool(final int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * @return an idle context, or a new one if there is none.
+     */
+    Context borrow() {
+        Context context = idle.poll();
+        if (context != null) {
+            idleCount.decrementAndGet();
+            return context;
+        }
+        return new Context(newKryo());
+    }
+
+    /**
+     * Give a context back, the caller must not touch it afterwards.
+     *
+     * @param context
+     */
+    void release(final Context context) {
+        context.detach();
+        if (idleCount.incrementAndGet() > maxIdle) {
+            idleCount.decrementAndGet();
+            return;
+        }
+        idle.offer(context);
+    }
+
+    /**
+     * @return a configured {@link Kryo}.
+     */
+    protected abstract Kryo newKryo();
+}
@@ -0,0 +1,134 @@
+package org.sqg.util;
+
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.serializers.FieldSerializer;
+
+/**
+ * Classes Kryo writes as small integer ids instead of their names.
+ * <p>
+ * A class gets the id of its place in the list, so ids stay the same from one
+ * version of the registry to the next as long as classes are only ever
+ * appended. Both peers must use the same registry, which they check by
+ * {@link #getFingerprint()}, and the same versions of the classes Kryo writes
+ * field by field, whose fields go into the fingerprint as well. Classes that
+ * are not in it still go by name.
+ * </p>
+ */
+public final class KryoRegistry {
+
+    /**
+     * Ids below are left to Kryo, which registers primitives and
+     * {@link String} itself.
+     */
+    private static final int FIRST_ID = 32;
+
+    /**
+     * Collections and values common in messages.
+     */
+    public static final KryoRegistry DEFAULT = new KryoRegistry(
+            ArrayList.class, LinkedList.class, HashMap.class,
+            LinkedHashMap.class, TreeMap.class, HashSet.class,
+            LinkedHashSet.class, TreeSet.class, Object[].class,
+            String[].class, byte[].class, int[].class, long[].class,
+            Date.class, BigInteger.class, BigDecimal.class, Class.class);
+
+    private final List<Class<?>> types;
+    private final int fingerprint;
+    private final KryoSerializer serializer;
+
+    /**
+     * @param types
+     *            in the order of their ids.
+     */
+    public KryoRegistry(final Class<?>... types) {
+        if (new HashSet<>(Arrays.asList(types)).size() != types.length)
+            throw new IllegalArgumentException("duplicate types in "
+                    + Arrays.toString(types));
+        this.types = Collections.unmodifiableList(Arrays.asList(types.clone()));
+        fingerprint = fingerprint(types);
+        serializer = new KryoSerializer(this);
+    }
+
+    /**
+     * @param more
+     * @return the next version of this registry, with {@code more} appended.
+     */
+    public KryoRegistry with(final Class<?>... more) {
+        Class<?>[] all = types.toArray(new Class<?>[types.size()
+                + more.length]);
+        System.arraycopy(more, 0, all, types.size(), more.length);
+        return new KryoRegistry(all);
+    }
+
+    public List<Class<?>> getTypes() {
+        return types;
+    }
+
+    /**
+     * @return hash of the names of the classes in order, and of the names
+     *         and types of the fields of those written field by field, which
+     *         differs between registries that assign any id differently or
+     *         were built from different versions of a class.
+     */
+    public int getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return a {@link KryoSerializer} using this registry.
+     */
+    public KryoSerializer getSerializer() {
+        return serializer;
+    }
+
+    /**
+     * Fields are hashed as Kryo's {@link FieldSerializer} writes them, sorted
+     * by name. Other classes, collections and JDK values among them, have
+     * serializers of their own and go by name alone, so that the internals
+     * of the JDK do not make peers on different versions disagree.
+     */
+    private static int fingerprint(final Class<?>... types) {
+        Kryo kryo = new Kryo();
+        int h = FIRST_ID;
+        for (Class<?> type : types) {
+            h = 31 * h + type.getName().hashCode();
+            Object written = kryo.getDefaultSerializer(type);
+            if (!(written instanceof FieldSerializer))
+                continue;
+            for (FieldSerializer.CachedField<?> cached : ((FieldSerializer<?>) written)
+                    .getFields()) {
+                Field field = cached.getField();
+                h = 31 * h + field.getName().hashCode();
+                h = 31 * h + field.getType().getName().hashCode();
+            }
+        }
+        return h;
+    }
+
+    void register(final Kryo kryo) {
+        for (int i = 0; i < types.size(); ++i)
+            kryo.register(types.get(i), FIRST_ID + i);
+    }
+
+    @Override
+    public String toString() {
+        return "KryoRegistry{types = " + types.size() + ", fingerprint = "
+                + Integer.toHexString(fingerprint) + "}";
+    }
+}
@@ -3,31 +3,106 @@ package org.sqg.util;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
 
+import org.objenesis.instantiator.ObjectInstantiator;
+import org.objenesis.strategy.InstantiatorStrategy;
+import org.objenesis.strategy.StdInstantiatorStrategy;
 import org.sqg.mina.AbstractSerializer;
 
 import com.esotericsoftware.kryo.Kryo;
-import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.ByteBufferOutput;
 import com.esotericsoftware.kryo.io.Output;
 
 public final class KryoSerializer extends AbstractSerializer {
 
     /**
-     * FIXME How to prevent memory leaks here?
+     * Create objects with their no-arg constructor, whatever its visibility,
+     * or without calling any constructor if there is none. Kryo's default
+     * strategy goes through ReflectASM, whose generated accessors cannot
+     * reach private classes on newer JVMs.
      */
-    private static final ThreadLocal<Kryo> KRYOS = new ThreadLocal<Kryo>() {
+    static final class ConstructorInstantiatorStrategy implements
+            InstantiatorStrategy {
+
+        private final InstantiatorStrategy fallback = new StdInstantiatorStrategy();
+
         @Override
-        protected Kryo initialValue() {
-            return new Kryo();
+        public <T> ObjectInstantiator<T> newInstantiatorOf(final Class<T> type) {
+            final Constructor<T> constructor;
+            try {
+                constructor = type.getDeclaredConstructor();
+                constructor.setAccessible(true);
+            } catch (NoSuchMethodException | RuntimeException e) {
+                return fallback.newInstantiatorOf(type);
+            }
+            return new ObjectInstantiator<T>() {
+                @Override
+                public T newInstance() {
+                    try {
+                        return constructor.newInstance();
+                    } catch (ReflectiveOperationException e) {
+                        throw new KryoException(e);
+                    }
+                }
+            };
+        }
+    }
+
+    private final KryoPool kryos;
+
+    /**
+     * Serializer writing class names.
+     */
+    public KryoSerializer() {
+        this(null);
+    }
+
+    /**
+     * @param registry
+     *            classes to write as ids, null for none.
+     * @see KryoRegistry#getSerializer()
+     */
+    public KryoSerializer(final KryoRegistry registry) {
+        kryos = new KryoPool(KryoPool.DEFAULT_MAX_IDLE) {
+            @Override
+            protected Kryo newKryo() {
+                Kryo kryo = new Kryo();
+                kryo.setInstantiatorStrategy(
+                        new ConstructorInstantiatorStrategy());
+                if (registry != null)
+                    registry.register(kryo);
+                return kryo;
+            };
         };
-    };
+    }
 
     @Override
     public <T> void serialize(final T objectGraph, final OutputStream os)
             throws IOException {
-        Output out = new Output(os);
-        KRYOS.get().writeClassAndObject(out, objectGraph);
-        out.flush();
+        KryoPool.Context context = kryos.borrow();
+        try {
+            Output out = context.output(os);
+            context.kryo().writeClassAndObject(out, objectGraph);
+            out.flush();
+        } finally {
+            kryos.release(context);
+        }
+    }
+
+    @Override
+    public <T> ByteBuffer serialize(final T objectGraph,
+            final ByteBuffer buffer) {
+        KryoPool.Context context = kryos.borrow();
+        try {
+            ByteBufferOutput out = context.output(buffer);
+            context.kryo().writeClassAndObject(out, objectGraph);
+            return context.written();
+        } finally {
+            kryos.release(context);
+        }
     }
 
     @Override
@@ -43,6 +118,26 @@ public final class KryoSerializer extends AbstractSerializer {
     @Override
     public Object deserialize(InputStream is) throws IOException,
             ClassNotFoundException {
-        return KRYOS.get().readClassAndObject(new Input(is));
+        KryoPool.Context context = kryos.borrow();
+        try {
+            return context.kryo().readClassAndObject(context.input(is));
+        } finally {
+            kryos.release(context);
+        }
+    }
+
+    @Override
+    public <T> T deserialize(final ByteBuffer buffer, final Class<T> type) {
+        return type.cast(deserialize(buffer));
+    }
+
+    @Override
+    public Object deserialize(final ByteBuffer buffer) {
+        KryoPool.Context context = kryos.borrow();
+        try {
+            return context.kryo().readClassAndObject(context.input(buffer));
+        } finally {
+            kryos.release(context);
+        }
     }
 }
@@ -0,0 +1,511 @@
+package org.sqg.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.sqg.mina.AbstractSerializer;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.Registration;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * Serializer of plain objects through {@link MethodHandle}s to their fields,
+ * looked up once per class.
+ * <p>
+ * The handles of primitive fields are adapted to their exact type, so values
+ * are read and written without reflection or boxing. {@link String} fields
+ * are written directly. Fields of other types are written the same way when
+ * their class is an application one, and by Kryo otherwise, as are
+ * {@code java.*} classes, arrays and enums. The class of each such object is
+ * written by Kryo, by id if it is in the {@link KryoRegistry}. Objects are
+ * written as a tree, shared references and cycles are not preserved.
+ * </p>
+ */
+public final class MethodHandleSerializer extends AbstractSerializer {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final ClassValue<ClassAccessor> ACCESSORS = new ClassValue<ClassAccessor>() {
+        @Override
+        protected ClassAccessor computeValue(final Class<?> type) {
+            return ClassAccessor.of(type);
+        }
+    };
+
+    private final KryoPool kryos;
+
+    /**
+     * Serializer writing class names.
+     */
+    public MethodHandleSerializer() {
+        this(null);
+    }
+
+    /**
+     * @param registry
+     *            classes to write as ids, null for none.
+     */
+    public MethodHandleSerializer(final KryoRegistry registry) {
+        kryos = new KryoPool(KryoPool.DEFAULT_MAX_IDLE) {
+            @Override
+            protected Kryo newKryo() {
+                Kryo kryo = new Kryo();
+                kryo.setInstantiatorStrategy(
+                        new KryoSerializer.ConstructorInstantiatorStrategy());
+                // Trees only, resetting the reference map would cost more
+                // than the fields.
+                kryo.setReferences(false);
+                if (registry != null)
+                    registry.register(kryo);
+                return kryo;
+            };
+        };
+    }
+
+    @Override
+    public <T> void serialize(final T objectGraph, final OutputStream os)
+            throws IOException {
+        KryoPool.Context context = kryos.borrow();
+        try {
+            Output out = context.output(os);
+            writeRoot(context.kryo(), out, objectGraph);
+            out.flush();
+        } finally {
+            kryos.release(context);
+        }
+    }
+
+    @Override
+    public <T> ByteBuffer serialize(final T objectGraph,
+            final ByteBuffer buffer) {
+        KryoPool.Context context = kryos.borrow();
+        try {
+            writeRoot(context.kryo(), context.output(buffer), objectGraph);
+            return context.written();
+        } finally {
+            kryos.release(context);
+        }
+    }
+
+    @Override
+    public <T> T deserialize(final InputStream is, final Class<T> type)
+            throws IOException {
+        return type.cast(deserialize(is));
+    }
+
+    @Override
+    public Object deserialize(final InputStream is) throws IOException {
+        KryoPool.Context context = kryos.borrow();
+        try {
+            return readRoot(context.kryo(), context.input(is));
+        } finally {
+            kryos.release(context);
+        }
+    }
+
+    @Override
+    public <T> T deserialize(final ByteBuffer buffer, final Class<T> type) {
+        return type.cast(deserialize(buffer));
+    }
+
+    @Override
+    public Object deserialize(final ByteBuffer buffer) {
+        KryoPool.Context context = kryos.borrow();
+        try {
+            return readRoot(context.kryo(), context.input(buffer));
+        } finally {
+            kryos.release(context);
+        }
+    }
+
+    /**
+     * Kryo only forgets the class names it has written at the end of its own
+     * top-level calls, and writing a class is not one.
+     */
+    private static void writeRoot(final Kryo kryo, final Output out,
+            final Object object) {
+        try {
+            write(kryo, out, object);
+        } finally {
+            kryo.reset();
+        }
+    }
+
+    private static Object readRoot(final Kryo kryo, final Input in) {
+        try {
+            return read(kryo, in);
+        } finally {
+            kryo.reset();
+        }
+    }
+
+    private static void write(final Kryo kryo, final Output out,
+            final Object object) {
+        if (object == null) {
+            kryo.writeClass(out, null);
+            return;
+        }
+        Registration registration = kryo.writeClass(out, object.getClass());
+        ClassAccessor accessor = ACCESSORS.get(object.getClass());
+        if (accessor == null)
+            kryo.writeObject(out, object, registration.getSerializer());
+        else
+            accessor.write(kryo, out, object);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object read(final Kryo kryo, final Input in) {
+        Registration registration = kryo.readClass(in);
+        if (registration == null)
+            return null;
+        ClassAccessor accessor = ACCESSORS.get(registration.getType());
+        if (accessor == null)
+            return kryo.readObject(in, registration.getType(),
+                    registration.getSerializer());
+        return accessor.read(kryo, in);
+    }
+
+    /**
+     * Handles to the constructor and fields of a class.
+     */
+    private static final class ClassAccessor {
+
+        private final Class<?> type;
+        private final MethodHandle constructor;
+        private final FieldAccessor[] fields;
+
+        private ClassAccessor(final Class<?> type,
+                final MethodHandle constructor, final FieldAccessor[] fields) {
+            this.type = type;
+            this.constructor = constructor;
+            this.fields = fields;
+        }
+
+        /**
+         * @param type
+         * @return the accessor, null for classes left to Kryo, including any
+         *         whose fields cannot be accessed.
+         */
+        static ClassAccessor of(final Class<?> type) {
+            if (type.isArray() || type.isEnum() || type.isInterface()
+                    || type.isPrimitive()
+                    || Modifier.isAbstract(type.getModifiers())
+                    || type.getName().startsWith("java."))
+                return null;
+            List<Field> all = SerializedFields.of(type);
+            try {
+                MethodHandle constructor = null;
+                try {
+                    Constructor<?> c = type.getDeclaredConstructor();
+                    c.setAccessible(true);
+                    constructor = LOOKUP.unreflectConstructor(c).asType(
+                            MethodType.methodType(Object.class));
+                } catch (NoSuchMethodException e) {
+                    // Instantiated by Kryo, without calling a constructor.
+                }
+                FieldAccessor[] fields = new FieldAccessor[all.size()];
+                for (int i = 0; i < fields.length; ++i)
+                    fields[i] = FieldAccessor.of(all.get(i));
+                return new ClassAccessor(type, constructor, fields);
+            } catch (IllegalAccessException | RuntimeException e) {
+                return null;
+            }
+        }
+
+        void write(final Kryo kryo, final Output out, final Object object) {
+            try {
+                for (FieldAccessor field : fields)
+                    field.write(kryo, out, object);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new KryoException(e);
+            }
+        }
+
+        Object read(final Kryo kryo, final Input in) {
+            try {
+                Object object = constructor != null ? (Object) constructor
+                        .invokeExact() : kryo.newInstance(type);
+                for (FieldAccessor field : fields)
+                    field.read(kryo, in, object);
+                return object;
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new KryoException(e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "ClassAccessor{type = " + type.getName() + ", fields = "
+                    + Arrays.toString(fields) + "}";
+        }
+    }
+
+    /**
+     * Getter and setter of one field, typed {@code (Object)T} and
+     * {@code (Object, T)void} where {@code T} is the exact type the subclass
+     * reads and writes.
+     */
+    private abstract static class FieldAccessor {
+
+        protected final Field field;
+        protected final MethodHandle getter;
+        protected final MethodHandle setter;
+
+        FieldAccessor(final Field field, final Class<?> valueType)
+                throws IllegalAccessException {
+            field.setAccessible(true);
+            this.field = field;
+            getter = LOOKUP.unreflectGetter(field).asType(
+                    MethodType.methodType(valueType, Object.class));
+            setter = LOOKUP.unreflectSetter(field).asType(
+                    MethodType.methodType(void.class, Object.class,
+                            valueType));
+        }
+
+        static FieldAccessor of(final Field field)
+                throws IllegalAccessException {
+            Class<?> type = field.getType();
+            if (type == int.class)
+                return new IntField(field);
+            if (type == long.class)
+                return new LongField(field);
+            if (type == boolean.class)
+                return new BooleanField(field);
+            if (type == double.class)
+                return new DoubleField(field);
+            if (type == float.class)
+                return new FloatField(field);
+            if (type == short.class)
+                return new ShortField(field);
+            if (type == byte.class)
+                return new ByteField(field);
+            if (type == char.class)
+                return new CharField(field);
+            if (type == String.class)
+                return new StringField(field);
+            return new ObjectField(field);
+        }
+
+        abstract void write(Kryo kryo, Output out, Object object)
+                throws Throwable;
+
+        abstract void read(Kryo kryo, Input in, Object object)
+                throws Throwable;
+
+        @Override
+        public String toString() {
+            return field.getName();
+        }
+    }
+
+    private static final class IntField extends FieldAccessor {
+
+        IntField(final Field field) throws IllegalAccessException {
+            super(field, int.class);
+        }
+
+        @Override
+        void write(final Kryo kryo, final Output out, final Object object)
+                throws Throwable {
+            out.writeVarInt((int) getter.invokeExact(object), false);
+        }
+
+        @Override
+        void read(final Kryo kryo, final Input in, final Object object)
+                throws Throwable {
+            setter.invokeExact(object, in.readVarInt(false));
+        }
+    }
+
+    private static final class LongField extends FieldAccessor {
+
+        LongField(final Field field) throws IllegalAccessException {
+            super(field, long.class);
+        }
+
+        @Override
+        void write(final Kryo kryo, final Output out, final Object object)
+                throws Throwable {
+            out.writeVarLong((long) getter.invokeExact(object), false);
+        }
+
+        @Override
+        void read(final Kryo kryo, final Input in, final Object object)
+                throws Throwable {
+            setter.invokeExact(object, in.readVarLong(false));
+        }
+    }
+
+    private static final class BooleanField extends FieldAccessor {
+
+        BooleanField(final Field field) throws IllegalAccessException {
+            super(field, boolean.class);
+        }
+
+        @Override
+        void write(final Kryo kryo, final Output out, final Object object)
+                throws Throwable {
+            out.writeBoolean((boolean) getter.invokeExact(object));
+        }
+
+        @Override
+        void read(final Kryo kryo, final Input in, final Object object)
+                throws Throwable {
+            setter.invokeExact(object, in.readBoolean());
+        }
+    }
+
+    private static final class DoubleField extends FieldAccessor {
+
+        DoubleField(final Field field) throws IllegalAccessException {
+            super(field, double.class);
+        }
+
+        @Override
+        void write(final Kryo kryo, final Output out, final Object object)
+                throws Throwable {
+            out.writeDouble((double) getter.invokeExact(object));
+        }
+
+        @Override
+        void read(final Kryo kryo, final Input in, final Object object)
+                throws Throwable {
+            setter.invokeExact(object, in.readDouble());
+        }
+    }
+
+    private static final class FloatField extends FieldAccessor {
+
+        FloatField(final Field field) throws IllegalAccessException {
+            super(field, float.class);
+        }
+
+        @Override
+        void write(final Kryo kryo, final Output out, final Object object)
+                throws Throwable {
+            out.writeFloat((float) getter.invokeExact(object));
+        }
+
+        @Override
+        void read(final Kryo kryo, final Input in, final Object object)
+                throws Throwable {
+            setter.invokeExact(object, in.readFloat());
+        }
+    }
+
+    private static final class ShortField extends FieldAccessor {
+
+        ShortField(final Field field) throws IllegalAccessException {
+            super(field, short.class);
+        }
+
+        @Override
+        void write(final Kryo kryo, final Output out, final Object object)
+                throws Throwable {
+            out.writeShort((short) getter.invokeExact(object));
+        }
+
+        @Override
+        void read(final Kryo kryo, final Input in, final Object object)
+                throws Throwable {
+            setter.invokeExact(object, in.readShort());
+        }
+    }
+
+    private static final class ByteField extends FieldAccessor {
+
+        ByteField(final Field field) throws IllegalAccessException {
+            super(field, byte.class);
+        }
+
+        @Override
+        void write(final Kryo kryo, final Output out, final Object object)
+                throws Throwable {
+            out.writeByte((byte) getter.invokeExact(object));
+        }
+
+        @Override
+        void read(final Kryo kryo, final Input in, final Object object)
+                throws Throwable {
+            setter.invokeExact(object, in.readByte());
+        }
+    }
+
+    private static final class CharField extends FieldAccessor {
+
+        CharField(final Field field) throws IllegalAccessException {
+            super(field, char.class);
+        }
+
+        @Override
+        void write(final Kryo kryo, final Output out, final Object object)
+                throws Throwable {
+            out.writeChar((char) getter.invokeExact(object));
+        }
+
+        @Override
+        void read(final Kryo kryo, final Input in, final Object object)
+                throws Throwable {
+            setter.invokeExact(object, in.readChar());
+        }
+    }
+
+    private static final class StringField extends FieldAccessor {
+
+        StringField(final Field field) throws IllegalAccessException {
+            super(field, String.class);
+        }
+
+        @Override
+        void write(final Kryo kryo, final Output out, final Object object)
+                throws Throwable {
+            out.writeString((String) getter.invokeExact(object));
+        }
+
+        @Override
+        void read(final Kryo kryo, final Input in, final Object object)
+                throws Throwable {
+            setter.invokeExact(object, in.readString());
+        }
+    }
+
+    /**
+     * Any other field, with the class of its value written ahead of it.
+     */
+    private static final class ObjectField extends FieldAccessor {
+
+        ObjectField(final Field field) throws IllegalAccessException {
+            super(field, Object.class);
+        }
+
+        @Override
+        void write(final Kryo kryo, final Output out, final Object object)
+                throws Throwable {
+            MethodHandleSerializer.write(kryo, out,
+                    (Object) getter.invokeExact(object));
+        }
+
+        @Override
+        void read(final Kryo kryo, final Input in, final Object object)
+                throws Throwable {
+            setter.invokeExact(object, MethodHandleSerializer.read(kryo, in));
+        }
+    }
+}
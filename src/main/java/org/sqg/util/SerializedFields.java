@@ -0,0 +1,48 @@
+package org.sqg.util;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Fields the reflective serializers of this package write, in the order they
+ * write them.
+ */
+final class SerializedFields {
+
+    private static final Comparator<Field> BY_NAME = new Comparator<Field>() {
+        @Override
+        public int compare(final Field f1, final Field f2) {
+            return f1.getName().compareTo(f2.getName());
+        }
+    };
+
+    private SerializedFields() {
+    }
+
+    /**
+     * @param type
+     * @return the fields of the class and its superclasses that are neither
+     *         static, transient nor synthetic. Superclass fields first, each
+     *         class by name, so the order does not depend on the JVM.
+     */
+    static List<Field> of(final Class<?> type) {
+        List<Field> all = new ArrayList<>();
+        for (Class<?> c = type; c != null && c != Object.class; c = c
+                .getSuperclass()) {
+            List<Field> declared = new ArrayList<>();
+            for (Field field : c.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (!Modifier.isStatic(modifiers)
+                        && !Modifier.isTransient(modifiers)
+                        && !field.isSynthetic())
+                    declared.add(field);
+            }
+            declared.sort(BY_NAME);
+            all.addAll(0, declared);
+        }
+        return all;
+    }
+}
@@ -3,6 +3,7 @@ package org.sqg.util;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 public interface Serializer {
 
@@ -10,12 +11,47 @@ public interface Serializer {
 
     <T> byte[] serialize(T objectGraph);
 
+    /**
+     * Serialize into a buffer from its position on, up to its capacity. When
+     * it runs out of room, a copy twice as large, of the same kind and byte
+     * order and with the content before the position kept, takes over.
+     *
+     * @param objectGraph
+     * @param buffer
+     * @return the buffer holding the data, {@code buffer} itself unless it
+     *         had to grow, positioned after the data.
+     * @throws IOException
+     */
+    <T> ByteBuffer serialize(T objectGraph, ByteBuffer buffer)
+            throws IOException;
+
     <T> T deserialize(InputStream is, Class<T> type) throws IOException;
 
     <T> T deserialize(byte[] bytes, Class<T> type);
 
+    /**
+     * Deserialize from the position of a buffer, which is left after the
+     * data read.
+     *
+     * @param buffer
+     * @param type
+     * @return the object.
+     * @throws IOException
+     */
+    <T> T deserialize(ByteBuffer buffer, Class<T> type) throws IOException;
+
     Object deserialize(InputStream is) throws IOException,
             ClassNotFoundException;
 
     Object deserialize(byte[] bytes) throws ClassNotFoundException;
+
+    /**
+     * @param buffer
+     * @return the object read from the position of the buffer on.
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @see #deserialize(ByteBuffer, Class)
+     */
+    Object deserialize(ByteBuffer buffer) throws IOException,
+            ClassNotFoundException;
 }
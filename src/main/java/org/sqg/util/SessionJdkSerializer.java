@@ -0,0 +1,268 @@
+package org.sqg.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamConstants;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.sqg.mina.AbstractSerializer;
+
+/**
+ * Java serialization with the class descriptors of a connection sent once.
+ * <p>
+ * {@link JdkSerializer} opens a new object stream per message, which writes
+ * the stream header and the descriptor of every class in it, names of the
+ * class and its fields included, each time. Here the descriptor of a class
+ * only goes out the first time, under the next number, and later messages
+ * refer to that number. One object stream is kept each way and reused from
+ * message to message without its header; both sides clear its handles after
+ * every message, so objects are not shared across messages.
+ * </p>
+ * <p>
+ * As with {@link CompactSerializer}, an instance belongs to one connection,
+ * or one stream of messages read in the order they were written, and each
+ * side needs its own.
+ * </p>
+ */
+public final class SessionJdkSerializer extends AbstractSerializer {
+
+    /**
+     * Output stream of the writer, pointed at the stream of the message being
+     * written, discarding anything written in between.
+     */
+    private static final class Sink extends OutputStream {
+
+        private OutputStream target;
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (target != null)
+                target.write(b);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+                throws IOException {
+            if (target != null)
+                target.write(b, off, len);
+        }
+    }
+
+    /**
+     * Input stream of the reader, pointed at the stream of the message being
+     * read, or at a lone reset between messages.
+     */
+    private static final class Source extends InputStream {
+
+        private InputStream source;
+        private boolean reset;
+
+        @Override
+        public int read() throws IOException {
+            if (reset) {
+                reset = false;
+                return ObjectStreamConstants.TC_RESET;
+            }
+            return source == null ? -1 : source.read();
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+                throws IOException {
+            if (len == 0)
+                return 0;
+            if (reset) {
+                b[off] = (byte) read();
+                return 1;
+            }
+            return source == null ? -1 : source.read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (reset)
+                return 1;
+            return source == null ? 0 : source.available();
+        }
+    }
+
+    private final class Output extends ObjectOutputStream {
+
+        Output() throws IOException {
+            super(sink);
+        }
+
+        @Override
+        protected void writeStreamHeader() {
+        }
+
+        @Override
+        protected void writeClassDescriptor(final ObjectStreamClass desc)
+                throws IOException {
+            Class<?> type = desc.forClass();
+            Integer id = writtenIds.get(type);
+            if (id != null) {
+                writeVarint(id);
+                return;
+            }
+            id = written.size();
+            written.add(type);
+            writtenIds.put(type, id);
+            writeVarint(id);
+            super.writeClassDescriptor(desc);
+        }
+
+        private void writeVarint(int value) throws IOException {
+            while ((value & ~0x7f) != 0) {
+                write(value & 0x7f | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+    }
+
+    private final class Input extends ObjectInputStream {
+
+        private final Map<ObjectStreamClass, Class<?>> classes = new IdentityHashMap<>();
+
+        Input() throws IOException {
+            super(source);
+        }
+
+        @Override
+        protected void readStreamHeader() {
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException,
+                ClassNotFoundException {
+            int id = readVarint();
+            if (id < read.size())
+                return read.get(id);
+            if (id != read.size())
+                throw new StreamCorruptedException("unknown class descriptor "
+                        + id);
+            ObjectStreamClass desc = super.readClassDescriptor();
+            read.add(desc);
+            return desc;
+        }
+
+        /**
+         * Descriptors are read once, so are their classes resolved.
+         */
+        @Override
+        protected Class<?> resolveClass(final ObjectStreamClass desc)
+                throws IOException, ClassNotFoundException {
+            Class<?> type = classes.get(desc);
+            if (type == null) {
+                type = super.resolveClass(desc);
+                classes.put(desc, type);
+            }
+            return type;
+        }
+
+        private int readVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = readUnsignedByte();
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new StreamCorruptedException("malformed varint");
+        }
+    }
+
+    /**
+     * Classes whose descriptor the peer has, in the order it numbered them.
+     * Guarded by {@link #written}, as is everything written.
+     */
+    private final List<Class<?>> written = new ArrayList<>();
+    private final Map<Class<?>, Integer> writtenIds = new HashMap<>();
+    private final Sink sink = new Sink();
+    /**
+     * Dropped after a failure, which leaves it in an unknown state.
+     */
+    private Output output;
+    /**
+     * Descriptors read so far, by number. Guarded by itself, as is everything
+     * read.
+     */
+    private final List<ObjectStreamClass> read = new ArrayList<>();
+    private final Source source = new Source();
+    private Input input;
+
+    @Override
+    public <T> void serialize(final T objectGraph, final OutputStream os)
+            throws IOException {
+        synchronized (written) {
+            int known = written.size();
+            boolean done = false;
+            try {
+                if (output == null)
+                    output = new Output();
+                sink.target = os;
+                output.writeObject(objectGraph);
+                output.flush();
+                // The reset marker is not sent, the reader resets on its own.
+                sink.target = null;
+                output.reset();
+                output.flush();
+                done = true;
+            } finally {
+                sink.target = null;
+                if (!done) {
+                    output = null;
+                    // Descriptors of a message that is not sent are not known.
+                    while (written.size() > known)
+                        writtenIds.remove(written.remove(written.size() - 1));
+                }
+            }
+        }
+    }
+
+    @Override
+    public <T> T deserialize(final InputStream is, final Class<T> type)
+            throws IOException {
+        try {
+            return type.cast(deserialize(is));
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public Object deserialize(final InputStream is) throws IOException,
+            ClassNotFoundException {
+        synchronized (read) {
+            boolean done = false;
+            try {
+                if (input == null)
+                    input = new Input();
+                source.source = is;
+                Object objectGraph = input.readObject();
+                // Feed the reset the writer did not send, which the stream
+                // takes in as it looks for block data.
+                source.source = null;
+                source.reset = true;
+                input.read();
+                done = true;
+                return objectGraph;
+            } finally {
+                source.source = null;
+                source.reset = false;
+                if (!done)
+                    input = null;
+            }
+        }
+    }
+}
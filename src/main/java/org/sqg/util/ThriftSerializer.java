@@ -0,0 +1,428 @@
+package org.sqg.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TIOStreamTransport;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+import org.sqg.mina.AbstractSerializer;
+
+/**
+ * Serializer writing Thrift structs with {@link TCompactProtocol}, and
+ * anything else with a fallback serializer.
+ * <p>
+ * A struct is written as a marker byte, its class name and the struct itself,
+ * other objects as another marker byte and what the fallback writes. The
+ * transports and protocols are pooled and reused from call to call, as
+ * {@link KryoSerializer} does with its {@code Kryo} instances.
+ * </p>
+ * <p>
+ * Lengths of strings, binaries and containers read are limited, so that a
+ * corrupt or hostile length cannot make the protocol allocate more than the
+ * limits allow.
+ * </p>
+ */
+public final class ThriftSerializer extends AbstractSerializer {
+
+    private static final byte FALLBACK = 0;
+    private static final byte STRUCT = 1;
+
+    /**
+     * Default limit of strings and binaries read, in bytes.
+     */
+    public static final long DEFAULT_STRING_LENGTH_LIMIT = 16 << 20;
+
+    /**
+     * Default limit of lists, sets and maps read, in elements.
+     */
+    public static final long DEFAULT_CONTAINER_LENGTH_LIMIT = 16 << 20;
+
+    /**
+     * The marker and the class name as the compact protocol writes strings,
+     * encoded once per class.
+     */
+    private static final ClassValue<byte[]> HEADERS = new ClassValue<byte[]>() {
+        @Override
+        protected byte[] computeValue(final Class<?> type) {
+            byte[] name = type.getName().getBytes(StandardCharsets.UTF_8);
+            byte[] header = new byte[1 + 5 + name.length];
+            int n = 0;
+            header[n++] = STRUCT;
+            int length = name.length;
+            while ((length & ~0x7f) != 0) {
+                header[n++] = (byte) (length & 0x7f | 0x80);
+                length >>>= 7;
+            }
+            header[n++] = (byte) length;
+            System.arraycopy(name, 0, header, n, name.length);
+            return Arrays.copyOf(header, n + name.length);
+        }
+    };
+
+    /**
+     * Transports over a buffer or a stream and a protocol over each, to be
+     * used by one thread at a time.
+     */
+    private static final class Context {
+
+        private final BufferTransport buffer = new BufferTransport();
+        private final StreamTransport stream = new StreamTransport();
+        private final TProtocol bufferProtocol;
+        private final TProtocol streamProtocol;
+
+        Context(final long stringLengthLimit, final long containerLengthLimit) {
+            bufferProtocol = new CopyingCompactProtocol(buffer,
+                    stringLengthLimit, containerLengthLimit);
+            streamProtocol = new TCompactProtocol(stream, stringLengthLimit,
+                    containerLengthLimit);
+        }
+
+        /**
+         * @param aBuffer
+         * @return a protocol reading {@code aBuffer} from its position to its
+         *         limit.
+         */
+        TProtocol input(final ByteBuffer aBuffer) {
+            buffer.attach(aBuffer);
+            bufferProtocol.reset();
+            return bufferProtocol;
+        }
+
+        /**
+         * @param aBuffer
+         * @return a protocol writing into {@code aBuffer} from its position
+         *         on, or into a larger copy once it is full.
+         * @see #written()
+         */
+        TProtocol output(final ByteBuffer aBuffer) {
+            aBuffer.limit(aBuffer.capacity());
+            return input(aBuffer);
+        }
+
+        TProtocol input(final InputStream is) {
+            stream.attach(is, null);
+            streamProtocol.reset();
+            return streamProtocol;
+        }
+
+        TProtocol output(final OutputStream os) {
+            stream.attach(null, os);
+            streamProtocol.reset();
+            return streamProtocol;
+        }
+
+        /**
+         * @return the buffer written into, positioned after the data.
+         */
+        ByteBuffer written() {
+            return buffer.buffer;
+        }
+
+        void detach() {
+            buffer.attach(null);
+            stream.attach(null, null);
+        }
+    }
+
+    /**
+     * Reads a buffer from its position to its limit, or writes into it from
+     * its position on, growing it as {@link ByteBufferOutputStream} does.
+     * Heap buffers are exposed to the protocol, which then decodes strings
+     * straight from them.
+     */
+    private static final class BufferTransport extends TTransport {
+
+        private ByteBufferOutputStream os;
+        private ByteBuffer buffer;
+
+        void attach(final ByteBuffer aBuffer) {
+            buffer = aBuffer;
+            os = null;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void open() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public int read(final byte[] buf, final int off, final int len) {
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(buf, off, n);
+            return n;
+        }
+
+        @Override
+        public void write(final byte[] buf, final int off, final int len) {
+            if (buffer.remaining() < len) {
+                if (os == null)
+                    os = new ByteBufferOutputStream(buffer);
+                buffer = os.ensureRemaining(len);
+            }
+            buffer.put(buf, off, len);
+        }
+
+        @Override
+        public byte[] getBuffer() {
+            return buffer.hasArray() ? buffer.array() : null;
+        }
+
+        @Override
+        public int getBufferPosition() {
+            return buffer.hasArray() ? buffer.arrayOffset() + buffer.position()
+                    : 0;
+        }
+
+        @Override
+        public int getBytesRemainingInBuffer() {
+            return buffer.hasArray() ? buffer.remaining() : -1;
+        }
+
+        @Override
+        public void consumeBuffer(final int len) {
+            buffer.position(buffer.position() + len);
+        }
+    }
+
+    /**
+     * Compact protocol whose binaries are copies. Read from a transport that
+     * exposes its buffer, they would otherwise be views of it, which the
+     * caller reuses once the struct is decoded.
+     */
+    private static final class CopyingCompactProtocol extends TCompactProtocol {
+
+        CopyingCompactProtocol(final TTransport transport,
+                final long stringLengthLimit, final long containerLengthLimit) {
+            super(transport, stringLengthLimit, containerLengthLimit);
+        }
+
+        @Override
+        public ByteBuffer readBinary() throws TException {
+            ByteBuffer view = super.readBinary();
+            byte[] copy = new byte[view.remaining()];
+            view.get(copy);
+            return ByteBuffer.wrap(copy);
+        }
+    }
+
+    private static final class StreamTransport extends TIOStreamTransport {
+
+        void attach(final InputStream is, final OutputStream os) {
+            inputStream_ = is;
+            outputStream_ = os;
+        }
+    }
+
+    private final Serializer fallback;
+    private final long stringLengthLimit;
+    private final long containerLengthLimit;
+    private final ConcurrentMap<String, Constructor<?>> constructors = new ConcurrentHashMap<>();
+    private final Queue<Context> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    /**
+     * Serializer with a {@link KryoSerializer} for objects that are not
+     * structs.
+     */
+    public ThriftSerializer() {
+        this(new KryoSerializer());
+    }
+
+    /**
+     * @param fallback
+     *            serializer for objects that are not structs.
+     */
+    public ThriftSerializer(final Serializer fallback) {
+        this(fallback, DEFAULT_STRING_LENGTH_LIMIT,
+                DEFAULT_CONTAINER_LENGTH_LIMIT);
+    }
+
+    /**
+     * @param fallback
+     *            serializer for objects that are not structs.
+     * @param stringLengthLimit
+     *            longest string or binary read, in bytes, -1 for no limit.
+     * @param containerLengthLimit
+     *            largest list, set or map read, in elements, -1 for no limit.
+     */
+    public ThriftSerializer(final Serializer fallback,
+            final long stringLengthLimit, final long containerLengthLimit) {
+        this.fallback = fallback;
+        this.stringLengthLimit = stringLengthLimit;
+        this.containerLengthLimit = containerLengthLimit;
+    }
+
+    @Override
+    public <T> void serialize(final T objectGraph, final OutputStream os)
+            throws IOException {
+        if (!(objectGraph instanceof TBase)) {
+            os.write(FALLBACK);
+            fallback.serialize(objectGraph, os);
+            return;
+        }
+        Context context = borrow();
+        try {
+            write((TBase<?, ?>) objectGraph, context.output(os));
+        } finally {
+            release(context);
+        }
+    }
+
+    @Override
+    public <T> ByteBuffer serialize(final T objectGraph,
+            final ByteBuffer buffer) throws IOException {
+        if (!(objectGraph instanceof TBase)) {
+            ByteBuffer out = new ByteBufferOutputStream(buffer)
+                    .ensureRemaining(1);
+            out.put(FALLBACK);
+            return fallback.serialize(objectGraph, out);
+        }
+        Context context = borrow();
+        try {
+            write((TBase<?, ?>) objectGraph, context.output(buffer));
+            return context.written();
+        } finally {
+            release(context);
+        }
+    }
+
+    @Override
+    public <T> T deserialize(final InputStream is, final Class<T> type)
+            throws IOException {
+        try {
+            return type.cast(deserialize(is));
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public Object deserialize(final InputStream is) throws IOException,
+            ClassNotFoundException {
+        int marker = is.read();
+        if (marker == FALLBACK)
+            return fallback.deserialize(is);
+        Context context = borrow();
+        try {
+            return read(marker, context.input(is));
+        } finally {
+            release(context);
+        }
+    }
+
+    @Override
+    public <T> T deserialize(final ByteBuffer buffer, final Class<T> type)
+            throws IOException {
+        try {
+            return type.cast(deserialize(buffer));
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public Object deserialize(final ByteBuffer buffer) throws IOException,
+            ClassNotFoundException {
+        int marker = buffer.hasRemaining() ? buffer.get() : -1;
+        if (marker == FALLBACK)
+            return fallback.deserialize(buffer);
+        Context context = borrow();
+        try {
+            return read(marker, context.input(buffer));
+        } finally {
+            release(context);
+        }
+    }
+
+    private static void write(final TBase<?, ?> struct,
+            final TProtocol protocol) throws IOException {
+        try {
+            protocol.getTransport().write(HEADERS.get(struct.getClass()));
+            struct.write(protocol);
+        } catch (TException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private Object read(final int marker, final TProtocol protocol)
+            throws IOException, ClassNotFoundException {
+        if (marker != STRUCT)
+            throw new IOException(marker < 0 ? "no data" : "unknown marker "
+                    + marker);
+        try {
+            TBase<?, ?> struct = newInstance(protocol.readString());
+            struct.read(protocol);
+            return struct;
+        } catch (TTransportException e) {
+            if (e.getType() == TTransportException.END_OF_FILE)
+                throw new EOFException(e.getMessage());
+            throw new IOException(e);
+        } catch (TException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private TBase<?, ?> newInstance(final String className)
+            throws ClassNotFoundException, IOException {
+        Constructor<?> constructor = constructors.get(className);
+        if (constructor == null) {
+            Class<?> type = Class.forName(className, false,
+                    ThriftSerializer.class.getClassLoader());
+            if (!TBase.class.isAssignableFrom(type))
+                throw new IOException(className + " is not a struct");
+            try {
+                constructor = type.getConstructor();
+            } catch (NoSuchMethodException e) {
+                throw new IOException(e);
+            }
+            constructors.putIfAbsent(className, constructor);
+        }
+        try {
+            return (TBase<?, ?>) constructor.newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private Context borrow() {
+        Context context = idle.poll();
+        if (context != null) {
+            idleCount.decrementAndGet();
+            return context;
+        }
+        return new Context(stringLengthLimit, containerLengthLimit);
+    }
+
+    private void release(final Context context) {
+        context.detach();
+        if (idleCount.incrementAndGet() > KryoPool.DEFAULT_MAX_IDLE) {
+            idleCount.decrementAndGet();
+            return;
+        }
+        idle.offer(context);
+    }
+}
@@ -0,0 +1,878 @@
+package org.sqg.minatest;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.core.service.IoConnector;
+import org.apache.mina.core.service.IoService;
+import org.apache.mina.core.session.IoSession;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sqg.mina.BlockingClient;
+import org.sqg.mina.MultipartIoServiceConfig;
+import org.sqg.mina.SerializerType;
+import org.sqg.util.Compression;
+import org.sqg.util.KryoRegistry;
+import org.sqg.mina.Server;
+import org.sqg.thrift.generated.Student;
+
+public class ClientTest {
+
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(ClientTest.class);
+
+    /**
+     * @param config
+     * @return a server on port 12346 sending every message back.
+     */
+    private static Server echoServer(final MultipartIoServiceConfig config) {
+        return new Server(12346, config) {
+
+            @Override
+            protected Object handleMessage(Object messageObj) {
+                return messageObj;
+            }
+        };
+    }
+
+    @Test
+    public void testRequestAsync() throws InterruptedException,
+            ExecutionException {
+        try (final Server server = new Server(12346) {
+
+            @Override
+            protected Object handleMessage(Object messageObj) {
+                return "RE: " + messageObj;
+            }
+        }) {
+            try (final BlockingClient client = new BlockingClient(
+                    server.getLocalAddress())) {
+                List<CompletableFuture<String>> futures = new ArrayList<>();
+                for (int i = 0; i < 100; ++i)
+                    futures.add(client.<String, String> requestAsync("" + i));
+                for (int i = 0; i < futures.size(); ++i)
+                    Assert.assertEquals("RE: " + i, futures.get(i).get());
+            }
+        }
+    }
+
+    @Test
+    public void testSilentServer() throws IOException {
+        try (ServerSocket silent = new ServerSocket(12345)) {
+            long t1 = System.nanoTime();
+            // Connects, but no handshake ever comes back.
+            try (BlockingClient client = new BlockingClient(
+                    silent.getLocalSocketAddress()) {
+                @Override
+                protected IoService createIoService() {
+                    IoConnector connector = (IoConnector) super
+                            .createIoService();
+                    connector.setConnectTimeoutMillis(200L);
+                    return connector;
+                }
+            }) {
+                long t2 = System.nanoTime();
+                Assert.assertTrue(t2 - t1 < TimeUnit.SECONDS.toNanos(5L));
+                Assert.assertEquals(1, client.getConnectionCount());
+                Assert.assertEquals(SerializerType.JDK,
+                        client.getSerializerType());
+            }
+        }
+    }
+
+    @Test
+    public void testConnectFailure() {
+        final List<IoService> services = new ArrayList<>();
+        try {
+            new BlockingClient(new InetSocketAddress("127.0.0.1", 12345)) {
+                @Override
+                protected IoService createIoService() {
+                    IoService service = super.createIoService();
+                    services.add(service);
+                    return service;
+                }
+            }.close();
+            Assert.fail("nothing listens on the port");
+        } catch (RuntimeException e) {
+            LOGGER.info("expected: {}", e.toString());
+        }
+        // The connector is not left behind.
+        Assert.assertEquals(1, services.size());
+        Assert.assertTrue(services.get(0).isDisposed());
+    }
+
+    @Test
+    public void testLargeMessage() throws InterruptedException,
+            ExecutionException {
+        testLargeMessage(new MultipartIoServiceConfig());
+    }
+
+    @Test
+    public void testLargeMessageDirectBuffers() throws InterruptedException,
+            ExecutionException {
+        testLargeMessage(new MultipartIoServiceConfig().setDirectBuffers(true));
+    }
+
+    private void testLargeMessage(final MultipartIoServiceConfig config)
+            throws InterruptedException, ExecutionException {
+        try (final Server server = echoServer(config)) {
+            try (final BlockingClient client = new BlockingClient(
+                    server.getLocalAddress(), config)) {
+                char[] chars = new char[1 << 20];
+                Arrays.fill(chars, 'x');
+                String large = new String(chars);
+                List<CompletableFuture<String>> futures = new ArrayList<>();
+                for (int i = 0; i < 4; ++i)
+                    futures.add(client.<String, String> requestAsync(large + i));
+                for (int i = 0; i < futures.size(); ++i)
+                    Assert.assertEquals(large + i, futures.get(i).get());
+            }
+        }
+    }
+
+    @Test
+    public void testChunkedMessage() throws InterruptedException,
+            ExecutionException {
+        // Messages are far larger than a frame may be.
+        final MultipartIoServiceConfig config = new MultipartIoServiceConfig()
+                .setChunkSize(1 << 16).setMaxFrameSize(1 << 17);
+        try (final Server server = echoServer(config)) {
+            try (final BlockingClient client = new BlockingClient(
+                    server.getLocalAddress(), config)) {
+                final List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+                final List<byte[]> requests = new ArrayList<>();
+                final CountDownLatch latch = new CountDownLatch(4);
+                for (int t = 0; t < 4; ++t) {
+                    final byte[] large = new byte[(4 << 20) + t];
+                    for (int i = 0; i < large.length; ++i)
+                        large[i] = (byte) (i * 31 + t);
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                CompletableFuture<byte[]> future = client
+                                        .requestAsync(large);
+                                synchronized (futures) {
+                                    futures.add(future);
+                                    requests.add(large);
+                                }
+                            } finally {
+                                latch.countDown();
+                            }
+                        }
+                    }.start();
+                }
+                // Small ones go as one frame, between the chunks.
+                Assert.assertEquals("small", client.request("small"));
+                latch.await();
+                long start = System.nanoTime();
+                for (int i = 0; i < futures.size(); ++i)
+                    Assert.assertArrayEquals(requests.get(i), futures.get(i)
+                            .get());
+                LOGGER.info("4 chunked messages of 4 MB echoed in {} ms",
+                        (System.nanoTime() - start) / 1000000L);
+            }
+        }
+    }
+
+    @Test
+    public void testCompression() throws InterruptedException,
+            ExecutionException {
+        // Chunks are compressed one by one, on the write batch path too.
+        for (MultipartIoServiceConfig config : Arrays.asList(
+                new MultipartIoServiceConfig().setCompressionThreshold(1024),
+                new MultipartIoServiceConfig().setCompressionThreshold(1024)
+                        .setWriteBatchBytes(1 << 16),
+                new MultipartIoServiceConfig().setCompressionThreshold(1024)
+                        .setChunkSize(1 << 16).setMaxFrameSize(1 << 17))) {
+            try (final Server server = echoServer(config)) {
+                try (final BlockingClient client = new BlockingClient(
+                        server.getLocalAddress(), config)) {
+                    byte[] large = new byte[1 << 20];
+                    for (int i = 0; i < large.length; ++i)
+                        large[i] = (byte) (i / 64);
+                    long start = System.nanoTime();
+                    Assert.assertArrayEquals(large, client.request(large));
+                    LOGGER.info("1 MB echoed in {} ms, {}",
+                            (System.nanoTime() - start) / 1000000L,
+                            client.getCompression());
+                    Assert.assertEquals("small", client.request("small"));
+                    Compression compression = client.getCompression();
+                    Assert.assertTrue(compression.getCompressed() > 0L);
+                    Assert.assertTrue(compression.getSkipped() > 0L);
+                    Assert.assertTrue(compression.getRatio() < 0.1);
+                    Assert.assertTrue(server.getCompression()
+                            .getCompressed() > 0L);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testWriteBatchWindow() throws InterruptedException,
+            ExecutionException {
+        final long window = 300L;
+        MultipartIoServiceConfig config = new MultipartIoServiceConfig()
+                .setWriteBatchBytes(4096)
+                .setWriteBatchWindow(window, TimeUnit.MILLISECONDS);
+        try (final Server server = echoServer(new MultipartIoServiceConfig())) {
+            try (final BlockingClient client = new BlockingClient(
+                    server.getLocalAddress(), config)) {
+                CompletableFuture<String> first = client.requestAsync("first");
+                Thread.sleep(window / 2);
+                // Fills the batch, which goes out at once.
+                client.requestAsync(new byte[8192]).get();
+                long start = System.nanoTime();
+                CompletableFuture<String> next = client.requestAsync("next");
+                Assert.assertEquals("first", first.get());
+                // The window of the first batch does not cut this one short.
+                Assert.assertEquals("next", next.get());
+                long elapsed = System.nanoTime() - start;
+                LOGGER.info("next batch written after {} ms",
+                        elapsed / 1000000L);
+                Assert.assertTrue(elapsed >= TimeUnit.MILLISECONDS
+                        .toNanos(window * 9 / 10));
+            }
+        }
+    }
+
+    @Test
+    public void testWriteBatchClose() throws InterruptedException {
+        MultipartIoServiceConfig config = new MultipartIoServiceConfig()
+                .setWriteBatchBytes(4096)
+                .setWriteBatchWindow(1L, TimeUnit.HOURS);
+        final CompletableFuture<WriteFuture> response = new CompletableFuture<>();
+        final Server server = new Server(12346, config) {
+
+            @Override
+            protected Object handleMessage(Object messageObj) {
+                return null;
+            }
+
+            @Override
+            protected void messageReceived(IoSession session,
+                    int correlationId, Object messageObj) {
+                response.complete(sendMessage(session, correlationId,
+                        messageObj));
+            }
+        };
+        try (final BlockingClient client = new BlockingClient(
+                server.getLocalAddress())) {
+            client.requestAsync("never flushed");
+            WriteFuture written = response.get(5L, TimeUnit.SECONDS);
+            Assert.assertFalse(written.isDone());
+            // Closing the server completes the batch still open.
+            server.close();
+            Assert.assertTrue("pending batch never completed",
+                    written.await(5L, TimeUnit.SECONDS));
+            LOGGER.info("batch written = {}", written.isWritten());
+        } catch (ExecutionException | TimeoutException e) {
+            Assert.fail(e.toString());
+        } finally {
+            server.close();
+        }
+    }
+
+    static final class Failing implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private void writeObject(final ObjectOutputStream oos)
+                throws IOException {
+            oos.write(new byte[1 << 20]);
+            throw new IOException("failing on purpose");
+        }
+    }
+
+    @Test
+    public void testChunkedMessageAborted() throws InterruptedException {
+        MultipartIoServiceConfig config = new MultipartIoServiceConfig()
+                .setChunkSize(1 << 16).setSerializers(SerializerType.JDK);
+        try (final Server server = echoServer(config)) {
+            try (final BlockingClient client = new BlockingClient(
+                    server.getLocalAddress(), config)) {
+                try {
+                    client.requestAsync(new Failing()).get();
+                    Assert.fail("serializing is expected to fail");
+                } catch (ExecutionException e) {
+                    Assert.assertTrue(e.getCause() instanceof IOException);
+                }
+                // The peer dropped the partial message and goes on.
+                Assert.assertEquals("after", client.request("after"));
+            }
+        }
+    }
+
+    /**
+     * Takes several chunks, and a second to deserialize.
+     */
+    static final class Slow implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+        static final long MILLIS = 1000L;
+
+        private final byte[] data = new byte[1 << 18];
+
+        private void readObject(final ObjectInputStream ois)
+                throws IOException, ClassNotFoundException {
+            ois.defaultReadObject();
+            try {
+                Thread.sleep(MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Test
+    public void testChunkedResponseFromIoThread() throws InterruptedException {
+        final MultipartIoServiceConfig config = new MultipartIoServiceConfig()
+                .setChunkSize(1 << 16);
+        final byte[] large = new byte[32 << 20];
+        for (int i = 0; i < large.length; ++i)
+            large[i] = (byte) (i * 31);
+        // Handlers of a plain server run on the I/O processor.
+        class LargeServer extends Server {
+
+            LargeServer(final MultipartIoServiceConfig config) {
+                super(12346, config);
+            }
+
+            @Override
+            protected Object handleMessage(Object messageObj) {
+                return "large".equals(messageObj) ? large : messageObj;
+            }
+
+            long queuedBytes() {
+                long n = 0L;
+                for (IoSession session : service.getManagedSessions()
+                        .values())
+                    n = Math.max(n, session.getScheduledWriteBytes());
+                return n;
+            }
+        }
+        try (final LargeServer server = new LargeServer(config)) {
+            final AtomicLong maxQueued = new AtomicLong();
+            final AtomicBoolean sampling = new AtomicBoolean(true);
+            Thread sampler = new Thread() {
+                @Override
+                public void run() {
+                    while (sampling.get()) {
+                        long n = server.queuedBytes();
+                        if (n > maxQueued.get())
+                            maxQueued.set(n);
+                        Thread.yield();
+                    }
+                }
+            };
+            sampler.start();
+            try (final BlockingClient client = new BlockingClient(
+                    server.getLocalAddress(), config)) {
+                Assert.assertArrayEquals(large,
+                        client.<String, byte[]> request("large"));
+                Assert.assertEquals("small", client.request("small"));
+            } finally {
+                sampling.set(false);
+                sampler.join();
+            }
+            // A few chunks, not the 32 MB of the response.
+            LOGGER.info("at most {} bytes queued", maxQueued.get());
+            Assert.assertTrue(maxQueued.get() <= 8 << 16);
+        }
+    }
+
+    @Test
+    public void testChunkedMessageNotBlocking() throws InterruptedException,
+            ExecutionException {
+        MultipartIoServiceConfig config = new MultipartIoServiceConfig()
+                .setChunkSize(1 << 16).setSerializers(SerializerType.JDK);
+        try (final Server server = echoServer(config)) {
+            try (final BlockingClient client = new BlockingClient(
+                    server.getLocalAddress(), config)) {
+                CompletableFuture<Slow> slow = client.requestAsync(new Slow());
+                // Read and answered while the server deserializes the other.
+                long start = System.nanoTime();
+                Assert.assertEquals("small", client.request("small"));
+                long elapsed = System.nanoTime() - start;
+                LOGGER.info("answered in {} ms behind a chunked message",
+                        elapsed / 1000000L);
+                Assert.assertTrue(elapsed < TimeUnit.MILLISECONDS
+                        .toNanos(Slow.MILLIS / 2));
+                Assert.assertFalse(slow.isDone());
+                Assert.assertEquals(1 << 18, slow.get().data.length);
+            }
+        }
+    }
+
+    @Test
+    public void testChunkedMessageLimit() throws InterruptedException,
+            ExecutionException, TimeoutException {
+        MultipartIoServiceConfig config = new MultipartIoServiceConfig()
+                .setChunkSize(1 << 16).setSerializers(SerializerType.JDK)
+                .setMaxInboundChunkedMessages(1);
+        try (final Server server = echoServer(config)) {
+            try (final BlockingClient first = new BlockingClient(
+                    server.getLocalAddress(), config);
+                    final BlockingClient second = new BlockingClient(
+                            server.getLocalAddress(), config)) {
+                CompletableFuture<Slow> slow = first.requestAsync(new Slow());
+                Thread.sleep(Slow.MILLIS / 10);
+                // The only reader is busy, the message is dropped.
+                try {
+                    second.requestAsync(new byte[1 << 18], Slow.MILLIS / 2,
+                            TimeUnit.MILLISECONDS).get();
+                    Assert.fail("no reader for the message");
+                } catch (ExecutionException e) {
+                    Assert.assertTrue(e.getCause() instanceof TimeoutException);
+                }
+                Assert.assertEquals("small", second.request("small"));
+                Assert.assertEquals(1 << 18, slow.get().data.length);
+                byte[] large = new byte[1 << 18];
+                Assert.assertArrayEquals(large, second.request(large));
+            }
+        }
+    }
+
+    @Test
+    public void testChunkedWriteBatch() throws InterruptedException,
+            ExecutionException {
+        final long window = 200L;
+        MultipartIoServiceConfig config = new MultipartIoServiceConfig()
+                .setChunkSize(1 << 16).setWriteBatchBytes(1 << 16)
+                .setWriteBatchWindow(window, TimeUnit.MILLISECONDS);
+        try (final Server server = echoServer(config)) {
+            try (final BlockingClient client = new BlockingClient(
+                    server.getLocalAddress(), config)) {
+                // Fits one chunk, so it waits in the batch for others.
+                long start = System.nanoTime();
+                CompletableFuture<String> small = client.requestAsync("small");
+                byte[] large = new byte[1 << 20];
+                for (int i = 0; i < large.length; ++i)
+                    large[i] = (byte) i;
+                // Chunked, it flushes the batch before its first chunk.
+                Assert.assertArrayEquals(large, client.request(large));
+                Assert.assertTrue(small.isDone());
+                Assert.assertEquals("small", small.get());
+                start = System.nanoTime();
+                Assert.assertEquals("alone", client.request("alone"));
+                long elapsed = System.nanoTime() - start;
+                LOGGER.info("batched request answered in {} ms",
+                        elapsed / 1000000L);
+                Assert.assertTrue(elapsed >= TimeUnit.MILLISECONDS
+                        .toNanos(window * 9 / 10));
+            }
+        }
+    }
+
+    @Test
+    public void testRequestAsyncTimeout() throws InterruptedException {
+        try (final Server server = new Server(12346) {
+
+            @Override
+            protected Object handleMessage(Object messageObj) {
+                return null;
+            }
+        }) {
+            try (final BlockingClient client = new BlockingClient(
+                    server.getLocalAddress())) {
+                CompletableFuture<Object> future = client.requestAsync(
+                        "hello", 100L, TimeUnit.MILLISECONDS);
+                try {
+                    future.get();
+                    Assert.fail("response is not expected");
+                } catch (ExecutionException e) {
+                    Assert.assertTrue(e.getCause() instanceof TimeoutException);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSerializerNegotiation() {
+        Assert.assertEquals(SerializerType.KRYO_REGISTERED, negotiate(
+                new MultipartIoServiceConfig(), new MultipartIoServiceConfig()));
+        Assert.assertEquals(SerializerType.JDK, negotiate(
+                new MultipartIoServiceConfig(), new MultipartIoServiceConfig()
+                        .setSerializers(SerializerType.JDK)));
+        // Nothing in common, both sides keep sending Java serialization.
+        Assert.assertEquals(SerializerType.JDK, negotiate(
+                new MultipartIoServiceConfig()
+                        .setSerializers(SerializerType.KRYO),
+                new MultipartIoServiceConfig()
+                        .setSerializers(SerializerType.JDK)));
+    }
+
+    @Test
+    public void testKryoRegistryNegotiation() {
+        KryoRegistry registry = KryoRegistry.DEFAULT.with(StringBuilder.class);
+        Assert.assertEquals(SerializerType.KRYO_REGISTERED, negotiate(
+                new MultipartIoServiceConfig().setKryoRegistry(registry),
+                new MultipartIoServiceConfig().setKryoRegistry(registry)));
+        // Ids would not match, class names are sent instead.
+        Assert.assertEquals(SerializerType.KRYO, negotiate(
+                new MultipartIoServiceConfig().setKryoRegistry(registry),
+                new MultipartIoServiceConfig()));
+    }
+    @Test
+    public void testCompactSerializer() throws InterruptedException,
+            ExecutionException {
+        testStatefulSerializer(new MultipartIoServiceConfig()
+                .setSerializers(SerializerType.COMPACT, SerializerType.JDK));
+        testStatefulSerializer(new MultipartIoServiceConfig().setSerializers(
+                SerializerType.COMPACT, SerializerType.JDK)
+                .setWriteBatchBytes(4096));
+    }
+
+    @Test
+    public void testSessionJdkSerializer() throws InterruptedException,
+            ExecutionException {
+        testStatefulSerializer(new MultipartIoServiceConfig()
+                .setSerializers(SerializerType.JDK_SESSION, SerializerType.JDK));
+        testStatefulSerializer(new MultipartIoServiceConfig().setSerializers(
+                SerializerType.JDK_SESSION, SerializerType.JDK)
+                .setWriteBatchBytes(4096));
+    }
+
+    /**
+     * Fails to deserialize.
+     */
+    static final class Poison implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private void readObject(final ObjectInputStream ois)
+                throws IOException {
+            throw new InvalidObjectException("poison");
+        }
+    }
+
+    @Test
+    public void testStatefulDecodeFailureClosesSession()
+            throws InterruptedException, TimeoutException {
+        MultipartIoServiceConfig config = new MultipartIoServiceConfig()
+                .setSerializers(SerializerType.JDK_SESSION, SerializerType.JDK);
+        try (final Server server = echoServer(config)) {
+            try (final BlockingClient client = new BlockingClient(
+                    server.getLocalAddress(), config)) {
+                Assert.assertEquals(SerializerType.JDK_SESSION,
+                        client.getSerializerType());
+                Assert.assertEquals("hello", client.request("hello"));
+                // The stream of the session is broken, it is not skipped.
+                try {
+                    client.requestAsync(new Poison()).get(5L, TimeUnit.SECONDS);
+                    Assert.fail("the server is expected to drop the session");
+                } catch (ExecutionException e) {
+                    LOGGER.info("expected: {}", e.getCause().toString());
+                }
+            }
+        }
+    }
+
+    private void testStatefulSerializer(final MultipartIoServiceConfig config)
+            throws InterruptedException, ExecutionException {
+        try (final Server server = echoServer(config)) {
+            try (final BlockingClient client = new BlockingClient(
+                    server.getLocalAddress(), config)) {
+                Assert.assertEquals(config.getSerializers().get(0),
+                        client.getSerializerType());
+                // Writers race, frames must still arrive in schema order.
+                final List<CompletableFuture<List<Object>>> futures = new ArrayList<>();
+                final CountDownLatch latch = new CountDownLatch(4);
+                for (int t = 0; t < 4; ++t) {
+                    final int thread = t;
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                for (int i = 0; i < 100; ++i) {
+                                    List<Object> request = new ArrayList<>(
+                                            Arrays.<Object> asList(thread, i,
+                                                    "" + i, TimeUnit.values()[i
+                                                            % 7]));
+                                    CompletableFuture<List<Object>> future = client
+                                            .requestAsync(request);
+                                    synchronized (futures) {
+                                        futures.add(future);
+                                    }
+                                }
+                            } finally {
+                                latch.countDown();
+                            }
+                        }
+                    }.start();
+                }
+                latch.await();
+                Assert.assertEquals(400, futures.size());
+                for (CompletableFuture<List<Object>> future : futures) {
+                    List<Object> response = future.get();
+                    Assert.assertEquals("" + response.get(1), response.get(2));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testThriftSerializer() {
+        MultipartIoServiceConfig config = new MultipartIoServiceConfig()
+                .setSerializers(SerializerType.THRIFT, SerializerType.JDK);
+        try (final Server server = echoServer(config)) {
+            try (final BlockingClient client = new BlockingClient(
+                    server.getLocalAddress(), config)) {
+                Assert.assertEquals(SerializerType.THRIFT,
+                        client.getSerializerType());
+                Student student = new Student("sqg", 18);
+                Assert.assertEquals(student, client.request(student));
+                Assert.assertEquals("hello", client.request("hello"));
+            }
+        }
+    }
+
+    private SerializerType negotiate(
+            final MultipartIoServiceConfig clientConfig,
+            final MultipartIoServiceConfig serverConfig) {
+        try (final Server server = echoServer(serverConfig)) {
+            try (final BlockingClient client = new BlockingClient(
+                    server.getLocalAddress(), clientConfig)) {
+                List<Integer> request = new ArrayList<>(Arrays.asList(1, 2, 3));
+                Assert.assertEquals(request, client.request(request));
+                return client.getSerializerType();
+            }
+        }
+    }
+
+    @Test
+    public void testConnectionPool() throws InterruptedException,
+            ExecutionException {
+        MultipartIoServiceConfig config = new MultipartIoServiceConfig()
+                .setMaxConnections(4).setConnectionGrowThreshold(4)
+                .setPoolResizeInterval(100L, TimeUnit.MILLISECONDS);
+        try (final Server server = new Server(12346) {
+
+            @Override
+            protected Object handleMessage(Object messageObj) {
+                return "RE: " + messageObj;
+            }
+        }) {
+            try (final BlockingClient client = new BlockingClient(
+                    server.getLocalAddress(), config)) {
+                Assert.assertEquals(1, client.getConnectionCount());
+                for (int round = 0; round < 16
+                        && client.getConnectionCount() == 1; ++round) {
+                    List<CompletableFuture<String>> futures = new ArrayList<>();
+                    for (int i = 0; i < 1000; ++i)
+                        futures.add(client
+                                .<String, String> requestAsync("" + i));
+                    for (int i = 0; i < futures.size(); ++i)
+                        Assert.assertEquals("RE: " + i, futures.get(i).get());
+                }
+                Assert.assertTrue(client.getConnectionCount() > 1);
+
+                // Idle sessions are retired down to the minimum.
+                long deadline = System.nanoTime()
+                        + TimeUnit.SECONDS.toNanos(10L);
+                while (client.getConnectionCount() > 1
+                        && System.nanoTime() < deadline)
+                    Thread.sleep(50L);
+                Assert.assertEquals(1, client.getConnectionCount());
+                Assert.assertEquals("RE: again",
+                        client.request("again", 1L, TimeUnit.SECONDS));
+            }
+        }
+    }
+
+    @Test
+    public void testReconnect() throws InterruptedException {
+        MultipartIoServiceConfig config = new MultipartIoServiceConfig()
+                .setPoolResizeInterval(100L, TimeUnit.MILLISECONDS);
+        try (final Server server = new Server(12346) {
+
+            @Override
+            protected void messageReceived(IoSession session,
+                    int correlationId, Object messageObj) {
+                if ("drop".equals(messageObj))
+                    session.close(true);
+                else
+                    super.messageReceived(session, correlationId, messageObj);
+            }
+
+            @Override
+            protected Object handleMessage(Object messageObj) {
+                return "RE: " + messageObj;
+            }
+        }) {
+            try (final BlockingClient client = new BlockingClient(
+                    server.getLocalAddress(), config)) {
+                client.send("drop");
+                long deadline = System.nanoTime()
+                        + TimeUnit.SECONDS.toNanos(10L);
+                while (client.getConnectionCount() > 0
+                        && System.nanoTime() < deadline)
+                    Thread.sleep(10L);
+                // The lost session is replaced at a fixed pool size too.
+                while (client.getConnectionCount() == 0
+                        && System.nanoTime() < deadline)
+                    Thread.sleep(10L);
+                Assert.assertEquals(1, client.getConnectionCount());
+                Assert.assertEquals("RE: again",
+                        client.request("again", 1L, TimeUnit.SECONDS));
+            }
+        }
+    }
+
+    @Test
+    public void testConnectionLimits() {
+        MultipartIoServiceConfig config = new MultipartIoServiceConfig();
+        try {
+            config.setMinConnections(2);
+            Assert.fail("more than the maximum");
+        } catch (IllegalArgumentException e) {
+            LOGGER.info("expected: {}", e.toString());
+        }
+        config.setMaxConnections(4).setMinConnections(2);
+        try {
+            config.setMaxConnections(1);
+            Assert.fail("less than the minimum");
+        } catch (IllegalArgumentException e) {
+            LOGGER.info("expected: {}", e.toString());
+        }
+        Assert.assertEquals(2, config.getMinConnections());
+        Assert.assertEquals(4, config.getMaxConnections());
+    }
+
+    @Test
+    public void testSendBackpressure() throws InterruptedException {
+        final CountDownLatch stalled = new CountDownLatch(1);
+        final int limit = 1 << 20;
+        MultipartIoServiceConfig config = new MultipartIoServiceConfig()
+                .setMaxOutstandingBytes(limit);
+        try (final Server server = new Server(12346) {
+
+            @Override
+            protected Object handleMessage(Object messageObj) {
+                // Block the I/O thread, so the server stops reading.
+                try {
+                    stalled.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return null;
+            }
+        }) {
+            try (final BlockingClient client = new BlockingClient(
+                    server.getLocalAddress(), config)) {
+                testSendBackpressure(client, stalled, limit);
+            } finally {
+                stalled.countDown();
+            }
+        }
+    }
+
+    @Test
+    public void testSendFromIoThread() throws InterruptedException,
+            TimeoutException {
+        MultipartIoServiceConfig config = new MultipartIoServiceConfig()
+                .setMaxOutstandingMessages(1);
+        try (final Server server = new Server(12346) {
+
+            @Override
+            protected Object handleMessage(Object messageObj) {
+                // Answered late enough for the callback to be registered,
+                // and run by the I/O thread.
+                if ("first".equals(messageObj)) {
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(200);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return messageObj;
+            }
+        }) {
+            try (final BlockingClient client = new BlockingClient(
+                    server.getLocalAddress(), config)) {
+                // Runs on the I/O thread, which writes nothing until it
+                // returns, so the second request finds the queue full.
+                CompletableFuture<Object> nested = client.requestAsync("first")
+                        .thenCompose(
+                                new Function<Object, CompletionStage<Object>>() {
+                                    @Override
+                                    public CompletionStage<Object> apply(
+                                            Object response) {
+                                        client.requestAsync("second");
+                                        return client.requestAsync("third");
+                                    }
+                                });
+                try {
+                    nested.get(5L, TimeUnit.SECONDS);
+                    Assert.fail("the queue is full");
+                } catch (ExecutionException e) {
+                    Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+                }
+                Assert.assertEquals("after", client.request("after"));
+            }
+        }
+    }
+
+    private void testSendBackpressure(final BlockingClient client,
+            final CountDownLatch stalled, final int limit)
+            throws InterruptedException {
+        char[] chars = new char[1 << 16];
+        Arrays.fill(chars, 'x');
+        String chunk = new String(chars);
+        // Socket buffers take a few MB, and grow while they are filled, before
+        // the queue stays full.
+        int rejected = 0;
+        for (int i = 0; i < 4096 && rejected < 5; ++i) {
+            try {
+                client.send(chunk, 0L, TimeUnit.MILLISECONDS);
+                rejected = 0;
+            } catch (RejectedExecutionException e) {
+                ++rejected;
+                Thread.sleep(20L);
+            }
+            Assert.assertTrue(client.getOutstandingBytes() < limit
+                    + 2 * chunk.length());
+        }
+        Assert.assertEquals("queue never stayed full", 5, rejected);
+
+        long start = System.nanoTime();
+        try {
+            client.send(chunk, 50L, TimeUnit.MILLISECONDS);
+            Assert.fail("send is expected to time out");
+        } catch (RejectedExecutionException e) {
+            Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS
+                    .toNanos(50L));
+        }
+
+        stalled.countDown();
+        // Blocks until the server drained enough of the queue.
+        client.send(chunk);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10L);
+        while (client.getOutstandingMessages() > 0
+                && System.nanoTime() < deadline)
+            Thread.sleep(10L);
+        Assert.assertEquals(0, client.getOutstandingMessages());
+        Assert.assertEquals(0L, client.getOutstandingBytes());
+    }
+}
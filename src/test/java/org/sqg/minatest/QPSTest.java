@@ -2,16 +2,25 @@ package org.sqg.minatest;
 
 import java.io.Serializable;
 import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.thrift.TException;
+import org.junit.Assert;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sqg.mina.BlockingClient;
+import org.sqg.mina.MultipartIoServiceConfig;
+import org.sqg.mina.SerializerType;
 import org.sqg.mina.Server;
 import org.sqg.thrift.ThriftClientBuilder;
 import org.sqg.thrift.ThriftServiceContainerServer;
 import org.sqg.thrift.generated.Greetings;
+import org.sqg.util.KryoRegistry;
 
 public class QPSTest {
 
@@ -51,6 +60,32 @@ public class QPSTest {
         }
     }
 
+    /**
+     * @param age
+     *            distinct per call, answered by the server.
+     */
+    private static Student student(final int age) {
+        Student s = new Student();
+        s.setName("sqg");
+        s.setAge(age);
+        return s;
+    }
+
+    /**
+     * @param config
+     * @return a server answering every student with its age, which tells the
+     *         responses of concurrent calls apart.
+     */
+    private static Server ageServer(final MultipartIoServiceConfig config) {
+        return new Server(12345, config) {
+
+            @Override
+            protected Object handleMessage(Object messageObj) {
+                return ((Student) messageObj).age;
+            }
+        };
+    }
+
     @Test
     public void testSynchronizedMinaQPS() {
         try (final Server server = new Server(12345) {
@@ -79,6 +114,132 @@ public class QPSTest {
         }
     }
 
+    @Test
+    public void testPipelinedMinaQPS() throws InterruptedException {
+        pipelinedMinaQPS(new MultipartIoServiceConfig());
+    }
+
+    @Test
+    public void testPipelinedMinaQPSWithWriteBatching()
+            throws InterruptedException {
+        pipelinedMinaQPS(new MultipartIoServiceConfig().setWriteBatchBytes(
+                8192).setWriteBatchWindow(100, TimeUnit.MICROSECONDS));
+    }
+
+    @Test
+    public void testPipelinedMinaQPSWithConnectionPool()
+            throws InterruptedException {
+        pipelinedMinaQPS(new MultipartIoServiceConfig().setMaxConnections(4)
+                .setConnectionGrowThreshold(2));
+    }
+
+    private void pipelinedMinaQPS(final MultipartIoServiceConfig config)
+            throws InterruptedException {
+        try (final Server server = ageServer(config)) {
+            try (final BlockingClient client = new BlockingClient(
+                    server.getLocalAddress(), config)) {
+                final int N = 0xffff;
+                final int THREADS = 16;
+                final AtomicInteger remaining = new AtomicInteger(N);
+                // A thread failing only ends itself, the test checks after.
+                final AtomicReference<Throwable> failure = new AtomicReference<>();
+                Thread[] threads = new Thread[THREADS];
+                for (int i = 0; i < THREADS; ++i) {
+                    threads[i] = new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                for (int age; (age = remaining
+                                        .getAndDecrement()) > 0;)
+                                    Assert.assertEquals(Integer.valueOf(age),
+                                            client.request(student(age)));
+                            } catch (Throwable t) {
+                                failure.compareAndSet(null, t);
+                            }
+                        }
+                    };
+                }
+                long t1 = System.nanoTime();
+                for (Thread t : threads)
+                    t.start();
+                for (Thread t : threads)
+                    t.join();
+                long t2 = System.nanoTime();
+                if (failure.get() != null)
+                    throw new AssertionError("a caller failed", failure.get());
+                LOGGER.info(
+                        "N = {}, threads = {}, connections = {}, batch = {} bytes, total = {} ms, avg = {} ms, QPS = {}",
+                        N, THREADS, client.getConnectionCount(),
+                        config.getWriteBatchBytes(),
+                        (t2 - t1) * 1e-6, (t2 - t1) * 1e-6 / N, N
+                                / ((t2 - t1) * 1e-9));
+            }
+        }
+    }
+
+    @Test
+    public void testAsynchronousMinaQPS() throws InterruptedException {
+        asynchronousMinaQPS(new MultipartIoServiceConfig());
+    }
+
+    @Test
+    public void testAsynchronousMinaQPSWithJdkSerializer()
+            throws InterruptedException {
+        asynchronousMinaQPS(new MultipartIoServiceConfig()
+                .setSerializers(SerializerType.JDK));
+    }
+
+    @Test
+    public void testAsynchronousMinaQPSWithRegisteredStudent()
+            throws InterruptedException {
+        asynchronousMinaQPS(new MultipartIoServiceConfig()
+                .setKryoRegistry(KryoRegistry.DEFAULT.with(Student.class)));
+    }
+
+    @Test
+    public void testAsynchronousMinaQPSWithWriteBatching()
+            throws InterruptedException {
+        asynchronousMinaQPS(new MultipartIoServiceConfig().setWriteBatchBytes(
+                8192).setWriteBatchWindow(100, TimeUnit.MICROSECONDS));
+    }
+
+    private void asynchronousMinaQPS(final MultipartIoServiceConfig config)
+            throws InterruptedException {
+        try (final Server server = ageServer(config)) {
+            try (final BlockingClient client = new BlockingClient(
+                    server.getLocalAddress(), config)) {
+                final int N = 0xffff;
+                final Semaphore window = new Semaphore(1024);
+                final CountDownLatch done = new CountDownLatch(N);
+                final AtomicReference<Throwable> failure = new AtomicReference<>();
+                long t1 = System.nanoTime();
+                for (int i = 1; i <= N; ++i) {
+                    final Integer age = i;
+                    window.acquire();
+                    client.requestAsync(student(age)).whenComplete((v, e) -> {
+                        if (e != null)
+                            failure.compareAndSet(null, e);
+                        else if (!age.equals(v))
+                            failure.compareAndSet(null, new AssertionError(
+                                    "expected " + age + ", got " + v));
+                        window.release();
+                        done.countDown();
+                    });
+                }
+                done.await();
+                long t2 = System.nanoTime();
+                if (failure.get() != null)
+                    throw new AssertionError("a call failed", failure.get());
+                LOGGER.info(
+                        "N = {}, in-flight <= {}, serializer = {}, batch = {} bytes, total = {} ms, avg = {} ms, QPS = {}",
+                        N, 1024, client.getSerializerType(),
+                        config.getWriteBatchBytes(),
+                        (t2 - t1) * 1e-6, (t2 - t1) * 1e-6 / N, N
+                                / ((t2 - t1) * 1e-9));
+            }
+        }
+    }
+
     @Test
     public void testSynchronizedThriftQPS() throws TException {
         try (final ThriftServiceContainerServer server = new ThriftServiceContainerServer(
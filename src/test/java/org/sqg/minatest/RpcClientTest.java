@@ -0,0 +1,349 @@
+package org.sqg.minatest;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sqg.netty.RpcClient;
+import org.sqg.netty.RpcException;
+import org.sqg.netty.RpcService;
+import org.sqg.netty.Transport;
+
+public class RpcClientTest {
+
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(RpcClientTest.class);
+
+    public interface Greeter extends AutoCloseable {
+
+        String greet(String name);
+
+        CompletableFuture<String> greetLater(String name, long millis);
+
+        String greetSlowly(String name, long millis);
+
+        int fail() throws IOException;
+
+        Object unserializable();
+
+        @Override
+        void close();
+    }
+
+    public interface Unknown {
+
+        void call();
+    }
+
+    public interface Echo {
+
+        String echo(String value);
+    }
+
+    private final ScheduledExecutorService timer = Executors
+            .newSingleThreadScheduledExecutor();
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+    private RpcService service;
+
+    @Before
+    public void setUp() {
+        service = new RpcService(12348).setExecutor(executor).register(
+                Greeter.class, new Greeter() {
+
+                    @Override
+                    public String greet(final String name) {
+                        return "hello " + name;
+                    }
+
+                    @Override
+                    public CompletableFuture<String> greetLater(
+                            final String name, final long millis) {
+                        final CompletableFuture<String> future = new CompletableFuture<>();
+                        timer.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                future.complete("hello " + name);
+                            }
+                        }, millis, TimeUnit.MILLISECONDS);
+                        return future;
+                    }
+
+                    @Override
+                    public String greetSlowly(final String name,
+                            final long millis) {
+                        try {
+                            Thread.sleep(millis);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return "hello " + name;
+                    }
+
+                    @Override
+                    public int fail() throws IOException {
+                        throw new IOException("failing on purpose");
+                    }
+
+                    @Override
+                    public Object unserializable() {
+                        return new Object();
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+                }).register(Echo.class, new Echo() {
+                    @Override
+                    public String echo(final String value) {
+                        return value;
+                    }
+                });
+        service.start();
+    }
+
+    @After
+    public void tearDown() {
+        // Calls still running answer before the event loops are gone.
+        executor.shutdownNow();
+        timer.shutdownNow();
+        service.close();
+    }
+
+    @Test
+    public void testProxy() throws IOException, InterruptedException,
+            ExecutionException {
+        try (Greeter greeter = RpcClient.create(Greeter.class,
+                service.getLocalAddress())) {
+            Assert.assertEquals("hello sqg", greeter.greet("sqg"));
+            Assert.assertEquals("hello sqg", greeter.greetLater("sqg", 10L)
+                    .get());
+            try {
+                greeter.fail();
+                Assert.fail();
+            } catch (IOException e) {
+                LOGGER.info("expected: {}", e.toString());
+            }
+        }
+        try (RpcClient client = new RpcClient(service.getLocalAddress())) {
+            try {
+                client.proxy(Unknown.class).call();
+                Assert.fail();
+            } catch (RpcException e) {
+                Assert.assertTrue(e.getCause() instanceof NoSuchMethodException);
+            }
+            // Not the owner, the client stays open.
+            client.proxy(Greeter.class).close();
+            Assert.assertEquals("hello sqg", client.proxy(Greeter.class)
+                    .greet("sqg"));
+        }
+    }
+
+    @Test
+    public void testUnserializableResult() throws IOException {
+        try (Greeter greeter = RpcClient.create(Greeter.class,
+                service.getLocalAddress())) {
+            try {
+                greeter.unserializable();
+                Assert.fail();
+            } catch (RuntimeException e) {
+                LOGGER.info("expected: {}", e.toString());
+                Throwable cause = e;
+                while (cause.getCause() != null)
+                    cause = cause.getCause();
+                Assert.assertTrue(cause instanceof NotSerializableException);
+            }
+            // The channel is still usable.
+            Assert.assertEquals("hello sqg", greeter.greet("sqg"));
+        }
+    }
+
+    @Test
+    public void testTimeouts() throws IOException {
+        try (RpcClient client = new RpcClient(service.getLocalAddress(),
+                Transport.getDefault(), 1000L)) {
+            Greeter greeter = client.proxy(Greeter.class);
+            long t1 = System.nanoTime();
+            try {
+                greeter.greetSlowly("sqg", 3000L);
+                Assert.fail();
+            } catch (RpcException e) {
+                Assert.assertTrue(e.getCause() instanceof TimeoutException);
+            }
+            long t2 = System.nanoTime();
+            Assert.assertTrue(t2 - t1 < TimeUnit.MILLISECONDS.toNanos(2500L));
+            Assert.assertEquals(0, client.getPendingCalls());
+            Assert.assertEquals("hello sqg", greeter.greet("sqg"));
+        }
+        // Accepts, but never answers the handshake.
+        try (ServerSocket silent = new ServerSocket(0)) {
+            long t1 = System.nanoTime();
+            try {
+                new RpcClient(new InetSocketAddress("127.0.0.1",
+                        silent.getLocalPort()), Transport.getDefault(), 200L)
+                        .close();
+                Assert.fail();
+            } catch (IOException e) {
+                LOGGER.info("expected: {}", e.toString());
+            }
+            long t2 = System.nanoTime();
+            Assert.assertTrue(t2 - t1 < TimeUnit.SECONDS.toNanos(5L));
+        }
+    }
+
+    @Test
+    public void testCloseProxy() throws IOException {
+        // Not closeable itself, closed through the client.
+        Echo echo = RpcClient.create(Echo.class, service.getLocalAddress());
+        Assert.assertEquals("sqg", echo.echo("sqg"));
+        RpcClient.close(echo);
+        try {
+            echo.echo("sqg");
+            Assert.fail();
+        } catch (UncheckedIOException e) {
+            LOGGER.info("expected: {}", e.toString());
+        }
+        try {
+            RpcClient.close("sqg");
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            LOGGER.info("expected: {}", e.toString());
+        }
+    }
+
+    @Test
+    public void testSyncCallOnEventLoop() throws IOException,
+            InterruptedException {
+        try (RpcClient client = new RpcClient(service.getLocalAddress())) {
+            final Greeter greeter = client.proxy(Greeter.class);
+            // Completed on the event loop, where the nested call must not
+            // wait for its own response.
+            CompletableFuture<String> nested = greeter.greetLater("sqg", 100L)
+                    .thenApply(new Function<String, String>() {
+                        @Override
+                        public String apply(String s) {
+                            return greeter.greet(s);
+                        }
+                    });
+            try {
+                nested.get(5L, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+            } catch (TimeoutException e) {
+                Assert.fail("deadlocked");
+            }
+            Assert.assertEquals("hello sqg", greeter.greet("sqg"));
+        }
+    }
+
+    @Test
+    public void testConcurrentCalls() throws IOException,
+            InterruptedException {
+        try (final RpcClient client = new RpcClient(service.getLocalAddress())) {
+            final Greeter greeter = client.proxy(Greeter.class);
+            final int N = 1000;
+            final AtomicInteger failures = new AtomicInteger();
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 8; ++t) {
+                final int thread = t;
+                threads.add(new Thread() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < N; ++i) {
+                            String name = thread + "-" + i;
+                            if (!greeter.greet(name).equals("hello " + name))
+                                failures.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            long t1 = System.nanoTime();
+            for (Thread thread : threads)
+                thread.start();
+            for (Thread thread : threads)
+                thread.join();
+            long t2 = System.nanoTime();
+            LOGGER.info("8 threads x {} calls over one channel, avg = {} us",
+                    N, (t2 - t1) * 1e-3 / (8 * N));
+            Assert.assertEquals(0, failures.get());
+            Assert.assertEquals(0, client.getPendingCalls());
+        }
+    }
+
+    @Test
+    public void testNoHeadOfLineBlocking() throws IOException,
+            InterruptedException, ExecutionException {
+        try (RpcClient client = new RpcClient(service.getLocalAddress())) {
+            final Greeter greeter = client.proxy(Greeter.class);
+            CompletableFuture<String> later = greeter.greetLater("later", 500L);
+            final CompletableFuture<String> slow = new CompletableFuture<>();
+            new Thread() {
+                @Override
+                public void run() {
+                    slow.complete(greeter.greetSlowly("slow", 500L));
+                }
+            }.start();
+            // Calls behind the slow ones on the channel are not held up.
+            long t1 = System.nanoTime();
+            for (int i = 0; i < 10; ++i)
+                Assert.assertEquals("hello " + i, greeter.greet("" + i));
+            long t2 = System.nanoTime();
+            LOGGER.info("10 calls in {} ms behind two slow ones",
+                    (t2 - t1) / 1000000L);
+            Assert.assertTrue(t2 - t1 < TimeUnit.MILLISECONDS.toNanos(400L));
+            Assert.assertFalse(later.isDone());
+            Assert.assertEquals("hello later", later.get());
+            Assert.assertEquals("hello slow", slow.get());
+        }
+    }
+
+    @Test
+    public void testTransports() throws IOException {
+        LOGGER.info("default transport: {}", Transport.getDefault());
+        for (Transport transport : Transport.values()) {
+            if (!transport.isAvailable()) {
+                LOGGER.info("{} is not available", transport);
+                continue;
+            }
+            // Two acceptors on the same port where SO_REUSEPORT is there.
+            int acceptors = transport == Transport.EPOLL ? 2 : 1;
+            try (RpcService other = new RpcService(12349)
+                    .setTransport(transport).setAcceptors(acceptors)
+                    .register(Unknown.class, new Unknown() {
+                        @Override
+                        public void call() {
+                        }
+                    })) {
+                other.start();
+                for (Transport clientTransport : Transport.values()) {
+                    if (!clientTransport.isAvailable())
+                        continue;
+                    for (int i = 0; i < 2 * acceptors; ++i)
+                        try (RpcClient client = new RpcClient(
+                                other.getLocalAddress(), clientTransport)) {
+                            client.proxy(Unknown.class).call();
+                        }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package org.sqg.minatest;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.TooLongFrameException;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sqg.netty.RpcRequest;
+import org.sqg.netty.RpcResponse;
+import org.sqg.netty.RpcService;
+import org.sqg.util.JdkSerializer;
+
+public class RpcServiceTest {
+
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(RpcServiceTest.class);
+
+    public interface Calculator {
+
+        int add(int a, int b);
+
+        long add(long a, long b);
+
+        String echo(String s);
+
+        void fail();
+    }
+
+    static final class SimpleCalculator implements Calculator {
+
+        @Override
+        public int add(final int a, final int b) {
+            return a + b;
+        }
+
+        @Override
+        public long add(final long a, final long b) {
+            return a + b;
+        }
+
+        @Override
+        public String echo(final String s) {
+            return s;
+        }
+
+        @Override
+        public void fail() {
+            throw new IllegalStateException("failing on purpose");
+        }
+    }
+
+    @Test
+    public void testDispatch() throws InterruptedException {
+        try (RpcService service = new RpcService(12347)) {
+            service.register(Calculator.class, new SimpleCalculator());
+            service.start();
+            final BlockingQueue<RpcResponse> responses = new LinkedBlockingQueue<>();
+            EventLoopGroup group = new NioEventLoopGroup(1);
+            try {
+                Channel channel = new Bootstrap().group(group)
+                        .channel(NioSocketChannel.class)
+                        .handler(new ChannelInitializer<SocketChannel>() {
+                            @Override
+                            protected void initChannel(SocketChannel ch) {
+                                ch.pipeline().addLast(
+                                        new RpcResponse.Decoder(),
+                                        new RpcRequest.Encoder(),
+                                        new SimpleChannelInboundHandler<RpcResponse>() {
+                                            @Override
+                                            protected void channelRead0(
+                                                    ChannelHandlerContext ctx,
+                                                    RpcResponse msg) {
+                                                responses.add(msg);
+                                            }
+                                        });
+                            }
+                        }).connect(service.getLocalAddress()).sync().channel();
+
+                RpcResponse handshake = responses.poll(5L, TimeUnit.SECONDS);
+                Assert.assertEquals(RpcService.HANDSHAKE, handshake.getId());
+                List<String> methods = Arrays.asList((String[]) handshake
+                        .getResult());
+                LOGGER.info("methods: {}", methods);
+                Assert.assertEquals(4, methods.size());
+                String calculator = Calculator.class.getName();
+                int addInt = methods.indexOf(calculator + "#add(II)I");
+                int addLong = methods.indexOf(calculator + "#add(JJ)J");
+                int echo = methods.indexOf(calculator
+                        + "#echo(Ljava/lang/String;)Ljava/lang/String;");
+                int fail = methods.indexOf(calculator + "#fail()V");
+
+                channel.writeAndFlush(new RpcRequest(1, addInt, 1, 2));
+                channel.writeAndFlush(new RpcRequest(2, addLong, 1L << 40,
+                        2L));
+                channel.writeAndFlush(new RpcRequest(3, echo, "hello"));
+                channel.writeAndFlush(new RpcRequest(4, fail));
+                channel.writeAndFlush(new RpcRequest(5, methods.size()));
+                channel.writeAndFlush(new RpcRequest(6, addInt, "1", 2));
+                RpcResponse[] byId = new RpcResponse[7];
+                for (int i = 0; i < 6; ++i) {
+                    RpcResponse response = responses.poll(5L,
+                            TimeUnit.SECONDS);
+                    byId[response.getId()] = response;
+                }
+                Assert.assertEquals(3, byId[1].getResult());
+                Assert.assertEquals((1L << 40) + 2L, byId[2].getResult());
+                Assert.assertEquals("hello", byId[3].getResult());
+                // Failures come back as the throwable of the response.
+                Assert.assertEquals(IllegalStateException.class, byId[4]
+                        .getThrowable().getClass());
+                Assert.assertEquals(NoSuchMethodException.class, byId[5]
+                        .getThrowable().getClass());
+                Assert.assertEquals(ClassCastException.class, byId[6]
+                        .getThrowable().getClass());
+
+                final int N = 10000;
+                long t1 = System.nanoTime();
+                for (int i = 0; i < N; ++i)
+                    channel.writeAndFlush(new RpcRequest(i + 1, addInt, i,
+                            i));
+                for (int i = 0; i < N; ++i)
+                    Assert.assertNotNull(responses.poll(5L, TimeUnit.SECONDS));
+                long t2 = System.nanoTime();
+                LOGGER.info("N = {}, avg = {} us", N, (t2 - t1) * 1e-3 / N);
+                channel.close().sync();
+            } finally {
+                group.shutdownGracefully(0L, 1L, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    @Test
+    public void testCodecs() {
+        EmbeddedChannel encoder = new EmbeddedChannel(new RpcRequest.Encoder());
+        EmbeddedChannel decoder = new EmbeddedChannel(new RpcRequest.Decoder(
+                new JdkSerializer(), 1024));
+        ByteBuf frames = Unpooled.buffer();
+        for (int i = 1; i <= 3; ++i) {
+            Assert.assertTrue(encoder.writeOutbound(new RpcRequest(i, i, "p"
+                    + i)));
+            ByteBuf frame = (ByteBuf) encoder.readOutbound();
+            Assert.assertEquals(frame.readableBytes() - Integer.BYTES,
+                    frame.getInt(frame.readerIndex()));
+            frames.writeBytes(frame);
+            frame.release();
+        }
+        // Frames split anywhere, several in one read.
+        int split = frames.readableBytes() / 3 + 1;
+        Assert.assertFalse(decoder.writeInbound(frames.readSlice(1).retain()));
+        Assert.assertTrue(decoder.writeInbound(frames.readSlice(split)
+                .retain()));
+        Assert.assertTrue(decoder.writeInbound(frames.retain()));
+        for (int i = 1; i <= 3; ++i) {
+            RpcRequest request = (RpcRequest) decoder.readInbound();
+            Assert.assertEquals(i, request.getId());
+            Assert.assertEquals("p" + i, request.getParameters()[0]);
+        }
+        Assert.assertNull(decoder.readInbound());
+        Assert.assertEquals(1, frames.refCnt());
+        frames.release();
+
+        ByteBuf tooLong = Unpooled.buffer().writeInt(1025).writeZero(1025);
+        try {
+            decoder.writeInbound(tooLong);
+            Assert.fail();
+        } catch (TooLongFrameException e) {
+            LOGGER.info("expected: {}", e.toString());
+        }
+        Assert.assertEquals(0, tooLong.refCnt());
+        Assert.assertFalse(encoder.finish());
+        Assert.assertFalse(decoder.finish());
+    }
+}
@@ -1,8 +1,18 @@
 package org.sqg.minatest;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.After;
 import org.junit.Assert;
@@ -10,10 +20,21 @@ import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.sqg.thrift.generated.Student;
+import org.sqg.util.CompactSerializer;
+import org.sqg.util.CompressingSerializer;
+import org.sqg.util.Compression;
 import org.sqg.util.JdkSerializer;
 import org.sqg.util.KryoManualSerializer;
+import org.sqg.util.KryoRegistry;
+import org.sqg.util.MethodHandleSerializer;
 import org.sqg.util.KryoSerializer;
 import org.sqg.util.Serializer;
+import org.sqg.util.SessionJdkSerializer;
+import org.sqg.util.SizePredictor;
+import org.sqg.util.ThriftSerializer;
+
+import com.sun.management.ThreadMXBean;
 
 public class SerializerTest {
 
@@ -22,6 +43,70 @@ public class SerializerTest {
 
     Map<Integer, Integer> data;
 
+    static final class Point {
+
+        private int x;
+        private int y;
+
+        Point() {
+        }
+
+        Point(final int x, final int y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Point && ((Point) obj).x == x
+                    && ((Point) obj).y == y;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * x + y;
+        }
+    }
+
+    public static final class Person {
+
+        private String name;
+        private int age;
+        private long id;
+        private double score;
+        private boolean active;
+        private Person friend;
+        private List<Integer> tags;
+
+        public Person() {
+        }
+
+        Person(final String name, final int age) {
+            this.name = name;
+            this.age = age;
+            id = 1L << 40 | age;
+            score = age * 1.5;
+            active = age % 2 == 0;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Person))
+                return false;
+            Person p = (Person) obj;
+            return name.equals(p.name) && age == p.age && id == p.id
+                    && score == p.score && active == p.active
+                    && (friend == null ? p.friend == null : friend
+                            .equals(p.friend))
+                    && (tags == null ? p.tags == null : tags.equals(p.tags));
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode() * 31 + age;
+        }
+    }
+
     @Before
     public void setUp() {
         data = new HashMap<>();
@@ -75,4 +160,480 @@ public class SerializerTest {
             LOGGER.info("{}", entry);
         }
     }
+
+    @Test
+    public void testKryoManyThreads() throws InterruptedException {
+        final Serializer serializer = new KryoSerializer();
+        final AtomicInteger failures = new AtomicInteger();
+        // Short-lived threads, each used to pin a Kryo of its own.
+        for (int round = 0; round < 8; ++round) {
+            Thread[] threads = new Thread[32];
+            for (int i = 0; i < threads.length; ++i) {
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        for (int j = 0; j < 100; ++j)
+                            if (!data.equals(serializer.deserialize(
+                                    serializer.serialize(data), Map.class)))
+                                failures.incrementAndGet();
+                    }
+                };
+                threads[i].start();
+            }
+            for (Thread t : threads)
+                t.join();
+        }
+        Assert.assertEquals(0, failures.get());
+    }
+
+    /**
+     * A serialization and deserialization, measured by
+     * {@link #allocatedPerRoundTrip}.
+     */
+    private interface RoundTrip {
+
+        void run() throws IOException;
+    }
+
+    /**
+     * @param roundTrip
+     * @return bytes allocated by the current thread per round trip, after as
+     *         many round trips to warm up.
+     */
+    private static long allocatedPerRoundTrip(final RoundTrip roundTrip)
+            throws IOException {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        final int N = 100000;
+        for (int i = 0; i < N; ++i)
+            roundTrip.run();
+        long id = Thread.currentThread().getId();
+        long b1 = threads.getThreadAllocatedBytes(id);
+        long t1 = System.nanoTime();
+        for (int i = 0; i < N; ++i)
+            roundTrip.run();
+        long t2 = System.nanoTime();
+        long b2 = threads.getThreadAllocatedBytes(id);
+        LOGGER.info("N = {}, avg = {} us, allocated = {} bytes per round trip",
+                N, (t2 - t1) * 1e-3 / N, (b2 - b1) / N);
+        return (b2 - b1) / N;
+    }
+
+    @Test
+    public void testKryoAllocation() throws IOException {
+        final Serializer serializer = new KryoSerializer();
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        long allocated = allocatedPerRoundTrip(new RoundTrip() {
+            @Override
+            public void run() throws IOException {
+                os.reset();
+                serializer.serialize(data, os);
+                serializer.deserialize(
+                        new ByteArrayInputStream(os.toByteArray()), Map.class);
+            }
+        });
+        // The copy of the bytes, the streams and the map, no Kryo state.
+        Assert.assertTrue(allocated < 1024L);
+    }
+
+    @Test
+    public void testByteBuffer() throws IOException, ClassNotFoundException {
+        Serializer[] serializers = { new KryoSerializer(),
+                new KryoManualSerializer(), new JdkSerializer() };
+        for (Serializer serializer : serializers)
+            for (boolean direct : new boolean[] { false, true }) {
+                // Too small on purpose, and in the other byte order.
+                ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(8)
+                        : ByteBuffer.allocate(8);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                buffer.putInt(42);
+                ByteBuffer written = serializer.serialize(data, buffer);
+                Assert.assertNotSame(buffer, written);
+                Assert.assertEquals(direct, written.isDirect());
+                Assert.assertEquals(ByteOrder.LITTLE_ENDIAN, written.order());
+                Assert.assertEquals(ByteOrder.LITTLE_ENDIAN, buffer.order());
+                Assert.assertEquals(42, written.getInt(0));
+                int end = written.position();
+                written.flip();
+                written.position(4);
+                Assert.assertEquals(data,
+                        serializer.deserialize(written, data.getClass()));
+                Assert.assertEquals(end, written.position());
+                LOGGER.info("{}, direct = {}: {} bytes", serializer
+                        .getClass().getSimpleName(), direct, end - 4);
+
+                // Room enough, the data stays in the buffer given.
+                ByteBuffer large = ByteBuffer.allocate(4096);
+                Assert.assertSame(large, serializer.serialize(data, large));
+                Assert.assertEquals(end - 4, large.position());
+            }
+    }
+
+    @Test
+    public void testKryoByteBufferAllocation() throws IOException {
+        final Serializer serializer = new KryoSerializer();
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
+        long allocated = allocatedPerRoundTrip(new RoundTrip() {
+            @Override
+            public void run() throws IOException {
+                buffer.clear();
+                serializer.serialize(data, buffer).flip();
+                serializer.deserialize(buffer, Map.class);
+            }
+        });
+        Assert.assertTrue(allocated < 1024L);
+    }
+
+    @Test
+    public void testKryoRegistry() {
+        List<Point> points = new ArrayList<>();
+        for (int i = 0; i < 3; ++i)
+            points.add(new Point(i, -i));
+        byte[] named = new KryoSerializer().serialize(points);
+        Serializer registered = KryoRegistry.DEFAULT.with(Point.class)
+                .getSerializer();
+        byte[] ids = registered.serialize(points);
+        LOGGER.info("class names: {} bytes, ids: {} bytes", named.length,
+                ids.length);
+        Assert.assertTrue(ids.length < named.length / 2);
+        Assert.assertEquals(points, registered.deserialize(ids, List.class));
+
+        // Point is not in this one and goes by name, the list by id.
+        Serializer fallback = KryoRegistry.DEFAULT.getSerializer();
+        byte[] bytes = fallback.serialize(points);
+        Assert.assertTrue(bytes.length > ids.length);
+        Assert.assertTrue(bytes.length < named.length);
+        Assert.assertEquals(points, fallback.deserialize(bytes, List.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testKryoRegistryDuplicate() {
+        KryoRegistry.DEFAULT.with(ArrayList.class);
+    }
+
+    @Test
+    public void testMethodHandle() throws IOException {
+        Person person = new Person("sqg", 18);
+        person.friend = new Person("friend", 19);
+        person.tags = new ArrayList<>(Arrays.asList(1, 2, 3));
+        Serializer serializer = new MethodHandleSerializer();
+        Assert.assertEquals(person,
+                serializer.deserialize(serializer.serialize(person),
+                        Person.class));
+        ByteBuffer buffer = serializer.serialize(person,
+                ByteBuffer.allocate(16));
+        buffer.flip();
+        Assert.assertEquals(person,
+                serializer.deserialize(buffer, Person.class));
+        // Left to Kryo as a whole.
+        Assert.assertEquals(data,
+                serializer.deserialize(serializer.serialize(data), Map.class));
+        Assert.assertNull(serializer.deserialize(serializer.serialize(null),
+                Person.class));
+    }
+
+    @Test
+    public void testMethodHandleVersusKryoManual() throws IOException {
+        Person person = new Person("sqg", 18);
+        roundTrips(new KryoManualSerializer(), person);
+        roundTrips(new MethodHandleSerializer(
+                KryoRegistry.DEFAULT.with(Person.class)), person);
+    }
+
+    @Test
+    public void testCompact() throws IOException {
+        Person person = new Person("s\u00e9rialis\u00e9", 18);
+        person.friend = new Person("friend", 19);
+        person.tags = new ArrayList<>(Arrays.asList(1, -2, Integer.MIN_VALUE));
+        // Each end has its own.
+        Serializer writer = new CompactSerializer();
+        Serializer reader = new CompactSerializer();
+        Assert.assertEquals(person,
+                reader.deserialize(writer.serialize(person), Person.class));
+        ByteBuffer buffer = writer.serialize(person, ByteBuffer.allocate(16));
+        buffer.flip();
+        Assert.assertEquals(person, reader.deserialize(buffer, Person.class));
+        Assert.assertEquals(data,
+                reader.deserialize(writer.serialize(data), Map.class));
+        Object[] values = { null, Long.MIN_VALUE, (short) -3, (byte) 7, 'x',
+                1.5f, -2.5, true, new int[] { 1, -1 },
+                new long[] { Long.MAX_VALUE }, new byte[] { 1, 2 },
+                ByteOrder.BIG_ENDIAN.toString(), new Point(1, 2),
+                Thread.State.RUNNABLE, new java.util.Date(0L) };
+        Object[] read = reader.deserialize(writer.serialize(values),
+                Object[].class);
+        Assert.assertTrue(Arrays.deepEquals(values, read));
+    }
+
+    @Test
+    public void testCompactSchemaOnce() throws IOException {
+        Person person = new Person("sqg", 18);
+        Serializer serializer = new CompactSerializer();
+        byte[] first = serializer.serialize(person);
+        byte[] second = serializer.serialize(person);
+        byte[] kryo = new KryoSerializer().serialize(person);
+        LOGGER.info("compact {} then {} bytes, kryo {} bytes", first.length,
+                second.length, kryo.length);
+        // Only the first carries the class and field names.
+        Assert.assertTrue(second.length < first.length);
+        Assert.assertTrue(second.length < kryo.length);
+        Serializer reader = new CompactSerializer();
+        Assert.assertEquals(person, reader.deserialize(first, Person.class));
+        Assert.assertEquals(person, reader.deserialize(second, Person.class));
+        // Without the schema, the second cannot be read.
+        try {
+            new CompactSerializer().deserialize(second, Person.class);
+            Assert.fail();
+        } catch (RuntimeException e) {
+            LOGGER.info("expected: {}", e.toString());
+        }
+    }
+
+    @Test
+    public void testCompactVersusKryoManual() throws IOException {
+        Person person = new Person("sqg", 18);
+        roundTrips(new KryoManualSerializer(), person);
+        roundTrips(new CompactSerializer(), person);
+    }
+
+    @Test
+    public void testThrift() throws IOException {
+        Student student = new Student("sqg", 18);
+        Serializer serializer = new ThriftSerializer();
+        byte[] bytes = serializer.serialize(student);
+        LOGGER.info("thrift {} bytes, kryo {} bytes", bytes.length,
+                new KryoSerializer().serialize(student).length);
+        Assert.assertEquals(student,
+                serializer.deserialize(bytes, Student.class));
+        ByteBuffer buffer = serializer.serialize(student,
+                ByteBuffer.allocate(4));
+        buffer.flip();
+        Assert.assertEquals(student,
+                serializer.deserialize(buffer, Student.class));
+        buffer = serializer.serialize(student, ByteBuffer.allocateDirect(64));
+        buffer.flip();
+        Assert.assertEquals(student,
+                serializer.deserialize(buffer, Student.class));
+        // Not a struct, left to the fallback.
+        Assert.assertEquals(data,
+                serializer.deserialize(serializer.serialize(data), Map.class));
+        buffer = serializer.serialize(data, ByteBuffer.allocate(0));
+        buffer.flip();
+        Assert.assertEquals(data, serializer.deserialize(buffer, Map.class));
+    }
+
+    @Test
+    public void testThriftAllocation() throws IOException {
+        final Serializer serializer = new ThriftSerializer();
+        final Student student = new Student("sqg", 18);
+        final ByteBuffer buffer = ByteBuffer.allocate(256);
+        long allocated = allocatedPerRoundTrip(new RoundTrip() {
+            @Override
+            public void run() throws IOException {
+                buffer.clear();
+                serializer.serialize(student, buffer).flip();
+                serializer.deserialize(buffer, Student.class);
+            }
+        });
+        // The struct and its strings, the transports are reused.
+        Assert.assertTrue(allocated < 512L);
+    }
+
+    @Test
+    public void testSizePredictor() {
+        SizePredictor sizes = new SizePredictor();
+        Assert.assertEquals(SizePredictor.DEFAULT_SIZE,
+                sizes.predict(String.class));
+        Random random = new Random(1L);
+        for (int i = 0; i < 100000; ++i) {
+            int predicted = sizes.predict(String.class);
+            sizes.record(String.class, predicted, 1 + random.nextInt(1000));
+        }
+        int p95 = sizes.predict(String.class);
+        LOGGER.info("p95 of [1, 1000] predicted as {}, hit rate = {}", p95,
+                sizes.getHitRate());
+        Assert.assertTrue(p95 > 850 && p95 <= 1050);
+        Assert.assertEquals(0.95, sizes.getHitRate(), 0.02);
+        // Other classes are predicted apart.
+        Assert.assertEquals(SizePredictor.DEFAULT_SIZE,
+                sizes.predict(Integer.class));
+    }
+
+    @Test
+    public void testSizePredictorHitRate() {
+        for (int i = 0; i < 1000; ++i)
+            data.put(i, i);
+        KryoSerializer serializer = new KryoSerializer();
+        int size = 0;
+        for (int i = 0; i < 100; ++i)
+            size = serializer.serialize(data).length;
+        SizePredictor sizes = serializer.getSizePredictor();
+        LOGGER.info("{} bytes, predicted {}, hit rate = {}", size,
+                sizes.predict(HashMap.class), sizes.getHitRate());
+        // Only the first message outgrew its buffer.
+        Assert.assertEquals(1L, sizes.getMisses());
+        Assert.assertEquals(99L, sizes.getHits());
+    }
+
+    @Test
+    public void testSessionJdkSerializer() throws IOException {
+        Student student = new Student("sqg", 18);
+        Serializer serializer = new SessionJdkSerializer();
+        byte[] first = serializer.serialize(student);
+        byte[] second = serializer.serialize(student);
+        byte[] jdk = new JdkSerializer().serialize(student);
+        LOGGER.info("session jdk {} then {} bytes, jdk {} bytes",
+                first.length, second.length, jdk.length);
+        // Only the first carries the class descriptors.
+        Assert.assertTrue(second.length < jdk.length / 2);
+        Serializer reader = new SessionJdkSerializer();
+        Assert.assertEquals(student, reader.deserialize(first, Student.class));
+        // Not a back reference to the object of the first message.
+        Student read = reader.deserialize(second, Student.class);
+        Assert.assertEquals(student, read);
+        student.setAge(19);
+        Assert.assertEquals(student, reader.deserialize(
+                serializer.serialize(student), Student.class));
+        Assert.assertEquals(18, read.getAge());
+        // Without the descriptors, the second cannot be read.
+        try {
+            new SessionJdkSerializer().deserialize(second, Student.class);
+            Assert.fail();
+        } catch (RuntimeException e) {
+            LOGGER.info("expected: {}", e.toString());
+        }
+
+        // A failed message leaves no descriptor behind.
+        try {
+            serializer.serialize(Arrays.asList(new Point(1, 2)));
+            Assert.fail();
+        } catch (RuntimeException e) {
+            LOGGER.info("expected: {}", e.toString());
+        }
+        data.put(1, 2);
+        Assert.assertEquals(data, reader.deserialize(serializer
+                .serialize(data), Map.class));
+
+        int N = 100000;
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        for (Serializer s : Arrays.asList(new JdkSerializer(),
+                new SessionJdkSerializer())) {
+            for (int round = 0; round < 2; ++round) {
+                long t1 = System.nanoTime();
+                for (int i = 0; i < N; ++i) {
+                    buffer.clear();
+                    s.serialize(student, buffer).flip();
+                    s.deserialize(buffer, Student.class);
+                }
+                long t2 = System.nanoTime();
+                if (round > 0)
+                    LOGGER.info("{}: N = {}, {} bytes, avg = {} us", s
+                            .getClass().getSimpleName(), N, buffer.limit(),
+                            (t2 - t1) * 1e-3 / N);
+            }
+        }
+    }
+
+    @Test
+    public void testCompressingSerializer() throws IOException,
+            ClassNotFoundException {
+        for (int i = 0; i < 1000; ++i)
+            data.put(i, i % 10);
+        CompressingSerializer serializer = new CompressingSerializer(
+                new KryoSerializer(), 256);
+        int raw = new KryoSerializer().serialize(data).length;
+        long t1 = System.nanoTime();
+        byte[] bytes = serializer.serialize(data);
+        long t2 = System.nanoTime();
+        LOGGER.info("{} bytes compressed into {} in {} us", raw,
+                bytes.length, (t2 - t1) / 1000L);
+        Assert.assertTrue(bytes.length < raw / 2);
+        Assert.assertEquals(data, serializer.deserialize(bytes));
+        Assert.assertEquals(data, serializer.deserialize(
+                new ByteArrayInputStream(bytes), Map.class));
+        // Small messages only cost the marker.
+        Assert.assertEquals(new KryoSerializer().serialize("small").length + 1,
+                serializer.serialize("small").length);
+
+        // The buffer is left after the data, compressed or not.
+        ByteBuffer buffer = ByteBuffer.allocateDirect(16);
+        buffer = serializer.serialize(data, buffer);
+        buffer = serializer.serialize("small", buffer);
+        buffer.flip();
+        Assert.assertEquals(data, serializer.deserialize(buffer, Map.class));
+        Assert.assertEquals("small", serializer.deserialize(buffer));
+        Assert.assertFalse(buffer.hasRemaining());
+
+        Compression compression = serializer.getCompression();
+        LOGGER.info("{}", compression);
+        Assert.assertEquals(2L, compression.getCompressed());
+        Assert.assertEquals(2L, compression.getSkipped());
+        Assert.assertEquals(2L * raw, compression.getBytesIn());
+        Assert.assertTrue(compression.getRatio() < 0.5);
+    }
+
+    @Test
+    public void testCompressionIncompressible() {
+        byte[] random = new byte[4096];
+        new Random(1L).nextBytes(random);
+        CompressingSerializer serializer = new CompressingSerializer(
+                new KryoSerializer(), 256);
+        byte[] bytes = serializer.serialize(random);
+        // Sent as it is, since it does not get smaller.
+        Assert.assertEquals(new KryoSerializer().serialize(random).length + 1,
+                bytes.length);
+        Assert.assertArrayEquals(random,
+                serializer.deserialize(bytes, byte[].class));
+        Assert.assertEquals(0L, serializer.getCompression().getCompressed());
+        Assert.assertEquals(1L, serializer.getCompression().getSkipped());
+    }
+
+    @Test
+    public void testCompressionMaxLength() {
+        byte[] zeros = new byte[4096];
+        byte[] bytes = new CompressingSerializer(new KryoSerializer(), 256)
+                .serialize(zeros);
+        Assert.assertTrue(bytes.length < 256);
+        CompressingSerializer limited = new CompressingSerializer(
+                new KryoSerializer(), new Compression(256), 1024);
+        try {
+            limited.deserialize(bytes, byte[].class);
+            Assert.fail();
+        } catch (RuntimeException e) {
+            LOGGER.info("expected: {}", e.toString());
+        }
+        // A declared length in the billions is refused, not allocated.
+        ByteBuffer forged = ByteBuffer.wrap(bytes.clone());
+        forged.putInt(1, Integer.MAX_VALUE - 8);
+        try {
+            new CompressingSerializer(new KryoSerializer(), 256).deserialize(
+                    forged, byte[].class);
+            Assert.fail();
+        } catch (IOException e) {
+            LOGGER.info("expected: {}", e.toString());
+        }
+    }
+
+    private static void roundTrips(final Serializer serializer,
+            final Person person) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        final int N = 1000000;
+        for (int round = 0; round < 2; ++round) {
+            // The first round warms up.
+            long t1 = System.nanoTime();
+            for (int i = 0; i < N; ++i) {
+                buffer.clear();
+                serializer.serialize(person, buffer).flip();
+                serializer.deserialize(buffer, Person.class);
+            }
+            long t2 = System.nanoTime();
+            if (round > 0)
+                LOGGER.info("{}: N = {}, {} bytes, avg = {} us", serializer
+                        .getClass().getSimpleName(), N, buffer.limit(),
+                        (t2 - t1) * 1e-3 / N);
+        }
+        buffer.rewind();
+        Assert.assertEquals(person,
+                serializer.deserialize(buffer, Person.class));
+    }
 }
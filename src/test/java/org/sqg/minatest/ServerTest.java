@@ -0,0 +1,206 @@
+package org.sqg.minatest;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.sqg.mina.BlockingClient;
+import org.sqg.mina.MultipartIoServiceConfig;
+import org.sqg.mina.Server;
+
+public class ServerTest {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.SECONDS);
+    }
+
+    private static Server slowServer(final MultipartIoServiceConfig config) {
+        return new Server(12347, config) {
+
+            @Override
+            protected Object handleMessage(Object messageObj) {
+                if ("slow".equals(messageObj)) {
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(500);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return messageObj;
+            }
+        };
+    }
+
+    @Test
+    public void testUnorderedHandlerExecutor() throws InterruptedException,
+            ExecutionException {
+        MultipartIoServiceConfig config = new MultipartIoServiceConfig()
+                .setHandlerExecutor(executor).setOrderedHandler(false);
+        try (Server server = slowServer(config);
+                BlockingClient client = new BlockingClient(
+                        server.getLocalAddress())) {
+            CompletableFuture<Object> slow = client.requestAsync("slow");
+            CompletableFuture<Object> fast = client.requestAsync("fast");
+            Assert.assertEquals("fast", fast.get());
+            Assert.assertFalse(slow.isDone());
+            Assert.assertEquals("slow", slow.get());
+        }
+    }
+
+    @Test
+    public void testOrderedHandlerExecutor() throws InterruptedException,
+            ExecutionException {
+        MultipartIoServiceConfig config = new MultipartIoServiceConfig()
+                .setHandlerExecutor(executor);
+        try (Server server = slowServer(config);
+                BlockingClient client = new BlockingClient(
+                        server.getLocalAddress())) {
+            CompletableFuture<Object> slow = client.requestAsync("slow");
+            CompletableFuture<Object> fast = client.requestAsync("fast");
+            Assert.assertEquals("fast", fast.get());
+            Assert.assertTrue(slow.isDone());
+        }
+    }
+
+    @Test
+    public void testSlowSessionDoesNotStallOthers()
+            throws InterruptedException, ExecutionException {
+        MultipartIoServiceConfig config = new MultipartIoServiceConfig()
+                .setHandlerExecutor(executor);
+        try (Server server = slowServer(config);
+                BlockingClient slowClient = new BlockingClient(
+                        server.getLocalAddress());
+                BlockingClient fastClient = new BlockingClient(
+                        server.getLocalAddress())) {
+            CompletableFuture<Object> slow = slowClient.requestAsync("slow");
+            Assert.assertEquals("fast", fastClient.request("fast"));
+            Assert.assertFalse(slow.isDone());
+            Assert.assertEquals("slow", slow.get());
+        }
+    }
+
+    @Test
+    public void testOversizedFrameClosesSession() throws InterruptedException {
+        MultipartIoServiceConfig config = new MultipartIoServiceConfig()
+                .setMaxFrameSize(1024);
+        try (Server server = slowServer(config);
+                BlockingClient client = new BlockingClient(
+                        server.getLocalAddress())) {
+            char[] chars = new char[4096];
+            Arrays.fill(chars, 'x');
+            CompletableFuture<Object> response = client
+                    .requestAsync(new String(chars));
+            try {
+                response.get();
+                Assert.fail("the server is expected to drop the session");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IOException);
+            }
+        }
+    }
+
+    /**
+     * @param server
+     * @param length
+     *            announced by the frame, whose payload never follows.
+     * @return a socket that sent the length prefix.
+     */
+    private static Socket announce(final Server server, final int length)
+            throws IOException {
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress("127.0.0.1",
+                ((InetSocketAddress) server.getLocalAddress()).getPort()));
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeInt(length);
+        out.write(new byte[16]);
+        out.flush();
+        return socket;
+    }
+
+    @Test
+    public void testHugeFramePrefix() throws IOException,
+            InterruptedException, ExecutionException, TimeoutException {
+        // Refused by the default frame limit.
+        try (Server server = slowServer(new MultipartIoServiceConfig());
+                Socket hostile = announce(server, 0x7ffffffe)) {
+            hostile.setSoTimeout(5000);
+            Assert.assertEquals(-1, hostile.getInputStream().read());
+        }
+        // Without a frame limit, the frame takes the whole budget: its
+        // length prefix included, the reservation must not overflow.
+        MultipartIoServiceConfig config = new MultipartIoServiceConfig()
+                .setMaxFrameSize(Integer.MAX_VALUE)
+                .setDecodeMemoryBudget(256 << 10);
+        char[] chars = new char[200 << 10];
+        Arrays.fill(chars, 'x');
+        String large = new String(chars);
+        try (Server server = slowServer(config);
+                BlockingClient client = new BlockingClient(
+                        server.getLocalAddress())) {
+            CompletableFuture<String> response;
+            try (Socket hostile = announce(server, 0x7ffffffe)) {
+                Thread.sleep(200L);
+                response = client.requestAsync(large);
+                try {
+                    response.get(500L, TimeUnit.MILLISECONDS);
+                    Assert.fail("the budget is expected to be taken");
+                } catch (TimeoutException e) {
+                }
+            }
+            // Freed once the hostile session is gone.
+            Assert.assertEquals(large, response.get(10L, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testDecodeMemoryBudget() throws InterruptedException,
+            ExecutionException, TimeoutException {
+        MultipartIoServiceConfig config = new MultipartIoServiceConfig()
+                .setDecodeMemoryBudget(256 << 10);
+        char[] chars = new char[200 << 10];
+        Arrays.fill(chars, 'x');
+        String large = new String(chars);
+        try (Server server = slowServer(config)) {
+            List<BlockingClient> clients = new ArrayList<>();
+            try {
+                for (int i = 0; i < 4; ++i)
+                    clients.add(new BlockingClient(server.getLocalAddress()));
+                // More than the budget is in flight, sessions take turns.
+                List<CompletableFuture<String>> responses = new ArrayList<>();
+                for (int i = 0; i < 8; ++i)
+                    for (BlockingClient client : clients)
+                        responses.add(client.<String, String> requestAsync(
+                                large + i));
+                for (int i = 0; i < responses.size(); ++i)
+                    Assert.assertEquals(large + i / clients.size(), responses
+                            .get(i).get(10L, TimeUnit.SECONDS));
+            } finally {
+                for (BlockingClient client : clients)
+                    client.close();
+            }
+        }
+    }
+}